@@ -0,0 +1,142 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import protocol.Frame;
+import server.ChatServer;
+import server.Connection;
+import server.OutboundFrame;
+import server.RoomRegistry;
+import server.ServerConfig;
+import server.WireFormat;
+import server.files.FileTransfer;
+import server.metrics.DisconnectReason;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one {@link ChatServer#broadcast(String, Frame, Connection)} as the
+ * room grows. Recipients are in-memory sinks that take the encoded length,
+ * so the number covers sequencing, history and fan-out but no socket I/O.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class BroadcastBenchmark {
+
+    private static final String MESSAGE = "the quick brown fox jumps over the lazy dog, again and again";
+
+    @Param({"10", "100", "1000", "10000"})
+    int recipients;
+
+    @Param({"TEXT", "BINARY", "COMPRESSED"})
+    WireFormat format;
+
+    private ChatServer server;
+    private Frame message;
+
+    @Setup
+    public void setUp() {
+        server = new ChatServer(new ServerConfig().port(0).dataDir(null));
+        for (int i = 0; i < recipients; i++) {
+            server.addClient(new SinkConnection(format));
+        }
+        message = Frame.message("alice", RoomRegistry.DEFAULT_ROOM, MESSAGE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        server.broadcast(RoomRegistry.DEFAULT_ROOM, message, null);
+    }
+
+    /** Swallows frames the way a client's writer would consume them. */
+    static final class SinkConnection implements Connection {
+        private final WireFormat format;
+        private String room = RoomRegistry.DEFAULT_ROOM;
+        long bytes;
+
+        SinkConnection(WireFormat format) {
+            this.format = format;
+        }
+
+        @Override
+        public void send(OutboundFrame frame) {
+            bytes += frame.length(format);
+        }
+
+        @Override
+        public boolean sendFile(FileTransfer transfer) {
+            try {
+                transfer.close();
+            } catch (IOException ignored) {
+            }
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void close(DisconnectReason reason) {
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public boolean isBinary() {
+            return format != WireFormat.TEXT;
+        }
+
+        @Override
+        public String getRoom() {
+            return room;
+        }
+
+        @Override
+        public void setRoom(String room) {
+            this.room = room;
+        }
+
+        @Override
+        public String getUsername() {
+            return null;
+        }
+
+        @Override
+        public void setUsername(String username) {
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return 0;
+        }
+
+        @Override
+        public long getDroppedCount() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package bench;
+
+import client.ui.WrappedText;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import protocol.Frame;
+import protocol.TextCodec;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-message text work on the client before a bubble is drawn: splitting a
+ * text-protocol line into sender and content, and wrapping the content to the
+ * bubble's width, either with the {@link WrappedText} layout the window uses
+ * or the HTML label it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "-Djava.awt.headless=true"})
+public class ClientTextBenchmark {
+
+    @Param({
+            "alice: the quick brown fox jumps over the lazy dog, again and again",
+            "bob: <b>\"quoted\"</b> & 'single' <i>markup</i> in every <span>word</span>"
+    })
+    String line;
+
+    private final Font font = new Font("Segoe UI", Font.PLAIN, 14);
+    private JLabel label;
+    private boolean flip;
+
+    @Setup
+    public void setUp() {
+        label = new JLabel();
+        label.setFont(font);
+    }
+
+    @Benchmark
+    public void splitSenderAndContent(Blackhole bh) {
+        Frame frame = TextCodec.parseMessage(line);
+        bh.consume(frame.getSender());
+        bh.consume(frame.text());
+    }
+
+    @Benchmark
+    public WrappedText wrapText() {
+        return WrappedText.layout(line, font, 120);
+    }
+
+    @Benchmark
+    public Dimension htmlLabel() {
+        String escaped = line.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+                .replace("\"", "&quot;").replace("'", "&#39;");
+        // Alternating the markup makes each call a real change; JLabel ignores setting the same text again.
+        String html = (flip = !flip) ? "<html><body style='width:120px'>" : "<html><body style='width:121px'>";
+        label.setText(html + escaped.replace("\n", "<br>") + "</body></html>");
+        return label.getPreferredSize();
+    }
+}
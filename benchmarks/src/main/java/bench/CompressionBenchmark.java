@@ -0,0 +1,94 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import protocol.Compression;
+import protocol.Frame;
+import protocol.FrameType;
+import protocol.ProtocolException;
+import server.OutboundFrame;
+import server.WireFormat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU cost of compressing a broadcast against the bytes it saves. The
+ * encode benchmarks are the once-per-broadcast cost on the server, whatever
+ * the number of recipients; {@link #inflate} is the per-message cost on a
+ * receiving client. Wire sizes are printed at setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    private static final String[] WORDS = {
+            "the", "server", "is", "down", "again", "can", "you", "check", "logs", "for", "me", "please",
+            "deploy", "finished", "without", "errors", "lunch", "at", "noon", "I", "think", "we", "should",
+            "ship", "it", "today", "tomorrow", "meeting", "moved", "to", "room", "4", "thanks", "sounds",
+            "good", "build", "failed", "on", "main", "because", "of", "a", "flaky", "test", "who", "owns",
+            "this", "service", "latency", "spiked", "after", "release", "rollback", "done", "ok", "great",
+    };
+
+    @Param({"128", "512", "2048", "16384"})
+    int size;
+
+    // Chat-like text, or random bytes that do not compress at all.
+    @Param({"text", "random"})
+    String content;
+
+    private Frame frame;
+    private Frame compressed;
+
+    @Setup
+    public void setUp() throws ProtocolException {
+        Random random = new Random(42);
+        byte[] payload;
+        if (content.equals("text")) {
+            StringBuilder sb = new StringBuilder(size + 16);
+            while (sb.length() < size) sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            payload = sb.substring(0, size).getBytes(StandardCharsets.UTF_8);
+        } else {
+            payload = new byte[size];
+            random.nextBytes(payload);
+        }
+        frame = new Frame(FrameType.MESSAGE, 0, 1, 0, "alice", "general", ByteBuffer.wrap(payload));
+        compressed = Compression.compress(frame, 0);
+        if (compressed.hasFlag(Frame.FLAG_COMPRESSED)) Compression.decompress(compressed);
+
+        int plain = OutboundFrame.of(frame).length(WireFormat.BINARY);
+        int packed = OutboundFrame.of(frame).length(WireFormat.COMPRESSED);
+        System.out.printf("%n%s %d bytes: %d on the wire plain, %d compressed (%.0f%% saved)%n",
+                content, size, plain, packed, 100.0 * (plain - packed) / plain);
+    }
+
+    @Benchmark
+    public int encodeBinary() {
+        return OutboundFrame.of(frame).length(WireFormat.BINARY);
+    }
+
+    @Benchmark
+    public int encodeCompressed() {
+        return OutboundFrame.of(frame).length(WireFormat.COMPRESSED);
+    }
+
+    @Benchmark
+    public Frame inflate() throws ProtocolException {
+        return Compression.decompress(compressed);
+    }
+}
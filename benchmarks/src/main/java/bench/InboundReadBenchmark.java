@@ -0,0 +1,114 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.TextCodec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning bytes off the socket into a frame ready to broadcast, per message:
+ * through a {@link BufferedReader} and Strings, or a {@link DataInputStream},
+ * as the blocking handler used to, against parsing in place in the read
+ * buffer. Run with {@code -prof gc} to compare bytes allocated per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class InboundReadBenchmark {
+
+    private static final String LINE = "alice: the quick brown fox jumps over the lazy dog, again and again";
+    private static final int MESSAGES = 64;
+
+    private BufferedReader lineReader;
+    private DataInputStream frameStream;
+    private byte[] body = new byte[4 * 1024];
+    private ByteBuffer lines;
+    private ByteBuffer frames;
+
+    @Setup
+    public void setUp() throws IOException {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        for (int i = 0; i < MESSAGES; i++) {
+            text.write((LINE + "\n").getBytes(StandardCharsets.UTF_8));
+            binary.write(FrameCodec.encode(TextCodec.parseMessage(LINE)));
+        }
+        lineReader = new BufferedReader(new InputStreamReader(
+                new BufferedInputStream(new Repeating(text.toByteArray())), StandardCharsets.UTF_8));
+        frameStream = new DataInputStream(new BufferedInputStream(new Repeating(binary.toByteArray())));
+        lines = ByteBuffer.allocateDirect(text.size()).put(text.toByteArray()).flip();
+        frames = ByteBuffer.allocateDirect(binary.size()).put(binary.toByteArray()).flip();
+    }
+
+    @Benchmark
+    public Frame textReadLine() throws IOException {
+        return TextCodec.parseMessage(lineReader.readLine());
+    }
+
+    @Benchmark
+    public Frame textInPlace() {
+        if (!lines.hasRemaining()) lines.rewind();
+        return TextCodec.parseMessage(TextCodec.nextLine(lines));
+    }
+
+    @Benchmark
+    public Frame binaryStream() throws IOException {
+        int length = frameStream.readInt();
+        frameStream.readFully(body, 0, length);
+        return FrameCodec.decodeBody(ByteBuffer.wrap(body, 0, length));
+    }
+
+    @Benchmark
+    public Frame binaryInPlace() throws IOException {
+        if (!frames.hasRemaining()) frames.rewind();
+        return FrameCodec.decode(frames);
+    }
+
+    /** Endless input that plays the same bytes over and over, standing in for a socket. */
+    private static final class Repeating extends InputStream {
+        private final byte[] data;
+        private int pos;
+
+        Repeating(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            int b = data[pos] & 0xFF;
+            pos = (pos + 1) % data.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int n = Math.min(len, data.length - pos);
+            System.arraycopy(data, pos, b, off, n);
+            pos = (pos + n) % data.length;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.ProtocolException;
+import protocol.TextCodec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the server does with each inbound message before it is broadcast:
+ * parsing a text line or a command, or decoding a binary frame, plus the
+ * encoding done once per broadcast for each protocol.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class LineParsingBenchmark {
+
+    private static final String LINE = "alice: the quick brown fox jumps over the lazy dog, again and again";
+
+    private Frame frame;
+    private ByteBuffer encoded;
+
+    @Setup
+    public void setUp() {
+        frame = TextCodec.parseMessage(LINE).withIdAndRoom(42, System.currentTimeMillis(), "general");
+        encoded = ByteBuffer.wrap(FrameCodec.encode(frame));
+    }
+
+    @Benchmark
+    public Frame parseTextLine() {
+        return TextCodec.parseMessage(LINE);
+    }
+
+    @Benchmark
+    public Frame parseCommand() {
+        return TextCodec.parseCommand("/join random");
+    }
+
+    @Benchmark
+    public Frame decodeBinary() throws ProtocolException {
+        return FrameCodec.decode(encoded.duplicate());
+    }
+
+    @Benchmark
+    public String formatText() {
+        return TextCodec.format(frame);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return FrameCodec.encode(frame);
+    }
+}
@@ -0,0 +1,100 @@
+package bench;
+
+import client.ChatClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import protocol.Frame;
+import protocol.FrameType;
+import server.ChatServer;
+import server.ServerConfig;
+import server.ServerMode;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from one client sending a message until another client in the same
+ * room has read it, through a real server over loopback. Sampled, so the
+ * report includes percentiles as well as the mean.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class LoopbackLatencyBenchmark {
+
+    private static final String MESSAGE = "the quick brown fox jumps over the lazy dog, again and again";
+
+    @Param({"BLOCKING", "NIO"})
+    ServerMode mode;
+
+    @Param({"true", "false"})
+    boolean binary;
+
+    private ChatServer server;
+    private ChatClient sender;
+    private ChatClient receiver;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new ChatServer(new ServerConfig().port(0).mode(mode).dataDir(null));
+        Thread acceptor = new Thread(server::start, "bench-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        receiver = new ChatClient("127.0.0.1", server.getPort(), binary);
+        sender = new ChatClient("127.0.0.1", server.getPort(), binary);
+
+        // Skip join notices and history until the receiver sees the sender's traffic.
+        String marker = "ready-" + System.nanoTime();
+        Thread pinger = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    sender.send(Frame.message("alice", "", marker));
+                    Thread.sleep(50);
+                }
+            } catch (InterruptedException ignored) {
+            }
+        });
+        pinger.start();
+        try {
+            Frame frame;
+            while ((frame = receiver.readFrame()) != null) {
+                if (frame.getType() == FrameType.MESSAGE && marker.equals(frame.text())) break;
+            }
+        } finally {
+            pinger.interrupt();
+            pinger.join();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        sender.close();
+        receiver.close();
+        server.stop();
+    }
+
+    @Benchmark
+    public Frame roundTrip() throws IOException {
+        sender.send(Frame.message("alice", "", MESSAGE));
+        // Late markers from setup are skipped by their text.
+        Frame frame;
+        do {
+            frame = receiver.readFrame();
+        } while (frame != null && !(frame.getType() == FrameType.MESSAGE && MESSAGE.equals(frame.text())));
+        return frame;
+    }
+}
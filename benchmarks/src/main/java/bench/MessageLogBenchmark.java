@@ -0,0 +1,69 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import protocol.Frame;
+import server.store.FsyncPolicy;
+import server.store.MessageLog;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Append throughput of the message log under each fsync policy. Appends are
+ * queued to the log's writer thread, so once the queue fills the rate settles
+ * at what the writer gets onto disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class MessageLogBenchmark {
+
+    @Param({"PER_MESSAGE", "BATCHED", "INTERVAL"})
+    FsyncPolicy policy;
+
+    @Param({"100"})
+    int payloadBytes;
+
+    private Path dir;
+    private MessageLog log;
+    private String text;
+    private long offset;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("chatlog-bench");
+        log = new MessageLog(dir, policy, 100, 64L << 20);
+        text = "x".repeat(payloadBytes);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        log.close();
+        try (Stream<Path> s = Files.walk(dir)) {
+            for (Path p : s.sorted(Comparator.reverseOrder()).toList()) Files.delete(p);
+        }
+    }
+
+    @Benchmark
+    public void append() {
+        log.append(Frame.message("alice", "general", text).withIdAndRoom(++offset, System.currentTimeMillis(), "general"));
+    }
+}
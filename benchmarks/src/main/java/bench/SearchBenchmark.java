@@ -0,0 +1,132 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import protocol.Frame;
+import protocol.SearchRequest;
+import server.search.SearchIndex;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Query latency of the search index over a corpus of several million
+ * messages in 20 rooms, with words drawn from a Zipf distribution the way
+ * chat vocabulary is. Each query asks for a page of the newest matches.
+ *
+ * <p>Indexing the corpus takes a minute or two, so it is built once in the
+ * temp directory and reopened by later trials and runs; delete
+ * {@code chat-search-bench-*} there to rebuild it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class SearchBenchmark {
+
+    private static final int ROOMS = 20;
+    private static final int VOCABULARY = 20_000;
+    private static final int WORDS_PER_MESSAGE = 8;
+    private static final int QUERIES = 1024;
+
+    public enum Query {
+        // One of the 20 most frequent words: matches are everywhere, so only the newest are read.
+        COMMON,
+        // A word from the long tail, found in a handful of messages per room.
+        RARE,
+        // A common and a rare word; the rare list drives the intersection.
+        COMMON_AND_RARE,
+        // Two mid-frequency words, which rarely occur together: the worst case for AND.
+        TWO_MEDIUM
+    }
+
+    @Param({"2000000"})
+    int messages;
+
+    @Param({"COMMON", "RARE", "COMMON_AND_RARE", "TWO_MEDIUM"})
+    Query query;
+
+    private SearchIndex index;
+    private final String[] rooms = new String[QUERIES];
+    private final String[] queries = new String[QUERIES];
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        Path dir = Path.of(System.getProperty("java.io.tmpdir"), "chat-search-bench-" + messages);
+        Files.createDirectories(dir);
+        index = new SearchIndex(dir, null);
+        if (index.lastIndexed() < messages) {
+            build(index, index.lastIndexed() + 1);
+        }
+        index.awaitMerges();
+
+        Random random = new Random(7);
+        for (int i = 0; i < QUERIES; i++) {
+            rooms[i] = room(random.nextInt(ROOMS));
+            queries[i] = switch (query) {
+                case COMMON -> word(random.nextInt(20));
+                case RARE -> word(10_000 + random.nextInt(10_000));
+                case COMMON_AND_RARE -> word(random.nextInt(20)) + " " + word(10_000 + random.nextInt(10_000));
+                case TWO_MEDIUM -> word(200 + random.nextInt(1800)) + " " + word(200 + random.nextInt(1800));
+            };
+        }
+    }
+
+    // Deterministic, so a corpus resumed part way through is the same as one built in one go.
+    private void build(SearchIndex index, long fromId) throws IOException {
+        double[] cumulative = new double[VOCABULARY];
+        double sum = 0;
+        for (int rank = 0; rank < VOCABULARY; rank++) {
+            sum += 1.0 / (rank + 1);
+            cumulative[rank] = sum;
+        }
+        StringBuilder text = new StringBuilder();
+        for (long id = fromId; id <= messages; id++) {
+            Random random = new Random(id);
+            text.setLength(0);
+            for (int w = 0; w < WORDS_PER_MESSAGE; w++) {
+                int rank = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+                text.append(word(Math.min(rank >= 0 ? rank : -rank - 1, VOCABULARY - 1))).append(' ');
+            }
+            String room = room(random.nextInt(ROOMS));
+            index.add(Frame.message("alice", room, text.toString()).withIdAndRoom(id, id, room));
+        }
+        index.flush();
+    }
+
+    private static String room(int i) {
+        return "room" + i;
+    }
+
+    private static String word(int rank) {
+        return "w" + Integer.toString(rank, 36);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        index.close();
+    }
+
+    @Benchmark
+    public long[] search() {
+        int i = next++ & (QUERIES - 1);
+        return index.search(rooms[i], queries[i], 0, SearchRequest.DEFAULT_LIMIT);
+    }
+}
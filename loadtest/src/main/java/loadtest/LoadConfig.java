@@ -0,0 +1,175 @@
+package loadtest;
+
+import java.util.Arrays;
+
+public class LoadConfig {
+
+    private String host = "127.0.0.1";
+    private int[] ports = {5000};
+    private int clients = 1000;
+    private int rooms = 20;
+    private double rate = 1.0;
+    private int messageBytes = 100;
+    private double churn = 0;
+    private int connectRate = 1000;
+    private int warmupSeconds = 5;
+    private int durationSeconds = 30;
+    private boolean binary = true;
+    private String histogramFile;
+
+    public static LoadConfig fromArgs(String[] args) {
+        LoadConfig config = new LoadConfig();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+            String key = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (key) {
+                case "host" -> config.host(value);
+                case "port" -> config.ports(Arrays.stream(value.split(",")).mapToInt(p -> Integer.parseInt(p.trim())).toArray());
+                case "clients" -> config.clients(Integer.parseInt(value));
+                case "rooms" -> config.rooms(Integer.parseInt(value));
+                case "rate" -> config.rate(Double.parseDouble(value));
+                case "size" -> config.messageBytes(Integer.parseInt(value));
+                case "churn" -> config.churn(Double.parseDouble(value));
+                case "connect-rate" -> config.connectRate(Integer.parseInt(value));
+                case "warmup" -> config.warmupSeconds(Integer.parseInt(value));
+                case "duration" -> config.durationSeconds(Integer.parseInt(value));
+                case "protocol" -> config.binary(switch (value) {
+                    case "binary" -> true;
+                    case "text" -> false;
+                    default -> throw new IllegalArgumentException("protocol must be binary or text");
+                });
+                case "hgrm" -> config.histogramFile(value);
+                default -> throw new IllegalArgumentException("Unknown option: --" + key);
+            }
+        }
+        return config;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public LoadConfig host(String host) {
+        this.host = host;
+        return this;
+    }
+
+    /** Server ports; sessions are spread over them round-robin, e.g. one per cluster node. */
+    public int[] getPorts() {
+        return ports.clone();
+    }
+
+    public LoadConfig ports(int... ports) {
+        if (ports.length == 0) throw new IllegalArgumentException("port must name at least one port");
+        this.ports = ports.clone();
+        return this;
+    }
+
+    public int getClients() {
+        return clients;
+    }
+
+    public LoadConfig clients(int clients) {
+        if (clients < 2) throw new IllegalArgumentException("clients must be >= 2");
+        this.clients = clients;
+        return this;
+    }
+
+    /** Rooms the sessions are spread over, round-robin. */
+    public int getRooms() {
+        return rooms;
+    }
+
+    public LoadConfig rooms(int rooms) {
+        if (rooms < 1) throw new IllegalArgumentException("rooms must be >= 1");
+        this.rooms = rooms;
+        return this;
+    }
+
+    /** Messages per second sent by each session; 0 only listens. */
+    public double getRate() {
+        return rate;
+    }
+
+    public LoadConfig rate(double rate) {
+        if (rate < 0) throw new IllegalArgumentException("rate must be >= 0");
+        this.rate = rate;
+        return this;
+    }
+
+    /** Message text length in bytes, including the timestamp header. */
+    public int getMessageBytes() {
+        return messageBytes;
+    }
+
+    public LoadConfig messageBytes(int messageBytes) {
+        if (messageBytes < 32) throw new IllegalArgumentException("size must be >= 32");
+        this.messageBytes = messageBytes;
+        return this;
+    }
+
+    /** Room switches per second across all sessions. */
+    public double getChurn() {
+        return churn;
+    }
+
+    public LoadConfig churn(double churn) {
+        if (churn < 0) throw new IllegalArgumentException("churn must be >= 0");
+        this.churn = churn;
+        return this;
+    }
+
+    /** New connections opened per second while ramping up. */
+    public int getConnectRate() {
+        return connectRate;
+    }
+
+    public LoadConfig connectRate(int connectRate) {
+        if (connectRate < 1) throw new IllegalArgumentException("connect-rate must be >= 1");
+        this.connectRate = connectRate;
+        return this;
+    }
+
+    public int getWarmupSeconds() {
+        return warmupSeconds;
+    }
+
+    public LoadConfig warmupSeconds(int warmupSeconds) {
+        if (warmupSeconds < 0) throw new IllegalArgumentException("warmup must be >= 0");
+        this.warmupSeconds = warmupSeconds;
+        return this;
+    }
+
+    public int getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    public LoadConfig durationSeconds(int durationSeconds) {
+        if (durationSeconds < 1) throw new IllegalArgumentException("duration must be >= 1");
+        this.durationSeconds = durationSeconds;
+        return this;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public LoadConfig binary(boolean binary) {
+        this.binary = binary;
+        return this;
+    }
+
+    /** Where to write the full latency distribution, or null. */
+    public String getHistogramFile() {
+        return histogramFile;
+    }
+
+    public LoadConfig histogramFile(String histogramFile) {
+        this.histogramFile = histogramFile;
+        return this;
+    }
+}
@@ -0,0 +1,181 @@
+package loadtest;
+
+import client.ChatClient;
+import org.HdrHistogram.Histogram;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator: opens many client sessions against a running
+ * server, has them chat across a set of rooms, and reports throughput and
+ * end-to-end delivery latency once per second plus a summary at the end.
+ *
+ * <pre>
+ * java -jar loadtest/target/loadtest.jar --clients=5000 --rooms=100 --rate=0.5 --duration=60
+ * </pre>
+ */
+public class LoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        LoadConfig config = LoadConfig.fromArgs(args);
+        System.exit(new LoadGenerator(config).run());
+    }
+
+    private final LoadConfig config;
+    private final LoadStats stats = new LoadStats();
+    private final AtomicReferenceArray<Session> sessions;
+    private final String runId = Long.toHexString(ThreadLocalRandom.current().nextLong() >>> 16);
+    private final ThreadFactory threads = Thread.ofVirtual().name("load-", 0).factory();
+
+    LoadGenerator(LoadConfig config) {
+        this.config = config;
+        this.sessions = new AtomicReferenceArray<>(config.getClients());
+    }
+
+    int run() throws InterruptedException {
+        System.out.printf("Load test: %d %s sessions against %s:%s, %d rooms, %.2f msg/s each, %d-byte messages, churn %.1f/s%n",
+                config.getClients(), config.isBinary() ? "binary" : "text", config.getHost(), joinPorts(),
+                config.getRooms(), config.getRate(), config.getMessageBytes(), config.getChurn());
+
+        ExecutorService connector = Executors.newThreadPerTaskExecutor(threads);
+        Thread ramp = Thread.ofPlatform().name("load-ramp").start(() -> rampUp(connector));
+        Thread churn = config.getChurn() > 0 ? Thread.ofPlatform().daemon().name("load-churn").start(this::churn) : null;
+
+        System.out.printf("%6s %-7s %9s %10s %12s %10s %10s %10s %10s%n",
+                "time", "phase", "sessions", "sent/s", "delivered/s", "p50(us)", "p99(us)", "p999(us)", "max(us)");
+
+        Histogram total = null;
+        long totalSent = 0, totalDelivered = 0;
+        int measured = 0;
+        long start = System.nanoTime();
+        int second = 0;
+        int warmupLeft = config.getWarmupSeconds();
+        while (measured < config.getDurationSeconds()) {
+            second++;
+            LockSupport.parkNanos(start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime());
+
+            long sent = stats.sent.sumThenReset();
+            long delivered = stats.delivered.sumThenReset();
+            Histogram interval = stats.takeInterval();
+
+            String phase;
+            if (ramp.isAlive()) {
+                phase = "ramp";
+            } else if (warmupLeft > 0) {
+                phase = "warmup";
+                warmupLeft--;
+            } else {
+                phase = "run";
+                measured++;
+                totalSent += sent;
+                totalDelivered += delivered;
+                if (total == null) total = new Histogram(3);
+                total.add(interval);
+            }
+            System.out.printf("%5ds %-7s %9d %10d %12d %10d %10d %10d %10d%n",
+                    second, phase, stats.connected.sum(), sent, delivered,
+                    interval.getValueAtPercentile(50), interval.getValueAtPercentile(99),
+                    interval.getValueAtPercentile(99.9), interval.getMaxValue());
+        }
+
+        if (churn != null) churn.interrupt();
+        for (int i = 0; i < sessions.length(); i++) {
+            Session s = sessions.get(i);
+            if (s != null) s.close();
+        }
+        connector.shutdownNow();
+
+        printSummary(total, totalSent, totalDelivered, measured);
+        return stats.connectFailures.sum() == 0 ? 0 : 1;
+    }
+
+    // Opens sessions at the configured connect rate, spreading them over the rooms.
+    private void rampUp(ExecutorService connector) {
+        long interval = TimeUnit.SECONDS.toNanos(1) / config.getConnectRate();
+        long next = System.nanoTime();
+        for (int i = 0; i < config.getClients(); i++) {
+            LockSupport.parkNanos(next - System.nanoTime());
+            next += interval;
+            int index = i;
+            connector.execute(() -> connect(index));
+        }
+        connector.shutdown();
+        try {
+            connector.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private void connect(int index) {
+        try {
+            int[] ports = config.getPorts();
+            ChatClient client = new ChatClient(config.getHost(), ports[index % ports.length], config.isBinary());
+            Session session = new Session(index, client, stats, runId, config.getMessageBytes());
+            sessions.set(index, session);
+            session.start(room(index % config.getRooms()), config.getRate(), threads);
+            stats.connected.increment();
+        } catch (RuntimeException e) {
+            stats.connectFailures.increment();
+        }
+    }
+
+    // Moves random sessions between rooms; one switch in four goes back to the default room.
+    private void churn() {
+        long interval = (long) (1e9 / config.getChurn());
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (!Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(interval);
+            Session s = sessions.get(random.nextInt(sessions.length()));
+            if (s == null) continue;
+            if (random.nextInt(4) == 0) s.leave(); else s.join(room(random.nextInt(config.getRooms())));
+            stats.roomSwitches.increment();
+        }
+    }
+
+    private String joinPorts() {
+        StringBuilder sb = new StringBuilder();
+        for (int p : config.getPorts()) sb.append(sb.isEmpty() ? "" : ",").append(p);
+        return sb.toString();
+    }
+
+    private static String room(int i) {
+        return "load-" + i;
+    }
+
+    private void printSummary(Histogram total, long sent, long delivered, int seconds) {
+        System.out.println();
+        System.out.printf("Summary over %d s measured%n", seconds);
+        System.out.printf("  sessions          %d connected, %d failed to connect, %d dropped%n",
+                stats.connected.sum(), stats.connectFailures.sum(), stats.disconnects.sum());
+        System.out.printf("  sent              %d (%.1f msg/s)%n", sent, (double) sent / seconds);
+        System.out.printf("  delivered         %d (%.1f msg/s, %.1f per message sent)%n",
+                delivered, (double) delivered / seconds, sent == 0 ? 0.0 : (double) delivered / sent);
+        System.out.printf("  room switches     %d%n", stats.roomSwitches.sum());
+        if (total == null || total.getTotalCount() == 0) {
+            System.out.println("  latency           no deliveries recorded");
+            return;
+        }
+        System.out.printf("  latency (us)      p50 %d, p90 %d, p99 %d, p99.9 %d, max %d, mean %.1f%n",
+                total.getValueAtPercentile(50), total.getValueAtPercentile(90),
+                total.getValueAtPercentile(99), total.getValueAtPercentile(99.9),
+                total.getMaxValue(), total.getMean());
+
+        if (config.getHistogramFile() != null) {
+            try (PrintStream out = new PrintStream(config.getHistogramFile())) {
+                // Scaled to milliseconds, the unit HdrHistogram's plotter expects.
+                total.outputPercentileDistribution(out, 1000.0);
+                System.out.println("  distribution      " + config.getHistogramFile());
+            } catch (FileNotFoundException e) {
+                System.out.println("Could not write " + config.getHistogramFile() + ": " + e.getMessage());
+            }
+        }
+    }
+}
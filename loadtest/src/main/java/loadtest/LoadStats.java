@@ -0,0 +1,32 @@
+package loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** Counters and the latency recorder shared by every session. */
+final class LoadStats {
+
+    final LongAdder sent = new LongAdder();
+    final LongAdder delivered = new LongAdder();
+    final LongAdder connected = new LongAdder();
+    final LongAdder connectFailures = new LongAdder();
+    final LongAdder disconnects = new LongAdder();
+    final LongAdder roomSwitches = new LongAdder();
+
+    // Delivery latency in microseconds; each reporting interval swaps out its own histogram.
+    private final Recorder latency = new Recorder(3);
+    private Histogram interval;
+
+    void recordDelivery(long latencyNanos) {
+        delivered.increment();
+        latency.recordValue(Math.max(0, latencyNanos / 1000));
+    }
+
+    /** Latencies recorded since the previous call. Only the reporting thread calls this. */
+    Histogram takeInterval() {
+        interval = latency.getIntervalHistogram(interval);
+        return interval;
+    }
+}
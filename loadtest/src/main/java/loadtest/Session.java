@@ -0,0 +1,119 @@
+package loadtest;
+
+import client.ChatClient;
+import protocol.Frame;
+import protocol.FrameType;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One simulated user: a {@link ChatClient} with a reader thread that records
+ * delivery latency and, when sending, a thread that paces its messages.
+ * <p>
+ * Each message carries the time it was due to be sent, not the time it
+ * actually went out, so a sender that falls behind shows up as latency
+ * instead of silently sending less.
+ */
+final class Session {
+
+    private static final String HEADER = "lt ";
+
+    private final int index;
+    private final ChatClient client;
+    private final LoadStats stats;
+    private final String runId;
+    private final String padding;
+    private volatile boolean running = true;
+    // When this session last changed rooms; anything sent earlier is replayed history.
+    private volatile long joinedAt;
+    private Thread reader;
+    private Thread sender;
+
+    Session(int index, ChatClient client, LoadStats stats, String runId, int messageBytes) {
+        this.index = index;
+        this.client = client;
+        this.stats = stats;
+        this.runId = runId;
+        this.padding = "x".repeat(messageBytes);
+    }
+
+    void start(String room, double rate, ThreadFactory threads) {
+        join(room);
+        reader = threads.newThread(this::readLoop);
+        reader.start();
+        if (rate > 0) {
+            sender = threads.newThread(() -> sendLoop((long) (1e9 / rate)));
+            sender.start();
+        }
+    }
+
+    void join(String room) {
+        joinedAt = System.nanoTime();
+        client.send(Frame.control(FrameType.JOIN, room));
+    }
+
+    void leave() {
+        joinedAt = System.nanoTime();
+        client.send(Frame.control(FrameType.LEAVE, ""));
+    }
+
+    void stopSending() {
+        running = false;
+        if (sender != null) sender.interrupt();
+    }
+
+    void close() {
+        stopSending();
+        client.close();
+    }
+
+    private void readLoop() {
+        try {
+            Frame frame;
+            while ((frame = client.readFrame()) != null) {
+                if (frame.getType() != FrameType.MESSAGE || frame.hasFlag(Frame.FLAG_HISTORY)) continue;
+                long sentAt = parseSentAt(frame.text());
+                if (sentAt >= joinedAt) stats.recordDelivery(System.nanoTime() - sentAt);
+            }
+        } catch (Exception ignored) {
+        }
+        if (running) stats.disconnects.increment();
+    }
+
+    private void sendLoop(long intervalNanos) {
+        String name = "load-" + index;
+        // Spread sessions across the interval so they do not all send at once.
+        long next = System.nanoTime() + ThreadLocalRandom.current().nextLong(intervalNanos);
+        while (running) {
+            long wait;
+            while (running && (wait = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            if (!running) break;
+            client.send(Frame.message(name, "", body(next)));
+            stats.sent.increment();
+            next += intervalNanos;
+        }
+    }
+
+    // "lt <run> <due nanos> xxxx..." padded to the configured size.
+    private String body(long dueAt) {
+        String head = HEADER + runId + ' ' + dueAt + ' ';
+        return head + padding.substring(Math.min(head.length(), padding.length()));
+    }
+
+    // The due time from a message of this run, or -1 for anything else.
+    private long parseSentAt(String text) {
+        if (!text.startsWith(HEADER) || !text.startsWith(runId, HEADER.length())) return -1;
+        int start = HEADER.length() + runId.length() + 1;
+        int end = text.indexOf(' ', start);
+        if (end < 0) return -1;
+        try {
+            return Long.parseLong(text, start, end, 10);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
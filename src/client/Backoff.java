@@ -0,0 +1,34 @@
+package client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with full jitter: the n-th delay is drawn uniformly from
+ * zero up to {@code min(cap, base * 2^n)}. Spreading retries over the whole
+ * window keeps clients that lost the server at the same moment from all
+ * coming back at the same moment.
+ */
+final class Backoff {
+
+    private final long baseMillis;
+    private final long capMillis;
+    private int attempt;
+
+    Backoff(long baseMillis, long capMillis) {
+        if (baseMillis < 1 || capMillis < baseMillis) {
+            throw new IllegalArgumentException("need 1 <= base <= cap");
+        }
+        this.baseMillis = baseMillis;
+        this.capMillis = capMillis;
+    }
+
+    long nextDelayMillis() {
+        long ceiling = Math.min(capMillis, baseMillis << Math.min(attempt, 30));
+        attempt++;
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    void reset() {
+        attempt = 0;
+    }
+}
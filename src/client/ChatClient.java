@@ -1,29 +1,173 @@
 package client;
 
+import protocol.Compression;
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.FrameType;
+import protocol.HistoryRequest;
+import protocol.TextCodec;
+
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ChatClient {
 
+    // How long to wait for the server to answer a binary hello before falling back to text.
+    private static final int HELLO_TIMEOUT_MS = 3000;
+    // Ids remembered to drop messages delivered both live and by a catch-up.
+    private static final int RECENT_IDS = 1024;
+
     private Socket socket;
+    private DataInputStream in;
     private BufferedReader reader;
-    private PrintWriter writer;
+    private OutputStream out;
+    private boolean binary;
+    // Both ends speak a version that allows compressed payloads.
+    private boolean compression;
+    private final OffsetTracker offsets;
+    private final LinkedHashSet<Long> recentIds = new LinkedHashSet<>();
+    private volatile String room = "";
+    private final ReentrantLock sendLock = new ReentrantLock();
 
     public ChatClient(String ip, int port) {
+        this(ip, port, true);
+    }
+
+    public ChatClient(String ip, int port, boolean preferBinary) {
+        this(ip, port, preferBinary, new OffsetTracker());
+    }
+
+    /**
+     * @param preferBinary try the binary protocol first; when false, or when the
+     *                     server does not answer the hello, use the text protocol
+     * @param offsets      last seen message ids, carried over from a previous connection
+     */
+    public ChatClient(String ip, int port, boolean preferBinary, OffsetTracker offsets) {
+        this.offsets = offsets;
         try {
-            socket = new Socket(ip, port);
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            writer = new PrintWriter(socket.getOutputStream(), true);
+            if (!preferBinary || !connectBinary(ip, port)) {
+                connectText(ip, port);
+            }
         } catch (Exception e) {
             throw new RuntimeException("Unable to connect to server.");
         }
     }
 
-    public void send(String msg) {
-        writer.println(msg);
+    private boolean connectBinary(String ip, int port) throws IOException {
+        socket = new Socket(ip, port);
+        socket.setTcpNoDelay(true);
+        out = new BufferedOutputStream(socket.getOutputStream());
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out.write(FrameCodec.hello(FrameCodec.VERSION));
+        out.flush();
+
+        socket.setSoTimeout(HELLO_TIMEOUT_MS);
+        try {
+            int version = FrameCodec.parseHello(FrameCodec.readHello(in));
+            if (version >= 1) {
+                socket.setSoTimeout(0);
+                binary = true;
+                compression = version >= FrameCodec.COMPRESSION_VERSION;
+                return true;
+            }
+        } catch (IOException ignored) {
+            // Not a binary-capable server.
+        }
+        socket.close();
+        return false;
+    }
+
+    private void connectText(String ip, int port) throws IOException {
+        socket = new Socket(ip, port);
+        socket.setTcpNoDelay(true);
+        reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    /** @return false if the connection is broken; the reader then sees it closed too */
+    public boolean send(Frame frame) {
+        // File data is compressed already more often than not, and would only cost time.
+        boolean compress = compression && frame.getType() != FrameType.FILE_CHUNK;
+        byte[] encoded = binary
+                ? FrameCodec.encode(compress ? Compression.compress(frame, Compression.DEFAULT_THRESHOLD) : frame)
+                : null;
+        // A lock rather than synchronized, so a virtual thread blocked in the write does not pin its carrier.
+        sendLock.lock();
+        try {
+            if (binary) {
+                out.write(encoded);
+            } else {
+                out.write((TextCodec.format(frame) + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /** Closes the connection; a blocked {@link #readFrame()} then fails. */
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Blocks for the next frame from the server. Text lines are parsed into
+     * frames so callers never see the difference.
+     *
+     * @return null once the server has closed the connection
+     */
+    public Frame readFrame() throws IOException {
+        while (true) {
+            Frame frame = binary ? FrameCodec.read(in) : readLine();
+            if (frame == null) return null;
+            frame = Compression.decompress(frame);
+            if (frame.getType() == FrameType.JOIN) {
+                room = frame.getRoom();
+            }
+            // Search results are old messages again, not news: they neither repeat nor advance anything.
+            boolean sequenced = frame.getType() == FrameType.MESSAGE || frame.getType() == FrameType.FILE;
+            if (sequenced && frame.getId() > 0 && !frame.hasFlag(Frame.FLAG_SEARCH)) {
+                if (!recentIds.add(frame.getId())) continue;
+                if (recentIds.size() > RECENT_IDS) recentIds.remove(recentIds.iterator().next());
+                offsets.update(frame.getRoom(), frame.getId());
+            }
+            return frame;
+        }
+    }
+
+    private Frame readLine() throws IOException {
+        String line = reader.readLine();
+        if (line == null) return null;
+        Frame frame = TextCodec.parseMessage(line);
+        if (TextCodec.SERVER_SENDER.equals(frame.getSender())) {
+            return Frame.system("", frame.text());
+        }
+        return frame;
+    }
+
+    public void requestHistory(HistoryRequest request) {
+        if (binary) send(request.toFrame());
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /** The room the server last confirmed, or empty before the first confirmation. */
+    public String getRoom() {
+        return room;
     }
 
-    public BufferedReader getReader() {
-        return reader;
+    public OffsetTracker getOffsets() {
+        return offsets;
     }
 }
@@ -0,0 +1,394 @@
+package client;
+
+import protocol.Frame;
+import protocol.FrameType;
+import protocol.HistoryRequest;
+import protocol.Login;
+import protocol.Presence;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A chat session that outlives its connections. When the connection drops,
+ * the session reconnects with jittered exponential backoff, puts the user
+ * back in the room they were in and lets the UI catch up from the offsets it
+ * has seen. Frames are written by a writer thread of the session's own, so
+ * sending never waits for the network; frames sent while the connection is
+ * down wait in a bounded outbox and go out, in order, once it is back. File
+ * transfers ride along on
+ * the same connection; see {@link FileTransfers}. The newest messages of each
+ * room are kept on disk in a {@link MessageCache} for the next run.
+ */
+public class ChatSession {
+
+    public enum State {CONNECTED, RECONNECTING, CLOSED}
+
+    /** Called on the session thread. */
+    public interface Listener {
+        void onFrame(Frame frame);
+
+        /** @param retryMillis when reconnecting, the wait before the next attempt */
+        void onStateChanged(State state, long retryMillis);
+    }
+
+    private static final System.Logger LOG = System.getLogger(ChatSession.class.getName());
+    private static final long BACKOFF_BASE_MS = 250;
+    private static final long BACKOFF_CAP_MS = 30_000;
+    // A connection must stay up this long before the backoff starts over,
+    // so a server that accepts and then drops us is not retried at full speed.
+    private static final long STABLE_MS = 10_000;
+    private static final int MAX_OUTBOX = 500;
+
+    private final String host;
+    private final int port;
+    private final String username;
+    // Sent with every login, so a reconnect replaces a connection the server has not yet noticed is dead.
+    private final long device = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    private final OffsetTracker offsets = new OffsetTracker();
+    private final Backoff backoff = new Backoff(BACKOFF_BASE_MS, BACKOFF_CAP_MS);
+    private final FileTransfers transfers = new FileTransfers(this);
+    private final MessageCache cache;
+
+    // The outbox and the current connection change together under this lock,
+    // so nothing sent while a flush is in progress can overtake it. Nothing is
+    // written to the network while holding it. A frame stays at the head of
+    // the outbox until it has been written.
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled when the writer may have something to do.
+    private final Condition ready = lock.newCondition();
+    private final ArrayDeque<Frame> outbox = new ArrayDeque<>();
+    private ChatClient client;
+    private long droppedFrames;
+
+    private volatile ChatClient first;
+    private volatile boolean binary;
+    // The room to come back to; empty means the server's default room.
+    private volatile String room = "";
+    private volatile boolean closed;
+    private Thread thread;
+    private Thread writer;
+
+    public ChatSession(String host, int port, String username) {
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.cache = new MessageCache(host, port);
+    }
+
+    /**
+     * Makes the first connection. Blocks, so call it off the EDT.
+     *
+     * @throws RuntimeException if the server cannot be reached
+     */
+    public void connect() {
+        first = open(true);
+        binary = first.isBinary();
+    }
+
+    // Every connection starts by saying who is on it.
+    private ChatClient open(boolean preferBinary) {
+        ChatClient c = new ChatClient(host, port, preferBinary, offsets);
+        c.send(new Login(username, device).toFrame());
+        return c;
+    }
+
+    /** Starts reading on a background thread, reconnecting whenever the connection drops. */
+    public void start(Listener listener) {
+        if (first == null) throw new IllegalStateException("connect() first");
+        thread = Thread.ofPlatform().daemon().name("chat-session").start(() -> run(listener));
+        writer = Thread.ofPlatform().daemon().name("chat-session-writer").start(this::writeLoop);
+    }
+
+    private void run(Listener listener) {
+        ChatClient c = first;
+        first = null;
+        boolean resuming = false;
+        while (!closed) {
+            if (c == null) {
+                long delay = backoff.nextDelayMillis();
+                listener.onStateChanged(State.RECONNECTING, delay);
+                try {
+                    TimeUnit.MILLISECONDS.sleep(delay);
+                    c = open(binary);
+                } catch (InterruptedException e) {
+                    break;
+                } catch (RuntimeException e) {
+                    continue;
+                }
+            }
+
+            long connectedAt = System.nanoTime();
+            try {
+                if (resuming && !resume(c, listener)) {
+                    throw new IOException("Connection lost while resuming");
+                }
+                online(c);
+                transfers.online();
+                listener.onStateChanged(State.CONNECTED, 0);
+                resuming = true;
+                Frame frame;
+                while ((frame = c.readFrame()) != null) {
+                    if (transfers.onFrame(frame)) continue;
+                    track(frame);
+                    dispatch(listener, frame);
+                }
+            } catch (IOException ignored) {
+                // Dropped; reconnect below.
+            }
+
+            offline(c);
+            transfers.offline();
+            c = null;
+            if (System.nanoTime() - connectedAt > TimeUnit.MILLISECONDS.toNanos(STABLE_MS)) {
+                backoff.reset();
+            }
+        }
+        listener.onStateChanged(State.CLOSED, 0);
+    }
+
+    /**
+     * Puts a new connection back where the old one was. The server starts
+     * everyone in its default room; a binary server says so with a JOIN
+     * first, which is swallowed if we are headed elsewhere so the UI only
+     * sees the room it was already showing.
+     */
+    private boolean resume(ChatClient c, Listener listener) throws IOException {
+        String target = room;
+        if (c.isBinary()) {
+            Frame welcome = c.readFrame();
+            if (welcome == null) return false;
+            if (welcome.getType() == FrameType.JOIN && !target.isEmpty() && !target.equals(welcome.getRoom())) {
+                c.send(Frame.control(FrameType.JOIN, target));
+            } else {
+                track(welcome);
+                dispatch(listener, welcome);
+            }
+        } else if (!target.isEmpty()) {
+            c.send(Frame.control(FrameType.JOIN, target));
+        }
+        return true;
+    }
+
+    // Sends what waited in the outbox before making the connection current, so nothing new overtakes it.
+    private void online(ChatClient c) {
+        while (true) {
+            Frame next;
+            lock.lock();
+            try {
+                next = outbox.peek();
+                if (next == null) {
+                    client = c;
+                    binary = c.isBinary();
+                    ready.signal();
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            // A broken connection is seen by the reader, which takes it offline again.
+            if (!c.send(next)) return;
+            lock.lock();
+            try {
+                if (outbox.peek() == next) outbox.poll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Room changes and typing that did not make it out are not worth sending on the next connection.
+    private void offline(ChatClient c) {
+        lock.lock();
+        try {
+            client = null;
+            outbox.removeIf(f -> f.getType() == FrameType.JOIN || f.getType() == FrameType.LEAVE
+                    || f.getType() == FrameType.TYPING);
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+        c.close();
+    }
+
+    // Writes the outbox to the current connection, one frame at a time and outside the lock.
+    private void writeLoop() {
+        try {
+            while (true) {
+                ChatClient c;
+                Frame frame;
+                lock.lock();
+                try {
+                    while (!closed && (client == null || outbox.isEmpty())) ready.await();
+                    if (closed) return;
+                    c = client;
+                    frame = outbox.peek();
+                } finally {
+                    lock.unlock();
+                }
+                boolean sent = c.send(frame);
+                lock.lock();
+                try {
+                    if (sent) {
+                        if (outbox.peek() == frame) outbox.poll();
+                    } else {
+                        // Broken; wait for the reader to notice and move on to the next connection.
+                        while (!closed && client == c) ready.await();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed.
+        }
+    }
+
+    // Also opens the room's cache here, off the EDT, before the UI hears of the room.
+    private void track(Frame frame) {
+        if (frame.getType() != FrameType.JOIN) return;
+        room = frame.getRoom();
+        if (binary) cache.open(room);
+    }
+
+    private static void dispatch(Listener listener, Frame frame) {
+        try {
+            listener.onFrame(frame);
+        } catch (RuntimeException e) {
+            // A bug in one update must not take the connection down with it.
+            LOG.log(System.Logger.Level.ERROR, "Could not handle " + frame.getType() + " frame", e);
+        }
+    }
+
+    /**
+     * Queues a frame for the writer thread, or for the next connection if
+     * there is none; never waits for the network, so it is safe on the EDT.
+     * Room changes are not kept for the next connection: the latest one just
+     * becomes the room the session resumes into.
+     */
+    public void send(Frame frame) {
+        if (frame.getType() == FrameType.JOIN) {
+            room = frame.getRoom().toLowerCase();
+        } else if (frame.getType() == FrameType.LEAVE) {
+            room = "";
+        }
+        lock.lock();
+        try {
+            if (client == null) {
+                if (frame.getType() == FrameType.JOIN || frame.getType() == FrameType.LEAVE) return;
+                if (outbox.size() == MAX_OUTBOX) {
+                    outbox.poll();
+                    droppedFrames++;
+                }
+            }
+            outbox.add(frame);
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends a frame on the calling thread, only if connected with nothing
+     * waiting in the outbox. For frames that are worthless late, like file
+     * chunks, which are sent again from where the server says once a new
+     * connection is up. Blocks while the socket does, so not for the EDT.
+     *
+     * @return whether it was sent
+     */
+    public boolean sendNow(Frame frame) {
+        ChatClient c;
+        lock.lock();
+        try {
+            if (client == null || !outbox.isEmpty()) return false;
+            c = client;
+        } finally {
+            lock.unlock();
+        }
+        return c.send(frame);
+    }
+
+    /**
+     * Tells the room we started or stopped typing. Only binary servers know
+     * about typing, and a stale report is worthless, so it is dropped rather
+     * than kept for the next connection.
+     */
+    public void sendTyping(boolean typing) {
+        if (!binary) return;
+        lock.lock();
+        try {
+            if (client != null) {
+                outbox.add(Presence.typing(typing));
+                ready.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Asks for what this session has not seen of a room: everything after
+     * the last tracked id, or the newest {@code latest} messages on a first
+     * visit. Text servers push history on their own, so this is a no-op there.
+     */
+    public void requestCatchUp(String room, int latest) {
+        if (!binary) return;
+        long last = offsets.get(room);
+        send(last > 0 ? HistoryRequest.after(room, last, 1000).toFrame() : HistoryRequest.latest(room, latest).toFrame());
+    }
+
+    public void requestHistory(HistoryRequest request) {
+        if (binary) send(request.toFrame());
+    }
+
+    /** Stops reconnecting and closes the current connection. */
+    public void close() {
+        closed = true;
+        transfers.close();
+        cache.close();
+        ChatClient c;
+        lock.lock();
+        try {
+            c = client;
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (c != null) c.close();
+        if (first != null) first.close();
+        if (thread != null) thread.interrupt();
+        if (writer != null) writer.interrupt();
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /** File uploads and downloads; only binary servers take them. */
+    public FileTransfers getTransfers() {
+        return transfers;
+    }
+
+    /** Rooms' newest messages from earlier runs against this server. */
+    public MessageCache getCache() {
+        return cache;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    /** Frames that did not fit in the outbox while disconnected. */
+    public long getDroppedFrames() {
+        lock.lock();
+        try {
+            return droppedFrames;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
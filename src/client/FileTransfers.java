@@ -0,0 +1,391 @@
+package client;
+
+import protocol.FileChunk;
+import protocol.Frame;
+import protocol.FrameType;
+import protocol.ProtocolException;
+import protocol.SharedFile;
+import protocol.Upload;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Uploads and downloads of shared files, on the session's connection beside
+ * its chat frames. Both survive reconnects: an upload asks the server how
+ * much it already has and goes on from there, and a download asks for the
+ * rest of what is in its {@code .part} file, so a dropped connection costs
+ * no more than the chunks in flight.
+ *
+ * <p>Uploads keep at most {@value #WINDOW} bytes unacknowledged, enough to
+ * keep the connection busy without letting a file queue up ahead of chat
+ * messages in the socket buffers. Downloads are written to
+ * {@code ~/.chatapp/files}, or the directory in the {@code chat.filesDir}
+ * system property.
+ */
+public class FileTransfers {
+
+    /** Called on the session thread or an upload's thread. */
+    public interface Listener {
+        /** Bytes moved so far; {@code done == size} once the transfer is complete. */
+        void onProgress(String name, long done, long size, boolean upload);
+
+        void onDownloaded(SharedFile file, Path path);
+
+        void onFailed(String name, String reason);
+    }
+
+    private static final long WINDOW = 256 * 1024;
+    // Downloads requested at once; the server takes up to 8 per connection.
+    private static final int MAX_DOWNLOADS = 4;
+    private static final String PART_SUFFIX = ".part";
+
+    private final ChatSession session;
+    private final Path dir;
+    private volatile Listener listener;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    // Guarded by lock.
+    private final Map<Long, Outgoing> uploads = new HashMap<>();
+    private final Map<Long, Incoming> downloads = new HashMap<>();
+    private final ArrayDeque<SharedFile> waiting = new ArrayDeque<>();
+    private boolean connected;
+    private boolean closed;
+
+    /** An upload; acked is -1 until the server has said where to go on from on this connection. */
+    private static final class Outgoing {
+        final long id = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+        final Path path;
+        final long size;
+        final String name;
+        long acked = -1;
+        long sent;
+        boolean finished;
+
+        Outgoing(Path path, long size) {
+            this.path = path;
+            this.size = size;
+            this.name = SharedFile.safeName(path.getFileName().toString());
+        }
+    }
+
+    private static final class Incoming {
+        final SharedFile file;
+        final Path part;
+        final FileChannel channel;
+        long received;
+
+        Incoming(SharedFile file, Path part, FileChannel channel, long received) {
+            this.file = file;
+            this.part = part;
+            this.channel = channel;
+            this.received = received;
+        }
+    }
+
+    FileTransfers(ChatSession session) {
+        this.session = session;
+        this.dir = Path.of(System.getProperty("chat.filesDir",
+                Path.of(System.getProperty("user.home"), ".chatapp", "files").toString()));
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Shares a file in the current room; its progress and failure go to the listener. */
+    public void upload(Path path) {
+        long size;
+        try {
+            size = Files.size(path);
+        } catch (IOException e) {
+            fail(path.getFileName().toString(), "Could not read " + path.getFileName());
+            return;
+        }
+        if (size == 0) {
+            fail(path.getFileName().toString(), path.getFileName() + " is empty");
+            return;
+        }
+        Outgoing up = new Outgoing(path, size);
+        lock.lock();
+        try {
+            if (closed) return;
+            uploads.put(up.id, up);
+            if (connected) session.sendNow(Upload.begin(up.id, up.size, up.name).toFrame());
+        } finally {
+            lock.unlock();
+        }
+        Thread.ofVirtual().name("upload-" + up.name).start(() -> send(up));
+    }
+
+    // Reads and sends chunks as the window allows, starting over from the server's count after a reconnect.
+    private void send(Outgoing up) {
+        try (FileChannel file = FileChannel.open(up.path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(FileChunk.UPLOAD_SIZE);
+            while (true) {
+                lock.lock();
+                try {
+                    while (!up.finished && (up.acked < 0 || up.sent >= up.size || up.sent - up.acked >= WINDOW)) {
+                        changed.await();
+                    }
+                    if (up.finished) return;
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), up.size - up.sent));
+                    while (buffer.hasRemaining()) {
+                        if (file.read(buffer, up.sent + buffer.position()) < 0) {
+                            throw new IOException(up.name + " changed while it was being sent");
+                        }
+                    }
+                    buffer.flip();
+                    // Sent holding the lock, so a chunk never reaches a new connection before the UPLOAD resuming it.
+                    if (session.sendNow(new FileChunk(up.id, up.sent, buffer).toFrame())) {
+                        up.sent += buffer.remaining();
+                    } else {
+                        up.acked = -1;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            lock.lock();
+            try {
+                up.finished = true;
+                uploads.remove(up.id);
+            } finally {
+                lock.unlock();
+            }
+            fail(up.name, "Could not send " + up.name + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Fetches a shared file, or reports the copy already downloaded. Files
+     * are fetched a few at a time; the rest wait their turn.
+     */
+    public void download(SharedFile file) {
+        Path target = pathOf(file);
+        if (Files.exists(target)) {
+            Listener l = listener;
+            if (l != null) l.onDownloaded(file, target);
+            return;
+        }
+        lock.lock();
+        try {
+            if (closed || downloads.containsKey(file.fileId()) || waiting.contains(file)) return;
+            if (downloads.size() >= MAX_DOWNLOADS) {
+                waiting.add(file);
+            } else {
+                start(file);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called holding the lock.
+    private void start(SharedFile file) {
+        Path part = dir.resolve(fileName(file) + PART_SUFFIX);
+        try {
+            Files.createDirectories(dir);
+            FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            long received = channel.size();
+            if (received > file.size()) {
+                channel.truncate(0);
+                received = 0;
+            }
+            Incoming down = new Incoming(file, part, channel, received);
+            downloads.put(file.fileId(), down);
+            if (received == file.size()) {
+                finish(down);
+            } else if (connected) {
+                session.sendNow(FileChunk.download(file.fileId(), received));
+            }
+        } catch (IOException e) {
+            fail(file.name(), "Could not save " + file.name() + ": " + e.getMessage());
+        }
+    }
+
+    /** Where a shared file is, or will be once downloaded. */
+    public Path pathOf(SharedFile file) {
+        return dir.resolve(fileName(file));
+    }
+
+    // The id keeps apart files shared under the same name.
+    private static String fileName(SharedFile file) {
+        return Long.toHexString(file.fileId()) + "-" + SharedFile.safeName(file.name());
+    }
+
+    /**
+     * Handles the frames of file transfers as they come off the connection.
+     *
+     * @return true if the frame was one, and so is not for the UI
+     */
+    boolean onFrame(Frame frame) {
+        try {
+            if (frame.getType() == FrameType.UPLOAD) {
+                onAck(Upload.from(frame));
+            } else if (frame.getType() == FrameType.FILE_CHUNK) {
+                onChunk(FileChunk.from(frame));
+            } else {
+                return false;
+            }
+        } catch (ProtocolException e) {
+            // Not worth the connection; the transfer resumes after the next reconnect.
+        }
+        return true;
+    }
+
+    private void onAck(Upload ack) {
+        Outgoing up;
+        lock.lock();
+        try {
+            up = uploads.get(ack.uploadId());
+            if (up == null) return;
+            if (ack.received() == Upload.REJECTED) {
+                // The server sent a notice saying why.
+                up.finished = true;
+                uploads.remove(up.id);
+                changed.signalAll();
+                return;
+            }
+            if (up.acked < 0) {
+                up.sent = ack.received();
+            }
+            up.acked = Math.max(up.acked, ack.received());
+            if (up.acked >= up.size) {
+                up.finished = true;
+                uploads.remove(up.id);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        Listener l = listener;
+        if (l != null) l.onProgress(up.name, Math.min(up.acked, up.size), up.size, true);
+    }
+
+    private void onChunk(FileChunk chunk) {
+        Incoming down;
+        lock.lock();
+        try {
+            down = downloads.get(chunk.id());
+            if (down == null) return;
+            if (chunk.offset() == FileChunk.NOT_FOUND) {
+                remove(down);
+                fail(down.file.name(), down.file.name() + " is no longer available");
+                return;
+            }
+            // Anything else is a repeat from before a reconnect.
+            if (chunk.offset() != down.received) return;
+            try {
+                while (chunk.data().hasRemaining()) {
+                    down.received += down.channel.write(chunk.data(), down.received);
+                }
+                if (down.received >= down.file.size()) {
+                    finish(down);
+                    return;
+                }
+            } catch (IOException e) {
+                remove(down);
+                fail(down.file.name(), "Could not save " + down.file.name() + ": " + e.getMessage());
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        Listener l = listener;
+        if (l != null) l.onProgress(down.file.name(), down.received, down.file.size(), false);
+    }
+
+    // Called holding the lock.
+    private void finish(Incoming down) throws IOException {
+        remove(down);
+        Path target = pathOf(down.file);
+        Files.move(down.part, target, StandardCopyOption.REPLACE_EXISTING);
+        Listener l = listener;
+        if (l != null) {
+            l.onProgress(down.file.name(), down.file.size(), down.file.size(), false);
+            l.onDownloaded(down.file, target);
+        }
+    }
+
+    // Called holding the lock; starts the next waiting download.
+    private void remove(Incoming down) {
+        downloads.remove(down.file.fileId());
+        try {
+            down.channel.close();
+        } catch (IOException ignored) {
+        }
+        SharedFile next = waiting.poll();
+        if (next != null) start(next);
+    }
+
+    private void fail(String name, String reason) {
+        Listener l = listener;
+        if (l != null) l.onFailed(name, reason);
+    }
+
+    /** Resumes every transfer on a new connection. */
+    void online() {
+        lock.lock();
+        try {
+            connected = true;
+            for (Outgoing up : uploads.values()) {
+                up.acked = -1;
+                session.sendNow(Upload.begin(up.id, up.size, up.name).toFrame());
+            }
+            for (Incoming down : downloads.values()) {
+                session.sendNow(FileChunk.download(down.file.fileId(), down.received));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Pauses uploads until the server says where to resume them. */
+    void offline() {
+        lock.lock();
+        try {
+            connected = false;
+            for (Outgoing up : uploads.values()) up.acked = -1;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops every transfer; downloads keep their {@code .part} files for next time. */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            for (Outgoing up : uploads.values()) up.finished = true;
+            uploads.clear();
+            waiting.clear();
+            for (Incoming down : downloads.values()) {
+                try {
+                    down.channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            downloads.clear();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
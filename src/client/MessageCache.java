@@ -0,0 +1,289 @@
+package client;
+
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.ProtocolException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * The newest messages of each room, kept on disk between runs so a window
+ * can show a room at once and only ask the server for what came after.
+ *
+ * <p>Each room is one memory-mapped file of {@value #ROOM_BYTES} bytes under
+ * {@code ~/.chatapp/cache/<host>_<port>}, or the directory in the
+ * {@code chat.cacheDir} system property; ids are only meaningful to the
+ * server that gave them.
+ *
+ * <pre>
+ * int    magic, version
+ * record ...     oldest first, then zeros to the end of the file
+ *
+ * record: int crc32c of the frame, then the frame in its wire encoding
+ * </pre>
+ *
+ * A record must follow the one before it in the room, so the cache never
+ * has a gap in it; a message that does not starts the room over. A full room
+ * drops its older half. Opening a room keeps the records that check out, up
+ * to the first torn or stale one, so a crash costs at most the tail. Only the
+ * most recently used rooms are kept, {@value #MAX_BYTES} bytes in all.
+ * Methods may be called from any thread; only {@link #open} touches the
+ * file system, and a room must be opened before it is read or appended to.
+ */
+public final class MessageCache implements Closeable {
+
+    private static final int MAGIC = 0x43484331;
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+    private static final int ROOM_BYTES = 256 * 1024;
+    private static final long MAX_BYTES = 16L << 20;
+    // A message bigger than this is not cached; it would leave room for too few others.
+    private static final int MAX_RECORD = ROOM_BYTES / 4;
+    private static final String SUFFIX = ".msgs";
+    // The server's room names, which are also safe file names.
+    private static final Pattern ROOM_NAME = Pattern.compile("[a-z0-9_-]{1,32}");
+
+    private final Path dir;
+    // Guarded by this, like the rooms.
+    private final CRC32C crc = new CRC32C();
+    private final Map<String, RoomFile> rooms = new HashMap<>();
+    private boolean closed;
+
+    /** One room's file and where its records start. */
+    private static final class RoomFile {
+        final FileChannel channel;
+        final MappedByteBuffer map;
+        int[] starts = new int[64];
+        int count;
+        int end = HEADER;
+        long lastId;
+
+        RoomFile(FileChannel channel, MappedByteBuffer map) {
+            this.channel = channel;
+            this.map = map;
+        }
+    }
+
+    public MessageCache(String host, int port) {
+        this.dir = Path.of(System.getProperty("chat.cacheDir",
+                Path.of(System.getProperty("user.home"), ".chatapp", "cache").toString()),
+                host.replaceAll("[^A-Za-z0-9.-]", "_") + "_" + port);
+    }
+
+    /**
+     * The newest cached messages of a room, oldest first, as copies that
+     * stay valid whatever the cache does next.
+     */
+    public synchronized List<Frame> latest(String room, int limit) {
+        RoomFile file = room(room);
+        if (file == null) return List.of();
+        List<Frame> frames = new ArrayList<>(Math.min(limit, file.count));
+        ByteBuffer records = file.map.duplicate();
+        for (int i = Math.max(0, file.count - limit); i < file.count; i++) {
+            records.limit(file.end).position(file.starts[i] + 4);
+            try {
+                Frame frame = FrameCodec.decode(records);
+                if (frame != null) frames.add(frame.detach().withIdAndRoom(frame.getId(), frame.getTimestamp(), room));
+            } catch (ProtocolException e) {
+                // Checked when the room was opened; a frame this client cannot read is just not shown.
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Adds the message that follows {@code previousId} in a room. If the
+     * room's cache does not end with that message, it is started over from
+     * this one, since whatever came between is not known.
+     */
+    public synchronized void append(String room, Frame frame, long previousId) {
+        if (frame.getId() <= 0) return;
+        RoomFile file = room(room);
+        if (file == null) return;
+        if (frame.getId() <= file.lastId) return;
+        byte[] record = FrameCodec.encode(frame.withIdAndRoom(frame.getId(), frame.getTimestamp(), ""));
+        if (file.lastId != previousId || record.length + 4 > MAX_RECORD) {
+            clear(file);
+            if (record.length + 4 > MAX_RECORD) return;
+        }
+        if (file.end + 4 + record.length > ROOM_BYTES) compact(file);
+
+        // The checksum goes in last, so a record cut short by a crash never checks out.
+        file.map.put(file.end + 4, record);
+        crc.reset();
+        crc.update(record);
+        file.map.putInt(file.end, (int) crc.getValue());
+        if (file.count == file.starts.length) file.starts = Arrays.copyOf(file.starts, file.count * 2);
+        file.starts[file.count++] = file.end;
+        file.end += 4 + record.length;
+        file.lastId = frame.getId();
+    }
+
+    // Keeps the newest records that fit in half the room, moved to the front.
+    private static void compact(RoomFile file) {
+        int keep = file.count;
+        while (keep > 0 && file.end - file.starts[file.count - keep] > (ROOM_BYTES - HEADER) / 2) keep--;
+        int from = keep == 0 ? file.end : file.starts[file.count - keep];
+        byte[] kept = new byte[file.end - from];
+        file.map.get(from, kept);
+        file.map.put(HEADER, kept);
+        zero(file.map, HEADER + kept.length, file.end);
+        for (int i = 0; i < keep; i++) {
+            file.starts[i] = file.starts[file.count - keep + i] - from + HEADER;
+        }
+        file.count = keep;
+        file.end = HEADER + kept.length;
+        if (keep == 0) file.lastId = 0;
+    }
+
+    private static void clear(RoomFile file) {
+        zero(file.map, HEADER, file.end);
+        file.count = 0;
+        file.end = HEADER;
+        file.lastId = 0;
+    }
+
+    // Writes only where something is left, so pages never used stay out of memory and off the disk.
+    private static void zero(ByteBuffer map, int from, int to) {
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            if (map.getLong(i) != 0) map.putLong(i, 0);
+        }
+        for (; i < to; i++) map.put(i, (byte) 0);
+    }
+
+    /**
+     * Opens a room's file, recovering it if a crash left it damaged, so that
+     * reading and appending afterwards never wait for the disk. Until then
+     * the room reads as empty and appends to it are dropped. Call it off the
+     * EDT; the session does when the server confirms a room.
+     */
+    public void open(String room) {
+        if (!ROOM_NAME.matcher(room).matches()) return;
+        Set<String> open;
+        synchronized (this) {
+            if (closed || rooms.containsKey(room)) return;
+            open = Set.copyOf(rooms.keySet());
+        }
+        RoomFile file = load(room, open);
+        if (file == null) return;
+        synchronized (this) {
+            if (!closed && !rooms.containsKey(room)) {
+                rooms.put(room, file);
+                return;
+            }
+        }
+        try {
+            file.channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // An opened room's file; null if it is not open or cannot be cached.
+    private RoomFile room(String room) {
+        return closed ? null : rooms.get(room);
+    }
+
+    private RoomFile load(String room, Set<String> open) {
+        Path path = dir.resolve(room + SUFFIX);
+        RoomFile file;
+        try {
+            Files.createDirectories(dir);
+            evict(path, open);
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                file = new RoomFile(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, ROOM_BYTES));
+                Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            // Not worth failing over: the room just loads from the server every time.
+            return null;
+        }
+        recover(file);
+        return file;
+    }
+
+    // Finds the records that check out and wipes whatever follows them.
+    private static void recover(RoomFile file) {
+        MappedByteBuffer map = file.map;
+        if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+            zero(map, 0, ROOM_BYTES);
+            map.putInt(0, MAGIC).putInt(4, VERSION);
+            return;
+        }
+        int pos = HEADER;
+        ByteBuffer view = map.duplicate();
+        CRC32C crc = new CRC32C();
+        while (pos + 8 <= ROOM_BYTES) {
+            int length = map.getInt(pos + 4);
+            // Zeros where the next record would be mark the end; the id sits after the type and flags.
+            if (length < 10 || pos + 8 + length > ROOM_BYTES) break;
+            crc.reset();
+            crc.update(view.limit(pos + 8 + length).position(pos + 4));
+            long id = map.getLong(pos + 10);
+            if ((int) crc.getValue() != map.getInt(pos) || id <= file.lastId) break;
+            if (file.count == file.starts.length) file.starts = Arrays.copyOf(file.starts, file.count * 2);
+            file.starts[file.count++] = pos;
+            file.lastId = id;
+            pos += 8 + length;
+        }
+        file.end = pos;
+        zero(map, pos, ROOM_BYTES);
+    }
+
+    // Deletes the least recently used rooms beyond what the cache may hold, making room for one more.
+    private void evict(Path opening, Set<String> open) throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(dir)) {
+            files = new ArrayList<>(list.filter(p -> p.getFileName().toString().endsWith(SUFFIX))
+                    .filter(p -> !p.equals(opening)).toList());
+        }
+        long allowed = MAX_BYTES / ROOM_BYTES - 1;
+        if (files.size() <= allowed) return;
+        Map<Path, FileTime> used = new HashMap<>();
+        for (Path p : files) used.put(p, Files.getLastModifiedTime(p));
+        files.sort(Comparator.comparing(used::get, Comparator.reverseOrder()));
+        for (Path p : files.subList((int) allowed, files.size())) {
+            String name = p.getFileName().toString();
+            if (open.contains(name.substring(0, name.length() - SUFFIX.length()))) continue;
+            Files.deleteIfExists(p);
+        }
+    }
+
+    /** Writes the rooms out and closes them. */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (RoomFile file : rooms.values()) {
+            try {
+                file.map.force();
+                file.channel.close();
+            } catch (IOException | RuntimeException ignored) {
+                // The mapping still reaches the file once the process ends.
+            }
+        }
+        rooms.clear();
+    }
+}
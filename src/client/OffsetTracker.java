@@ -0,0 +1,22 @@
+package client;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Highest message id seen per room. It outlives a single {@link ChatClient},
+ * so a reconnecting client can ask the server for exactly what it missed.
+ */
+public class OffsetTracker {
+
+    private final Map<String, Long> lastSeen = new ConcurrentHashMap<>();
+
+    public void update(String room, long id) {
+        if (id > 0) lastSeen.merge(room, id, Math::max);
+    }
+
+    /** @return the last id seen in the room, or 0 if none */
+    public long get(String room) {
+        return lastSeen.getOrDefault(room, 0L);
+    }
+}
@@ -0,0 +1,50 @@
+package client.ui;
+
+import protocol.SharedFile;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/** One message in a {@link MessageListView}. Layout fields belong to the view. */
+final class ChatEntry {
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm").withZone(ZoneId.systemDefault());
+
+    final long id;
+    final String sender;
+    final String text;
+    final long timestamp;
+    final boolean own;
+    // The file this entry shares, or null for a message.
+    final SharedFile file;
+    final LocalDate date;
+    // The time label, formatted once rather than on every repaint.
+    final String time;
+
+    // Whether a date separator is drawn above this entry.
+    boolean showDate;
+
+    // Width the height was measured at, the measured height, and the entry's
+    // position; positions only matter relative to the first entry.
+    int layoutWidth = -1;
+    int height;
+    long y;
+
+    ChatEntry(long id, String sender, String text, long timestamp, boolean own) {
+        this(id, sender, text, timestamp, own, null);
+    }
+
+    ChatEntry(long id, String sender, String text, long timestamp, boolean own, SharedFile file) {
+        this.id = id;
+        this.sender = sender;
+        this.text = text;
+        this.timestamp = timestamp;
+        this.own = own;
+        this.file = file;
+        Instant instant = Instant.ofEpochMilli(timestamp);
+        this.date = instant.atZone(ZoneId.systemDefault()).toLocalDate();
+        this.time = TIME.format(instant);
+    }
+}
@@ -1,55 +1,118 @@
 package client.ui;
 
-import client.ChatClient;
-import client.ClientReaderThread;
+import client.ChatSession;
+import client.FileTransfers;
+import protocol.Frame;
+import protocol.FrameType;
+import protocol.HistoryRequest;
+import protocol.Presence;
+import protocol.ProtocolException;
+import protocol.SearchRequest;
+import protocol.SharedFile;
+import protocol.TextCodec;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.awt.event.FocusAdapter;
 import java.awt.event.FocusEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.geom.AffineTransform;
 import java.awt.geom.Path2D;
 import java.awt.image.BufferedImage;
-import java.text.SimpleDateFormat;
-import java.time.*;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
-import java.util.Date;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 
 public class ChatWindow extends JFrame {
 
-    private final JPanel messagesPanel;
+    private final MessageListView messageList;
     private final JScrollPane scrollPane;
+    private final JLabel header;
+    private final JLabel typingLabel;
     private final JTextField inputField;
     private final JButton sendButton;
+    private final JButton attachButton;
+    private final JProgressBar transferProgress;
+    private final Thumbnails thumbnails;
+    private final UpdateBatcher updates;
+    private final ScrollAnimator scroller;
 
-    private final ChatClient client;
+    private final ChatSession client;
     private final String username;
+    private final UserStyles styles;
+    // Connection status shown in the header; empty while connected. EDT only.
+    private String status = "";
+    // Who is in the current room and who is typing, as the server last said. EDT only.
+    private final Map<String, Presence.State> present = new HashMap<>();
+    // When we last told the server we are typing; 0 once we have said we stopped.
+    private long typingSentAt;
+    // Files clicked before they were downloaded. EDT only.
+    private final Set<Long> openWhenDownloaded = new HashSet<>();
 
     private static final int MAX_BUBBLE_WIDTH = 300;
+    // Room a bubble needs around its text: tail, padding and the gaps beside it.
+    private static final int BUBBLE_CHROME = 48;
+    private static final int MIN_WRAP_WIDTH = 80;
     private static final int MESSAGE_VERTICAL_SPACE = 4;
+    // Messages held in memory; older ones are paged back in from the server on scroll.
+    private static final int MAX_MESSAGES = 1000;
+    private static final int HISTORY_PAGE = 50;
+    // Incoming updates are applied once per frame, using at most half of it.
+    private static final int FRAME_MILLIS = 16;
+    private static final int FRAME_BUDGET_MILLIS = 8;
+    // The server forgets typing after 5 s without a repeat.
+    private static final long TYPING_REFRESH_MILLIS = 3000;
     private static final Color WALLPAPER_BG = new Color(48, 48, 48);
     private static final Color WALLPAPER_DOT = new Color(60, 60, 60, 120);
 
-    private static final Color[] PALETTE = new Color[]{
-            new Color(37, 211, 102),
-            new Color(255, 121, 198),
-            new Color(129, 236, 236),
-            new Color(255, 234, 167),
-            new Color(250, 177, 160),
-            new Color(255, 118, 117),
-            new Color(189, 195, 199),
-            new Color(85, 239, 196)
-    };
-
-    private final Map<String, Color> userColors = new HashMap<>();
-    private LocalDate lastMessageDate = null;
-
-    public ChatWindow(ChatClient client, String username) {
+    // Fonts and formatters are immutable, so every window and message shares them.
+    private static final Font HEADER_FONT = new Font("Segoe UI", Font.BOLD, 16);
+    private static final Font TEXT_FONT = new Font("Segoe UI", Font.PLAIN, 14);
+    private static final Font BUTTON_FONT = new Font("Segoe UI", Font.BOLD, 13);
+    private static final Font NAME_FONT = new Font("Segoe UI", Font.BOLD, 12);
+    private static final Font DATE_FONT = new Font("Segoe UI", Font.PLAIN, 12);
+    private static final Font TIME_FONT = new Font("Segoe UI", Font.PLAIN, 10);
+    private static final Font TYPING_FONT = new Font("Segoe UI", Font.ITALIC, 12);
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("MMM d, yyyy");
+
+    // Paging state, touched only on the EDT.
+    private String room = "";
+    private final List<ChatEntry> pendingOlder = new ArrayList<>();
+    // Entries held until the room's first page is in, local and live alike.
+    private final List<ChatEntry> pendingLocal = new ArrayList<>();
+    // Matches of the search in progress, shown together once it ends.
+    private final List<ChatEntry> searchResults = new ArrayList<>();
+    private String searchQuery = "";
+    private boolean loadingLatest;
+    private boolean loadingOlder;
+    private boolean loadingNewer;
+    private boolean moreOlder;
+    private boolean newerEvicted;
+
+    // Per-batch state: whether the list was at the bottom when the batch began,
+    // and whether anything in it asked to follow new messages.
+    private Boolean batchAtBottom;
+    private boolean followRequested;
+
+    /** @param client a connected session, started by this window */
+    public ChatWindow(ChatSession client, String username) {
         this.client = client;
         this.username = username;
+        this.styles = new UserStyles(username);
 
         setTitle("Chat - " + username);
         setSize(540, 700);
@@ -58,11 +121,11 @@ public class ChatWindow extends JFrame {
         setLayout(new BorderLayout());
 
         // Header with subtle shadow
-        JLabel header = new JLabel("  Logged in as: " + username);
+        header = new JLabel("  Logged in as: " + username);
         header.setOpaque(true);
         header.setBackground(new Color(35, 39, 42));
         header.setForeground(Color.WHITE);
-        header.setFont(new Font("Segoe UI", Font.BOLD, 16));
+        header.setFont(HEADER_FONT);
         header.setBorder(BorderFactory.createEmptyBorder(12, 12, 12, 12));
         header.setBorder(BorderFactory.createCompoundBorder(
                 BorderFactory.createMatteBorder(0,0,1,0,new Color(80,80,80)),
@@ -70,19 +133,21 @@ public class ChatWindow extends JFrame {
         ));
         add(header, BorderLayout.NORTH);
 
-        // Messages panel
-        messagesPanel = new JPanel() {
+        // Messages list; only visible bubbles are laid out and painted
+        messageList = new MessageListView(new MessageListModel(MAX_MESSAGES), new MessageRenderer()) {
             private final BufferedImage pattern = createWallpaperPattern();
 
             @Override
             protected void paintComponent(Graphics g) {
                 Graphics2D g2 = (Graphics2D) g.create();
                 try {
+                    Rectangle clip = g2.getClipBounds();
                     g2.setColor(WALLPAPER_BG);
-                    g2.fillRect(0, 0, getWidth(), getHeight());
+                    g2.fillRect(clip.x, clip.y, clip.width, clip.height);
                     if (pattern != null) {
-                        for (int x = 0; x < getWidth(); x += pattern.getWidth()) {
-                            for (int y = 0; y < getHeight(); y += pattern.getHeight()) {
+                        int pw = pattern.getWidth(), ph = pattern.getHeight();
+                        for (int x = clip.x / pw * pw; x < clip.x + clip.width; x += pw) {
+                            for (int y = clip.y / ph * ph; y < clip.y + clip.height; y += ph) {
                                 g2.drawImage(pattern, x, y, null);
                             }
                         }
@@ -90,30 +155,53 @@ public class ChatWindow extends JFrame {
                 } finally {
                     g2.dispose();
                 }
+                super.paintComponent(g);
             }
         };
-        messagesPanel.setLayout(new BoxLayout(messagesPanel, BoxLayout.Y_AXIS));
-        messagesPanel.setOpaque(true);
-        messagesPanel.setBackground(WALLPAPER_BG);
+        messageList.setOpaque(true);
+        messageList.setBackground(WALLPAPER_BG);
 
-        messagesPanel.setBorder(new EmptyBorder(8, 8, 8, 8));
+        messageList.setBorder(new EmptyBorder(8, 8, 8, 8));
+        thumbnails = new Thumbnails(client.getTransfers(), messageList::repaint);
+        MouseAdapter fileClicks = new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                ChatEntry entry = messageList.entryAt(e.getPoint());
+                if (entry != null && entry.file != null) openFile(entry.file);
+            }
+
+            @Override
+            public void mouseMoved(MouseEvent e) {
+                ChatEntry entry = messageList.entryAt(e.getPoint());
+                messageList.setCursor(Cursor.getPredefinedCursor(
+                        entry != null && entry.file != null ? Cursor.HAND_CURSOR : Cursor.DEFAULT_CURSOR));
+            }
+        };
+        messageList.addMouseListener(fileClicks);
+        messageList.addMouseMotionListener(fileClicks);
 
-        scrollPane = new JScrollPane(messagesPanel);
+        scrollPane = new JScrollPane(messageList);
         scrollPane.setOpaque(false);
         scrollPane.getViewport().setOpaque(false);
         scrollPane.setBorder(null);
         scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED);
         scrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
         scrollPane.getVerticalScrollBar().setUnitIncrement(16);
+        scrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+            if (!e.getValueIsAdjusting()) onScrolled();
+        });
         add(scrollPane, BorderLayout.CENTER);
 
+        scroller = new ScrollAnimator(scrollPane.getVerticalScrollBar(), FRAME_MILLIS);
+        updates = new UpdateBatcher(FRAME_MILLIS, FRAME_BUDGET_MILLIS, this::finishBatch);
+
         // Input panel with placeholder
         JPanel inputPanel = new JPanel(new BorderLayout(8, 8));
         inputPanel.setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
         inputPanel.setBackground(new Color(40, 40, 40));
 
         inputField = new JTextField();
-        inputField.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        inputField.setFont(TEXT_FONT);
         inputField.setBorder(BorderFactory.createCompoundBorder(
                 BorderFactory.createLineBorder(new Color(70, 70, 70)),
                 new EmptyBorder(8, 8, 8, 8)
@@ -140,181 +228,633 @@ public class ChatWindow extends JFrame {
         });
 
         sendButton = new JButton("Send");
-        sendButton.setFont(new Font("Segoe UI", Font.BOLD, 13));
+        sendButton.setFont(BUTTON_FONT);
         sendButton.setBackground(new Color(10, 132, 255));
         sendButton.setForeground(Color.WHITE);
         sendButton.setFocusPainted(false);
         sendButton.setBorder(BorderFactory.createEmptyBorder(8, 14, 8, 14));
 
+        attachButton = new JButton("+");
+        attachButton.setFont(BUTTON_FONT);
+        attachButton.setToolTipText("Share a file");
+        attachButton.setBackground(new Color(70, 70, 70));
+        attachButton.setForeground(Color.WHITE);
+        attachButton.setFocusPainted(false);
+        attachButton.setBorder(BorderFactory.createEmptyBorder(8, 12, 8, 12));
+
+        inputPanel.add(attachButton, BorderLayout.WEST);
         inputPanel.add(inputField, BorderLayout.CENTER);
         inputPanel.add(sendButton, BorderLayout.EAST);
-        add(inputPanel, BorderLayout.SOUTH);
+
+        // Shown only while a file is on its way.
+        transferProgress = new JProgressBar(0, 1000);
+        transferProgress.setStringPainted(true);
+        transferProgress.setFont(TIME_FONT);
+        transferProgress.setBorder(new EmptyBorder(0, 8, 6, 8));
+        transferProgress.setBackground(new Color(40, 40, 40));
+        transferProgress.setVisible(false);
+
+        // A blank line rather than nothing, so the input does not move when someone starts typing.
+        typingLabel = new JLabel(" ");
+        typingLabel.setOpaque(true);
+        typingLabel.setBackground(new Color(40, 40, 40));
+        typingLabel.setForeground(Color.LIGHT_GRAY);
+        typingLabel.setFont(TYPING_FONT);
+        typingLabel.setBorder(new EmptyBorder(4, 12, 0, 12));
+
+        JPanel south = new JPanel(new BorderLayout());
+        south.add(typingLabel, BorderLayout.NORTH);
+        south.add(inputPanel, BorderLayout.CENTER);
+        south.add(transferProgress, BorderLayout.SOUTH);
+        add(south, BorderLayout.SOUTH);
 
         sendButton.addActionListener(e -> sendMessage());
+        attachButton.addActionListener(e -> chooseFile());
         inputField.addActionListener(e -> sendMessage());
+        inputField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                onInputChanged();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                onInputChanged();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+
+        client.getTransfers().setListener(new FileTransfers.Listener() {
+            @Override
+            public void onProgress(String name, long done, long size, boolean upload) {
+                updates.submit(() -> showProgress(name, done, size, upload));
+            }
+
+            @Override
+            public void onDownloaded(SharedFile file, Path path) {
+                updates.submit(() -> {
+                    thumbnails.downloaded(file, path);
+                    if (openWhenDownloaded.remove(file.fileId())) open(path);
+                });
+            }
+
+            @Override
+            public void onFailed(String name, String reason) {
+                appendMessage(TextCodec.SERVER_SENDER, reason, System.currentTimeMillis());
+            }
+        });
+
+        client.start(new ChatSession.Listener() {
+            @Override
+            public void onFrame(Frame frame) {
+                switch (frame.getType()) {
+                    case MESSAGE -> {
+                        if (frame.hasFlag(Frame.FLAG_SEARCH)) {
+                            onSearchResult(frame);
+                        } else {
+                            appendMessage(frame.getId(), frame.getSender(), frame.text(),
+                                    frame.getTimestamp(), frame.hasFlag(Frame.FLAG_HISTORY));
+                        }
+                    }
+                    case FILE -> appendFile(frame);
+                    case SYSTEM -> appendMessage(TextCodec.SERVER_SENDER, frame.text(), frame.getTimestamp());
+                    case DIRECT -> appendMessage(frame.getSender(), directText(frame), frame.getTimestamp());
+                    case JOIN -> onJoined(frame.getRoom());
+                    case HISTORY_END -> onHistoryEnd(frame.getRoom(), HistoryRequest.hasMore(frame));
+                    case SEARCH_END -> onSearchEnd(frame.getRoom(), SearchRequest.hasMore(frame));
+                    case PRESENCE -> {
+                        try {
+                            onPresence(Presence.from(frame));
+                        } catch (ProtocolException ignored) {
+                            // Presence is cosmetic; a bad frame is not worth the connection.
+                        }
+                    }
+                    default -> { }
+                }
+            }
 
-        new ClientReaderThread(client, this).start();
+            @Override
+            public void onStateChanged(ChatSession.State state, long retryMillis) {
+                updates.submit(() -> {
+                    status = switch (state) {
+                        case CONNECTED -> "";
+                        case RECONNECTING -> "reconnecting in " + Math.max(1, (retryMillis + 999) / 1000) + "s…";
+                        case CLOSED -> "offline";
+                    };
+                    // The next connection starts with a fresh snapshot.
+                    if (state != ChatSession.State.CONNECTED) {
+                        present.clear();
+                        updateTyping();
+                    }
+                    updateHeader();
+                });
+            }
+        });
 
         setVisible(true);
     }
 
     private void sendMessage() {
         String msg = inputField.getText().trim();
-        if (!msg.isEmpty() && !msg.equals("Type a message...")) {
-            client.send(username + ": " + msg);
-            appendMessage(username + ": " + msg);
+        if (msg.startsWith("/")) {
+            // Commands go to the server; its reply shows up as a message.
+            Frame command = TextCodec.parseCommand(msg);
+            if (command != null) {
+                client.send(command);
+                if (command.getType() == FrameType.DIRECT && command.payloadLength() > 0) {
+                    appendMessage(username, "(to " + command.getRoom() + ") " + command.text(), System.currentTimeMillis());
+                } else if (command.getType() == FrameType.SEARCH) {
+                    searchQuery = SearchRequest.query(command).trim();
+                    searchResults.clear();
+                }
+            } else {
+                appendMessage(TextCodec.SERVER_SENDER, "Unknown command " + msg.split("\\s+", 2)[0], System.currentTimeMillis());
+            }
+            inputField.setText("");
+        } else if (!msg.isEmpty() && !msg.equals("Type a message...")) {
+            client.send(Frame.message(username, "", msg));
+            appendMessage(username, msg, System.currentTimeMillis());
+            // The server stops our typing when the message arrives; no need to say so.
+            typingSentAt = 0;
             inputField.setText("");
         }
     }
 
-    public void appendMessage(String msg) {
-        SwingUtilities.invokeLater(() -> {
-            String sender;
-            String content;
-            int colonIndex = msg.indexOf(':');
-            if (colonIndex > 0) {
-                sender = msg.substring(0, colonIndex).trim();
-                content = msg.substring(colonIndex + 1).trim();
-            } else {
-                sender = "Unknown";
-                content = msg;
+    private void chooseFile() {
+        if (!client.isBinary()) {
+            appendMessage(TextCodec.SERVER_SENDER, "This server does not take files", System.currentTimeMillis());
+            return;
+        }
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            client.getTransfers().upload(chooser.getSelectedFile().toPath());
+        }
+    }
+
+    // Opens a downloaded file, or downloads it and opens it then.
+    private void openFile(SharedFile file) {
+        Path path = client.getTransfers().pathOf(file);
+        if (Files.exists(path)) {
+            open(path);
+        } else {
+            openWhenDownloaded.add(file.fileId());
+            client.getTransfers().download(file);
+        }
+    }
+
+    private void open(Path path) {
+        if (!Desktop.isDesktopSupported() || !Desktop.getDesktop().isSupported(Desktop.Action.OPEN)) {
+            appendMessage(TextCodec.SERVER_SENDER, "Saved to " + path, System.currentTimeMillis());
+            return;
+        }
+        // Handing the file to another application can take a moment.
+        Thread.ofVirtual().start(() -> {
+            try {
+                Desktop.getDesktop().open(path.toFile());
+            } catch (IOException | RuntimeException e) {
+                appendMessage(TextCodec.SERVER_SENDER, "Saved to " + path, System.currentTimeMillis());
+            }
+        });
+    }
+
+    private void showProgress(String name, long done, long size, boolean upload) {
+        if (done >= size) {
+            transferProgress.setVisible(false);
+            return;
+        }
+        transferProgress.setValue((int) (done * 1000 / size));
+        transferProgress.setString((upload ? "Sending " : "Receiving ") + name + "  ·  "
+                + SharedFile.formatSize(done) + " of " + SharedFile.formatSize(size));
+        transferProgress.setVisible(true);
+    }
+
+    // Direct messages show in the current room, marked with who they were for.
+    private String directText(Frame frame) {
+        return frame.getSender().equals(username)
+                ? "(to " + frame.getRoom() + ") " + frame.text()
+                : "(direct) " + frame.text();
+    }
+
+    public void appendMessage(String sender, String content, long timestamp) {
+        appendMessage(0, sender, content, timestamp, false);
+    }
+
+    /**
+     * Adds a message from the server. History frames older than what is shown
+     * are held until the page ends and then inserted above in one go.
+     */
+    public void appendMessage(long id, String sender, String content, long timestamp, boolean history) {
+        String from = sender.isEmpty() ? "Unknown" : sender;
+        ChatEntry entry = new ChatEntry(id, from, content, timestamp, from.equals(username));
+        updates.submit(() -> addMessage(entry, history));
+    }
+
+    private void appendFile(Frame frame) {
+        ChatEntry entry = entryOf(frame);
+        if (entry == null) return;
+        boolean history = frame.hasFlag(Frame.FLAG_HISTORY);
+        updates.submit(() -> addMessage(entry, history));
+    }
+
+    // A message or file frame as an entry; null for a file frame that does not parse.
+    private ChatEntry entryOf(Frame frame) {
+        String from = frame.getSender().isEmpty() ? "Unknown" : frame.getSender();
+        if (frame.getType() != FrameType.FILE) {
+            return new ChatEntry(frame.getId(), from, frame.text(), frame.getTimestamp(), from.equals(username));
+        }
+        try {
+            SharedFile file = SharedFile.from(frame);
+            return new ChatEntry(frame.getId(), from, file.describe(), frame.getTimestamp(), from.equals(username), file);
+        } catch (ProtocolException e) {
+            return null;
+        }
+    }
+
+    // The frame an entry came from, near enough to cache: its id, sender, time and content.
+    private Frame frameOf(ChatEntry entry) {
+        Frame frame = entry.file != null ? entry.file.toFrame(entry.sender) : Frame.message(entry.sender, "", entry.text);
+        return frame.withIdAndRoom(entry.id, entry.timestamp, room);
+    }
+
+    /**
+     * Called when the server confirms the room. A new room starts from its
+     * cached messages and catches up from there, or else from its latest.
+     */
+    public void onJoined(String joined) {
+        updates.submit(() -> {
+            if (joined.equals(room)) {
+                client.requestCatchUp(room, HISTORY_PAGE);
+                return;
             }
-            boolean isOwn = sender.equals(username);
-            addMessage(sender, escapeHtml(content), isOwn, new Date());
+            room = joined;
+            // Who is here arrives next, in a snapshot.
+            present.clear();
+            updateTyping();
+            updateHeader();
+            // Keep the server's join notice so it shows below the room's history.
+            ChatEntry last = messageList.getModel().last();
+            ChatEntry keep = last != null && last.id == 0 && last.sender.equals(TextCodec.SERVER_SENDER) ? last : null;
+            if (!showCached(keep)) reload(keep);
         });
     }
 
-    private void addMessage(String sender, String message, boolean isOwn, Date date) {
-        LocalDate messageDate = toLocalDate(date);
-        if (lastMessageDate == null || !messageDate.equals(lastMessageDate)) {
-            messagesPanel.add(createDateSeparator(messageDate));
-            messagesPanel.add(Box.createVerticalStrut(MESSAGE_VERTICAL_SPACE));
-            lastMessageDate = messageDate;
+    // Shows the room as it was last time and asks only for what came after; false if nothing is cached.
+    private boolean showCached(ChatEntry keep) {
+        if (!client.isBinary()) return false;
+        List<Frame> cached = client.getCache().latest(room, HISTORY_PAGE);
+        if (cached.isEmpty()) return false;
+        scroller.stop();
+        messageList.clear();
+        pendingOlder.clear();
+        pendingLocal.clear();
+        if (keep != null) pendingLocal.add(keep);
+        for (Frame frame : cached) {
+            ChatEntry entry = entryOf(frame);
+            if (entry != null) messageList.append(entry);
+        }
+        moreOlder = true;
+        newerEvicted = false;
+        loadingOlder = false;
+        loadingNewer = true;
+        loadingLatest = true;
+        followRequested = true;
+        client.requestHistory(HistoryRequest.after(room, newestId(), HISTORY_PAGE));
+        return true;
+    }
+
+    // Reports typing when the input gets text, again every few seconds while it keeps changing, and once when it is cleared.
+    private void onInputChanged() {
+        String text = inputField.getText();
+        boolean typing = !text.isBlank() && !text.equals("Type a message...");
+        long now = System.currentTimeMillis();
+        if (typing && now - typingSentAt >= TYPING_REFRESH_MILLIS) {
+            typingSentAt = now;
+            client.sendTyping(true);
+        } else if (!typing && typingSentAt != 0) {
+            typingSentAt = 0;
+            client.sendTyping(false);
         }
+    }
 
-        JPanel wrapper = new JPanel(new FlowLayout(isOwn ? FlowLayout.RIGHT : FlowLayout.LEFT, 6, 0));
-        wrapper.setOpaque(false);
-        wrapper.setBorder(BorderFactory.createEmptyBorder(2, 0, 2, 0));
-
-        Color bubbleColor = isOwn ? PALETTE[0] : getColorForUser(sender);
-        Color textColor = isLight(bubbleColor) ? Color.BLACK : Color.WHITE;
-        Color nameColor = darken(textColor, 0.25f);
-
-        BubblePanel bubble = new BubblePanel(isOwn, bubbleColor);
-        bubble.setLayout(new BoxLayout(bubble, BoxLayout.Y_AXIS));
-        bubble.setOpaque(false);
-        bubble.setBorder(new EmptyBorder(6, 10, 6, 10));
-        bubble.setMaximumSize(new Dimension(MAX_BUBBLE_WIDTH + 40, Integer.MAX_VALUE));
-        bubble.setAlignmentX(isOwn ? Component.RIGHT_ALIGNMENT : Component.LEFT_ALIGNMENT);
-
-        // Avatar + name
-        JLabel avatar = new JLabel(getInitials(sender));
-        avatar.setFont(new Font("Segoe UI", Font.BOLD, 12));
-        avatar.setForeground(Color.WHITE);
-        avatar.setOpaque(true);
-        avatar.setBackground(darken(bubbleColor, 0.2f));
-        avatar.setBorder(new EmptyBorder(2,6,2,6));
-        avatar.setAlignmentX(Component.LEFT_ALIGNMENT);
-
-        JLabel nameLabel = new JLabel(sender);
-        nameLabel.setFont(new Font("Segoe UI", Font.BOLD, 12));
-        nameLabel.setForeground(nameColor);
-        nameLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
-
-        bubble.add(avatar);
-        bubble.add(Box.createVerticalStrut(2));
-        bubble.add(nameLabel);
-        bubble.add(Box.createVerticalStrut(2));
-
-        JLabel textLabel = new JLabel("<html><body style='width:" + MAX_BUBBLE_WIDTH + "px'>" + message + "</body></html>");
-        textLabel.setFont(new Font("Segoe UI", Font.PLAIN, 14));
-        textLabel.setOpaque(false);
-        textLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
-        textLabel.setForeground(textColor);
-        bubble.add(textLabel);
-
-        bubble.add(Box.createVerticalStrut(2));
-        JLabel timeLabel = new JLabel(new SimpleDateFormat("HH:mm").format(date));
-        timeLabel.setFont(new Font("Segoe UI", Font.PLAIN, 10));
-        timeLabel.setForeground(darken(nameColor, 0.2f));
-        timeLabel.setAlignmentX(Component.RIGHT_ALIGNMENT);
-        bubble.add(timeLabel);
-
-        wrapper.add(bubble);
-        messagesPanel.add(wrapper);
-        messagesPanel.add(Box.createVerticalStrut(MESSAGE_VERTICAL_SPACE));
-
-        messagesPanel.revalidate();
-        messagesPanel.repaint();
-        SwingUtilities.invokeLater(() ->
-                scrollPane.getVerticalScrollBar().setValue(
-                        scrollPane.getVerticalScrollBar().getMaximum() - scrollPane.getVerticalScrollBar().getVisibleAmount()
-                )
-        );
-
-
-        // Smooth scroll
-        SwingUtilities.invokeLater(() -> {
-            JScrollBar bar = scrollPane.getVerticalScrollBar();
-            int target = bar.getMaximum() - bar.getVisibleAmount();
-
-            Timer timer = new Timer(5, null);
-            timer.addActionListener(e -> {
-                int current = bar.getValue();
-                int step = Math.max(1, (target - current) / 8);
-                bar.setValue(Math.min(current + step, target));
-                if (bar.getValue() >= target) timer.stop();
+    /** Applies a presence snapshot or delta for the current room. */
+    public void onPresence(Presence update) {
+        updates.submit(() -> {
+            if (!update.room().equals(room)) return;
+            if (update.snapshot()) present.clear();
+            update.users().forEach((user, state) -> {
+                if (state == Presence.State.OFFLINE) {
+                    present.remove(user);
+                } else {
+                    present.put(user, state);
+                }
             });
-            timer.start();
+            updateHeader();
+            updateTyping();
         });
     }
 
-    private JComponent createDateSeparator(LocalDate date) {
-        String text;
-        LocalDate today = LocalDate.now();
-        if (date.equals(today)) text = "Today";
-        else if (date.equals(today.minusDays(1))) text = "Yesterday";
-        else text = date.format(DateTimeFormatter.ofPattern("MMM d, yyyy"));
+    private void updateTyping() {
+        List<String> typing = new ArrayList<>(2);
+        present.forEach((user, state) -> {
+            if (state == Presence.State.TYPING && !user.equalsIgnoreCase(username)) typing.add(user);
+        });
+        typingLabel.setText(switch (typing.size()) {
+            case 0 -> " ";
+            case 1 -> typing.get(0) + " is typing…";
+            case 2 -> typing.get(0) + " and " + typing.get(1) + " are typing…";
+            default -> "Several people are typing…";
+        });
+    }
+
+    private void updateHeader() {
+        StringBuilder text = new StringBuilder("  Logged in as: ").append(username);
+        if (!room.isEmpty()) text.append("  ·  #").append(room);
+        if (!present.isEmpty()) text.append("  ·  ").append(present.size()).append(" online");
+        if (!status.isEmpty()) text.append("  ·  ").append(status);
+        header.setText(text.toString());
+    }
+
+    /** Called at the end of each history page for a room. */
+    public void onHistoryEnd(String endRoom, boolean more) {
+        updates.submit(() -> {
+            if (!endRoom.equals(room)) return;
+            if (loadingNewer) {
+                loadingNewer = false;
+                newerEvicted = more;
+                // Caught up from the cache, or a page short of it with the rest paged in as the user scrolls.
+                if (loadingLatest) addPendingLocal();
+                return;
+            }
+            if (!pendingOlder.isEmpty()) {
+                pendingOlder.sort((a, b) -> Long.compare(a.id, b.id));
+                prependOlder(new ArrayList<>(pendingOlder));
+                pendingOlder.clear();
+            }
+            moreOlder = more;
+            loadingOlder = false;
+            if (loadingLatest) addPendingLocal();
+        });
+    }
+
+    private void addPendingLocal() {
+        loadingLatest = false;
+        List<ChatEntry> held = new ArrayList<>(pendingLocal);
+        pendingLocal.clear();
+        for (ChatEntry entry : held) addMessage(entry, false);
+    }
+
+    private void onSearchResult(Frame frame) {
+        ChatEntry entry = new ChatEntry(frame.getId(), frame.getSender(), frame.text(), frame.getTimestamp(),
+                frame.getSender().equals(username));
+        updates.submit(() -> searchResults.add(entry));
+    }
+
+    /** Called when the matches of a search have all arrived; lists them in a window of their own. */
+    public void onSearchEnd(String searchRoom, boolean more) {
+        updates.submit(() -> {
+            DefaultListModel<String> lines = new DefaultListModel<>();
+            for (ChatEntry e : searchResults) {
+                lines.addElement(e.sender + "  ·  " + e.date.format(DATE_FORMAT) + " " + e.time + ":  " + e.text);
+            }
+            if (lines.isEmpty()) lines.addElement("No messages found.");
+            else if (more) lines.addElement("Showing the newest " + searchResults.size() + " matches.");
+            searchResults.clear();
+
+            JList<String> list = new JList<>(lines);
+            list.setFont(TEXT_FONT);
+            JDialog dialog = new JDialog(this, "Search #" + searchRoom + ": " + searchQuery, false);
+            dialog.add(new JScrollPane(list));
+            dialog.setSize(480, 360);
+            dialog.setLocationRelativeTo(this);
+            dialog.setVisible(true);
+        });
+    }
+
+    // Drops what is shown and fetches the room's latest page; local entries wait for it.
+    private void reload(ChatEntry keep) {
+        scroller.stop();
+        messageList.clear();
+        pendingOlder.clear();
+        pendingLocal.clear();
+        if (keep != null) pendingLocal.add(keep);
+        moreOlder = false;
+        newerEvicted = false;
+        loadingNewer = false;
+        loadingOlder = true;
+        loadingLatest = true;
+        client.requestHistory(HistoryRequest.latest(room, HISTORY_PAGE));
+    }
+
+    private void addMessage(ChatEntry entry, boolean history) {
+        MessageListModel model = messageList.getModel();
+        if (entry.id == 0) {
+            if (loadingLatest) {
+                pendingLocal.add(entry);
+                return;
+            }
+            if (newerEvicted && entry.own) {
+                // Jump back to the present rather than leave a gap above our own message.
+                reload(entry);
+                return;
+            }
+        } else {
+            long oldest = oldestId(), newest = newestId();
+            if (history && oldest > 0 && entry.id < oldest) {
+                pendingOlder.add(entry);
+                return;
+            }
+            // Live messages wait for the page being loaded, so none of it lands below them.
+            if (loadingLatest && !history) {
+                pendingLocal.add(entry);
+                return;
+            }
+            // Already shown, e.g. a catch-up overlapping live messages.
+            if (oldest > 0 && entry.id >= oldest && entry.id <= newest) return;
+            // Newer messages are fetched page by page once the user scrolls back down.
+            if (newerEvicted && !history) return;
+            // Shown below the newest message, so it is the one after it in the room.
+            if (client.isBinary()) client.getCache().append(room, frameOf(entry), newest);
+        }
 
-        JLabel label = new JLabel(text);
-        label.setFont(new Font("Segoe UI", Font.PLAIN, 12));
-        label.setForeground(new Color(200, 200, 200));
-        label.setOpaque(true);
-        label.setBackground(new Color(80, 80, 80, 140));
-        label.setBorder(new EmptyBorder(6, 12, 6, 12));
+        // The scroll bar only catches up after the batch is laid out, so judge it once per batch.
+        if (batchAtBottom == null) batchAtBottom = isAtBottom();
+        boolean evicting = model.size() == model.capacity();
+        messageList.append(entry);
+        if (evicting) moreOlder = true;
+        if (batchAtBottom || entry.own) followRequested = true;
+    }
+
+    // Runs once per frame after the batch: one layout pass, then at most one scroll.
+    private void finishBatch() {
+        if (followRequested) {
+            scrollPane.validate();
+            scroller.scrollToBottom();
+        }
+        batchAtBottom = null;
+        followRequested = false;
+    }
+
+    private boolean isAtBottom() {
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - 4;
+    }
 
-        JPanel panel = new JPanel();
-        panel.setOpaque(false);
-        panel.setLayout(new BoxLayout(panel, BoxLayout.X_AXIS));
-        panel.add(Box.createHorizontalGlue());
-        panel.add(label);
-        panel.add(Box.createHorizontalGlue());
-        return panel;
+    private void prependOlder(List<ChatEntry> older) {
+        MessageListModel model = messageList.getModel();
+        if (model.size() + older.size() > model.capacity()) newerEvicted = true;
+        int added = messageList.prepend(older);
+        // Keep the messages that were on screen where they were.
+        scrollPane.validate();
+        JViewport viewport = scrollPane.getViewport();
+        Point p = viewport.getViewPosition();
+        viewport.setViewPosition(new Point(p.x, p.y + added));
     }
 
-    private static LocalDate toLocalDate(Date date) {
-        return Instant.ofEpochMilli(date.getTime()).atZone(ZoneId.systemDefault()).toLocalDate();
+    // Pages in older history at the top and newer history at the bottom.
+    private void onScrolled() {
+        if (loadingOlder || loadingNewer || !client.isBinary()) return;
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        if (bar.getValue() == 0 && moreOlder && oldestId() > 0) {
+            loadingOlder = true;
+            client.requestHistory(HistoryRequest.before(room, oldestId(), HISTORY_PAGE));
+        } else if (newerEvicted && bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum()) {
+            loadingNewer = true;
+            client.requestHistory(HistoryRequest.after(room, newestId(), HISTORY_PAGE));
+        }
+    }
+
+    // Ids of the oldest and newest server messages shown, or 0; local entries have no id.
+    private long oldestId() {
+        MessageListModel model = messageList.getModel();
+        for (int i = 0; i < model.size(); i++) {
+            if (model.get(i).id > 0) return model.get(i).id;
+        }
+        return 0;
     }
 
-    private Color getColorForUser(String user) {
-        if (user == null) return PALETTE[6];
-        String key = user.toLowerCase();
-        if (userColors.containsKey(key)) return userColors.get(key);
+    private long newestId() {
+        MessageListModel model = messageList.getModel();
+        for (int i = model.size() - 1; i >= 0; i--) {
+            if (model.get(i).id > 0) return model.get(i).id;
+        }
+        return 0;
+    }
 
-        int index = Math.abs(key.hashCode()) % PALETTE.length;
-        if (index == 0) index = (index + 1) % PALETTE.length;
-        Color c = PALETTE[index];
-        userColors.put(key, c);
-        return c;
+    private static String dateText(LocalDate date) {
+        LocalDate today = LocalDate.now();
+        if (date.equals(today)) return "Today";
+        if (date.equals(today.minusDays(1))) return "Yesterday";
+        return date.format(DATE_FORMAT);
     }
 
-    private String escapeHtml(String text) {
-        if (text == null) return "";
-        return text.replace("&", "&amp;")
-                .replace("<", "&lt;")
-                .replace(">", "&gt;")
-                .replace("\"", "&quot;")
-                .replace("'", "&#39;");
+    /**
+     * Draws every message with one set of components: a date separator above a
+     * bubble holding the avatar, name, text and time. Only the view calls it.
+     */
+    private final class MessageRenderer implements MessageListView.Renderer {
+        private final JPanel row = new JPanel(new BorderLayout());
+        private final JPanel separator = new JPanel();
+        private final JLabel dateLabel = new JLabel();
+        private final JPanel wrapper = new JPanel(new FlowLayout(FlowLayout.LEFT, 6, 0));
+        private final BubblePanel bubble = new BubblePanel(false, WALLPAPER_BG);
+        private final JLabel avatar = new JLabel();
+        private final JLabel nameLabel = new JLabel();
+        private final TextBlock textBlock = new TextBlock();
+        private final JLabel thumbnail = new JLabel();
+        private final Thumbnails.ThumbnailIcon thumbnailIcon = thumbnails.newIcon();
+        private final JLabel timeLabel = new JLabel();
+
+        MessageRenderer() {
+            row.setOpaque(false);
+
+            dateLabel.setFont(DATE_FONT);
+            dateLabel.setForeground(new Color(200, 200, 200));
+            dateLabel.setOpaque(true);
+            dateLabel.setBackground(new Color(80, 80, 80, 140));
+            dateLabel.setBorder(new EmptyBorder(6, 12, 6, 12));
+
+            separator.setOpaque(false);
+            separator.setLayout(new BoxLayout(separator, BoxLayout.X_AXIS));
+            separator.setBorder(BorderFactory.createEmptyBorder(0, 0, MESSAGE_VERTICAL_SPACE, 0));
+            separator.add(Box.createHorizontalGlue());
+            separator.add(dateLabel);
+            separator.add(Box.createHorizontalGlue());
+
+            wrapper.setOpaque(false);
+            wrapper.setBorder(BorderFactory.createEmptyBorder(2, 0, 2 + MESSAGE_VERTICAL_SPACE, 0));
+
+            bubble.setLayout(new BoxLayout(bubble, BoxLayout.Y_AXIS));
+            bubble.setBorder(new EmptyBorder(6, 10, 6, 10));
+            bubble.setMaximumSize(new Dimension(MAX_BUBBLE_WIDTH + 40, Integer.MAX_VALUE));
+
+            // Avatar + name
+            avatar.setFont(NAME_FONT);
+            avatar.setForeground(Color.WHITE);
+            avatar.setOpaque(true);
+            avatar.setBorder(new EmptyBorder(2,6,2,6));
+            avatar.setAlignmentX(Component.LEFT_ALIGNMENT);
+
+            nameLabel.setFont(NAME_FONT);
+            nameLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
+
+            textBlock.setFont(TEXT_FONT);
+            textBlock.setAlignmentX(Component.LEFT_ALIGNMENT);
+
+            // Loads its image only when painted, so images scrolled past are never fetched.
+            thumbnail.setIcon(thumbnailIcon);
+            thumbnail.setFont(TIME_FONT);
+            thumbnail.setAlignmentX(Component.LEFT_ALIGNMENT);
+            thumbnail.setBorder(new EmptyBorder(2, 0, 2, 0));
+
+            timeLabel.setFont(TIME_FONT);
+            timeLabel.setAlignmentX(Component.RIGHT_ALIGNMENT);
+
+            bubble.add(avatar);
+            bubble.add(Box.createVerticalStrut(2));
+            bubble.add(nameLabel);
+            bubble.add(Box.createVerticalStrut(2));
+            bubble.add(thumbnail);
+            bubble.add(textBlock);
+            bubble.add(Box.createVerticalStrut(2));
+            bubble.add(timeLabel);
+
+            wrapper.add(bubble);
+            row.add(separator, BorderLayout.NORTH);
+            row.add(wrapper, BorderLayout.CENTER);
+        }
+
+        @Override
+        public Component render(ChatEntry entry, int width) {
+            separator.setVisible(entry.showDate);
+            if (entry.showDate) dateLabel.setText(dateText(entry.date));
+
+            // Nothing here allocates: styles are cached per sender and the time is formatted per entry.
+            UserStyles.Style style = styles.of(entry.sender, entry.own);
+
+            ((FlowLayout) wrapper.getLayout()).setAlignment(entry.own ? FlowLayout.RIGHT : FlowLayout.LEFT);
+            bubble.setStyle(entry.own, style.bubble());
+            bubble.setAlignmentX(entry.own ? Component.RIGHT_ALIGNMENT : Component.LEFT_ALIGNMENT);
+
+            avatar.setText(style.initials());
+            avatar.setBackground(style.avatar());
+            nameLabel.setText(entry.sender);
+            nameLabel.setForeground(style.name());
+            // Narrow windows wrap sooner; a new width relays out every entry, so the cache starts over.
+            textBlock.setWrapWidth(Math.max(MIN_WRAP_WIDTH, Math.min(MAX_BUBBLE_WIDTH, width - BUBBLE_CHROME)));
+            textBlock.setText(entry, entry.text);
+            textBlock.setForeground(style.text());
+            boolean image = entry.file != null && entry.file.isImage();
+            thumbnail.setVisible(image);
+            thumbnailIcon.setFile(image ? entry.file : null);
+            thumbnail.setForeground(style.time());
+            timeLabel.setText(entry.time);
+            timeLabel.setForeground(style.time());
+
+            return row;
+        }
     }
 
     private BufferedImage createWallpaperPattern() {
@@ -335,34 +875,36 @@ public class ChatWindow extends JFrame {
         return img;
     }
 
-    private static boolean isLight(Color c) {
-        double luminance = (0.299 * c.getRed() + 0.587 * c.getGreen() + 0.114 * c.getBlue()) / 255.0;
-        return luminance > 0.7;
-    }
-
-    private static Color darken(Color c, float factor) {
-        float r = c.getRed() / 255f;
-        float g = c.getGreen() / 255f;
-        float b = c.getBlue() / 255f;
-        r = Math.max(0f, r * (1f - factor));
-        g = Math.max(0f, g * (1f - factor));
-        b = Math.max(0f, b * (1f - factor));
-        return new Color(r, g, b);
-    }
-
-    private String getInitials(String name) {
-        if (name == null || name.isEmpty()) return "?";
-        String[] parts = name.split(" ");
-        StringBuilder sb = new StringBuilder();
-        for (String p : parts) if (!p.isEmpty()) sb.append(Character.toUpperCase(p.charAt(0)));
-        return sb.length() > 2 ? sb.substring(0, 2) : sb.toString();
-    }
-
+    /**
+     * The bubble behind a message. Antialiased shapes are slow to fill, so
+     * each style of bubble is drawn once into an image and every bubble is
+     * then copied from it in nine pieces: the corners and the tail as they
+     * are, the edges and the middle stretched. Every part of the shape is a
+     * fixed distance from one edge, so this looks the same at any size.
+     */
     static class BubblePanel extends JPanel {
-        private final boolean isOwn;
-        private final Color backgroundColor;
-        private final int radius = 14;
-        private final int tailSize = 10;
+        private static final int RADIUS = 14;
+        private static final int TAIL_SIZE = 10;
+        private static final int TAIL_Y = 18;
+        private static final Color OUTLINE = new Color(0, 0, 0, 50);
+        // Rows above the stretched middle hold the tail; columns beside it the corners, plus the tail on its side.
+        private static final int SLICE_TOP = TAIL_Y + TAIL_SIZE + 2;
+        private static final int SLICE_BOTTOM = RADIUS + 1;
+        private static final int SLICE_CORNER = RADIUS;
+        private static final int SLICE_TAIL = TAIL_SIZE + RADIUS + 1;
+        private static final int TEMPLATE_WIDTH = SLICE_CORNER + SLICE_TAIL + 4;
+        private static final int TEMPLATE_HEIGHT = SLICE_TOP + SLICE_BOTTOM + 4;
+        // Bubble styles are palette colors on either side, at the screen's scale; few are ever in use.
+        private static final int MAX_TEMPLATES = 64;
+        private static final Map<Style, BufferedImage> templates = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Style, BufferedImage> eldest) {
+                return size() > MAX_TEMPLATES;
+            }
+        };
+
+        private boolean isOwn;
+        private Color backgroundColor;
 
         public BubblePanel(boolean isOwn, Color backgroundColor) {
             this.isOwn = isOwn;
@@ -370,45 +912,92 @@ public class ChatWindow extends JFrame {
             setOpaque(false);
         }
 
+        void setStyle(boolean isOwn, Color backgroundColor) {
+            this.isOwn = isOwn;
+            this.backgroundColor = backgroundColor;
+        }
+
         @Override
         protected void paintComponent(Graphics g) {
-            Graphics2D g2 = (Graphics2D) g.create();
-            try {
-                g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-                int w = getWidth();
-                int h = getHeight();
-
-                int rectX = isOwn ? 0 : tailSize;
-                int rectW = Math.max(1, w - tailSize);
-                int rectY = 0;
-                int rectH = Math.max(1, h);
-
-                g2.setColor(backgroundColor);
-                g2.fillRoundRect(rectX, rectY, rectW - 1, rectH - 1, radius, radius);
-
-                Path2D tail = new Path2D.Float();
-                int ty = 18;
-                if (isOwn) {
-                    int tx = rectW - 1;
-                    tail.moveTo(tx, ty);
-                    tail.lineTo(tx + tailSize, ty + tailSize / 2);
-                    tail.lineTo(tx, ty + tailSize);
-                    tail.closePath();
-                } else {
-                    int tx = tailSize;
-                    tail.moveTo(tx, ty);
-                    tail.lineTo(tx - tailSize, ty + tailSize / 2);
-                    tail.lineTo(tx, ty + tailSize);
-                    tail.closePath();
+            Graphics2D g2 = (Graphics2D) g;
+            int w = getWidth();
+            int h = getHeight();
+            AffineTransform tx = g2.getTransform();
+            double scale = tx.getScaleX();
+            if (w < TEMPLATE_WIDTH || h < TEMPLATE_HEIGHT || scale != tx.getScaleY() || tx.getShearX() != 0) {
+                // Too small to slice, or an unusual transform: just draw it.
+                Graphics2D copy = (Graphics2D) g.create();
+                try {
+                    paintBubble(copy, w, h, isOwn, backgroundColor);
+                } finally {
+                    copy.dispose();
                 }
-                g2.fill(tail);
+                return;
+            }
+            BufferedImage template = templates.computeIfAbsent(new Style(backgroundColor, isOwn, scale), BubblePanel::render);
+
+            int left = isOwn ? SLICE_CORNER : SLICE_TAIL;
+            int right = isOwn ? SLICE_TAIL : SLICE_CORNER;
+            int[] dx = {0, left, w - right, w};
+            int[] dy = {0, SLICE_TOP, h - SLICE_BOTTOM, h};
+            int[] sx = {0, left, TEMPLATE_WIDTH - right, TEMPLATE_WIDTH};
+            int[] sy = {0, SLICE_TOP, TEMPLATE_HEIGHT - SLICE_BOTTOM, TEMPLATE_HEIGHT};
+            for (int row = 0; row < 3; row++) {
+                for (int col = 0; col < 3; col++) {
+                    g2.drawImage(template, dx[col], dy[row], dx[col + 1], dy[row + 1],
+                            (int) Math.round(sx[col] * scale), (int) Math.round(sy[row] * scale),
+                            (int) Math.round(sx[col + 1] * scale), (int) Math.round(sy[row + 1] * scale), null);
+                }
+            }
+        }
 
-                g2.setColor(new Color(0, 0, 0, 50));
-                g2.drawRoundRect(rectX, rectY, rectW - 1, rectH - 1, radius, radius);
-                g2.draw(tail);
+        // Drawn at the screen's scale, so bubbles stay sharp on high-density displays.
+        private static BufferedImage render(Style style) {
+            BufferedImage img = new BufferedImage((int) Math.ceil(TEMPLATE_WIDTH * style.scale()),
+                    (int) Math.ceil(TEMPLATE_HEIGHT * style.scale()), BufferedImage.TYPE_INT_ARGB_PRE);
+            Graphics2D g2 = img.createGraphics();
+            try {
+                g2.scale(style.scale(), style.scale());
+                paintBubble(g2, TEMPLATE_WIDTH, TEMPLATE_HEIGHT, style.own(), style.color());
             } finally {
                 g2.dispose();
             }
+            return img;
+        }
+
+        private static void paintBubble(Graphics2D g2, int w, int h, boolean isOwn, Color backgroundColor) {
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+            int rectX = isOwn ? 0 : TAIL_SIZE;
+            int rectW = Math.max(1, w - TAIL_SIZE);
+            int rectY = 0;
+            int rectH = Math.max(1, h);
+
+            g2.setColor(backgroundColor);
+            g2.fillRoundRect(rectX, rectY, rectW - 1, rectH - 1, RADIUS, RADIUS);
+
+            Path2D tail = new Path2D.Float();
+            if (isOwn) {
+                int tx = rectW - 1;
+                tail.moveTo(tx, TAIL_Y);
+                tail.lineTo(tx + TAIL_SIZE, TAIL_Y + TAIL_SIZE / 2);
+                tail.lineTo(tx, TAIL_Y + TAIL_SIZE);
+                tail.closePath();
+            } else {
+                int tx = TAIL_SIZE;
+                tail.moveTo(tx, TAIL_Y);
+                tail.lineTo(tx - TAIL_SIZE, TAIL_Y + TAIL_SIZE / 2);
+                tail.lineTo(tx, TAIL_Y + TAIL_SIZE);
+                tail.closePath();
+            }
+            g2.fill(tail);
+
+            g2.setColor(OUTLINE);
+            g2.drawRoundRect(rectX, rectY, rectW - 1, rectH - 1, RADIUS, RADIUS);
+            g2.draw(tail);
+        }
+
+        private record Style(Color color, boolean own, double scale) {
         }
     }
 }
@@ -1,12 +1,13 @@
 package client.ui;
 
-import client.ChatClient;
+import client.ChatSession;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.util.concurrent.ExecutionException;
 
 public class LoginWindow extends JFrame {
 
@@ -97,9 +98,37 @@ public class LoginWindow extends JFrame {
                 return;
             }
 
-            ChatClient client = new ChatClient("127.0.0.1", 5000);
-            new ChatWindow(client, username);
-            dispose();
+            // Connect off the EDT so the window stays responsive while the server is slow or down.
+            connectBtn.setEnabled(false);
+            usernameField.setEnabled(false);
+            connectBtn.setText("Connecting…");
+            ChatSession session = new ChatSession("127.0.0.1", 5000, username);
+            new SwingWorker<Void, Void>() {
+                @Override
+                protected Void doInBackground() {
+                    session.connect();
+                    return null;
+                }
+
+                @Override
+                protected void done() {
+                    try {
+                        get();
+                        new ChatWindow(session, username);
+                        dispose();
+                    } catch (InterruptedException | ExecutionException ex) {
+                        connectBtn.setText("Continue");
+                        connectBtn.setEnabled(true);
+                        usernameField.setEnabled(true);
+                        JOptionPane.showMessageDialog(
+                                LoginWindow.this,
+                                "Unable to connect to server.",
+                                "Connection Error",
+                                JOptionPane.ERROR_MESSAGE
+                        );
+                    }
+                }
+            }.execute();
         });
 
         setVisible(true);
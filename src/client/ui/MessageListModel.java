@@ -0,0 +1,74 @@
+package client.ui;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-capacity ring of entries. Adding at either end is O(1); once full,
+ * each add evicts the entry at the opposite end.
+ */
+final class MessageListModel {
+
+    private final ChatEntry[] ring;
+    private int start;
+    private int size;
+
+    MessageListModel(int capacity) {
+        this.ring = new ChatEntry[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return ring.length;
+    }
+
+    ChatEntry get(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException(index);
+        return ring[(start + index) % ring.length];
+    }
+
+    ChatEntry first() {
+        return size == 0 ? null : get(0);
+    }
+
+    ChatEntry last() {
+        return size == 0 ? null : get(size - 1);
+    }
+
+    void clear() {
+        Arrays.fill(ring, null);
+        start = 0;
+        size = 0;
+    }
+
+    /** @return the evicted oldest entry, or null */
+    ChatEntry addLast(ChatEntry entry) {
+        ChatEntry evicted = null;
+        if (size == ring.length) {
+            evicted = ring[start];
+            ring[start] = null;
+            start = (start + 1) % ring.length;
+            size--;
+        }
+        ring[(start + size) % ring.length] = entry;
+        size++;
+        return evicted;
+    }
+
+    /** @return the evicted newest entry, or null */
+    ChatEntry addFirst(ChatEntry entry) {
+        ChatEntry evicted = null;
+        if (size == ring.length) {
+            int lastSlot = (start + size - 1) % ring.length;
+            evicted = ring[lastSlot];
+            ring[lastSlot] = null;
+            size--;
+        }
+        start = (start - 1 + ring.length) % ring.length;
+        ring[start] = entry;
+        size++;
+        return evicted;
+    }
+}
@@ -0,0 +1,181 @@
+package client.ui;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.List;
+
+/**
+ * Scrollable message list that only lays out and paints what is on screen.
+ * Every entry is measured once per width and painted through a shared
+ * renderer component, so no Swing components are created per message.
+ */
+class MessageListView extends JComponent implements Scrollable {
+
+    /** Configures a shared component to draw one entry at the given width. */
+    interface Renderer {
+        Component render(ChatEntry entry, int width);
+    }
+
+    private final MessageListModel model;
+    private final Renderer renderer;
+    private final CellRendererPane rendererPane = new CellRendererPane();
+    private int layoutWidth = -1;
+
+    MessageListView(MessageListModel model, Renderer renderer) {
+        this.model = model;
+        this.renderer = renderer;
+        add(rendererPane);
+        setOpaque(true);
+    }
+
+    MessageListModel getModel() {
+        return model;
+    }
+
+    void clear() {
+        model.clear();
+        revalidate();
+        repaint();
+    }
+
+    /** Adds a newer entry at the bottom in constant time. */
+    void append(ChatEntry entry) {
+        ChatEntry last = model.last();
+        entry.showDate = last == null || !last.date.equals(entry.date);
+        model.addLast(entry);
+        if (layoutWidth > 0) {
+            measure(entry);
+            entry.y = last == null ? 0 : last.y + last.height;
+        }
+        revalidate();
+        repaint();
+    }
+
+    /**
+     * Adds older entries, given oldest first, above the current ones.
+     *
+     * @return how much taller the content above the old first entry became
+     */
+    int prepend(List<ChatEntry> older) {
+        ChatEntry oldFirst = model.first();
+        boolean evictedOldFirst = false;
+        for (int i = older.size() - 1; i >= 0; i--) {
+            // A full model evicts from the bottom, which can eventually reach the old first entry.
+            if (model.addFirst(older.get(i)) == oldFirst && oldFirst != null) evictedOldFirst = true;
+        }
+        relayout();
+        revalidate();
+        repaint();
+        if (oldFirst == null || evictedOldFirst || layoutWidth <= 0) return 0;
+        return (int) oldFirst.y;
+    }
+
+    private void measure(ChatEntry entry) {
+        Component c = renderer.render(entry, layoutWidth);
+        entry.height = c.getPreferredSize().height;
+        entry.layoutWidth = layoutWidth;
+    }
+
+    // Recomputes separators, heights and positions; used after a width change or a prepend.
+    private void relayout() {
+        long y = 0;
+        ChatEntry previous = null;
+        for (int i = 0; i < model.size(); i++) {
+            ChatEntry e = model.get(i);
+            boolean showDate = previous == null || !previous.date.equals(e.date);
+            if (showDate != e.showDate || e.layoutWidth != layoutWidth) {
+                e.showDate = showDate;
+                if (layoutWidth > 0) measure(e);
+            }
+            e.y = y;
+            y += e.height;
+            previous = e;
+        }
+    }
+
+    private long contentHeight() {
+        if (model.size() == 0) return 0;
+        ChatEntry first = model.first();
+        ChatEntry last = model.last();
+        return last.y + last.height - first.y;
+    }
+
+    @Override
+    public void setBounds(int x, int y, int width, int height) {
+        Insets in = getInsets();
+        int inner = width - in.left - in.right;
+        if (inner != layoutWidth && inner > 0) {
+            layoutWidth = inner;
+            relayout();
+        }
+        super.setBounds(x, y, width, height);
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        Insets in = getInsets();
+        return new Dimension(100, (int) Math.min(Integer.MAX_VALUE, contentHeight() + in.top + in.bottom));
+    }
+
+    // Index of the entry covering the given offset from the top of the content.
+    private int entryAt(long offset) {
+        long base = model.first().y;
+        int lo = 0, hi = model.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (model.get(mid).y - base <= offset) lo = mid; else hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /** The entry drawn at a point of this component, or null if there is none. */
+    ChatEntry entryAt(Point p) {
+        Insets in = getInsets();
+        if (model.size() == 0 || layoutWidth <= 0 || p.y < in.top) return null;
+        ChatEntry e = model.get(entryAt(p.y - in.top));
+        return p.y - in.top < e.y - model.first().y + e.height ? e : null;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        if (model.size() == 0 || layoutWidth <= 0) return;
+
+        Rectangle clip = g.getClipBounds();
+        Insets in = getInsets();
+        long base = model.first().y;
+        for (int i = entryAt(Math.max(0, clip.y - in.top)); i < model.size(); i++) {
+            ChatEntry e = model.get(i);
+            int top = (int) (e.y - base) + in.top;
+            if (top > clip.y + clip.height) break;
+            Component c = renderer.render(e, layoutWidth);
+            rendererPane.paintComponent(g, c, this, in.left, top, layoutWidth, e.height, true);
+        }
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        return getPreferredSize();
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return 16;
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return Math.max(16, visibleRect.height - 32);
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return true;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        Container parent = getParent();
+        return parent instanceof JViewport && parent.getHeight() > getPreferredSize().height;
+    }
+}
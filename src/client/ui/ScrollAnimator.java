@@ -0,0 +1,43 @@
+package client.ui;
+
+import javax.swing.*;
+
+/**
+ * Eases a scroll bar to its bottom on one shared timer. Repeated requests
+ * while it is running just keep it going, and the target is re-read on every
+ * step so it follows content that is still growing.
+ */
+final class ScrollAnimator {
+
+    private final JScrollBar bar;
+    private final Timer timer;
+
+    ScrollAnimator(JScrollBar bar, int frameMillis) {
+        this.bar = bar;
+        this.timer = new Timer(frameMillis, e -> step());
+        this.timer.setCoalesce(true);
+    }
+
+    void scrollToBottom() {
+        if (!timer.isRunning()) timer.start();
+    }
+
+    void stop() {
+        timer.stop();
+    }
+
+    private void step() {
+        // The user grabbed the scroll bar; let them have it.
+        if (bar.getValueIsAdjusting()) {
+            timer.stop();
+            return;
+        }
+        int target = bar.getMaximum() - bar.getVisibleAmount();
+        int current = bar.getValue();
+        if (current >= target) {
+            timer.stop();
+            return;
+        }
+        bar.setValue(current + Math.max(1, (target - current) / 3));
+    }
+}
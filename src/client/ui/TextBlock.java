@@ -0,0 +1,76 @@
+package client.ui;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Draws wrapped plain text; a light stand-in for an HTML {@link JLabel}.
+ * Layouts are cached per message, so painting a message again, as scrolling
+ * does all the time, lays nothing out; the cache is dropped whenever the
+ * wrap width changes.
+ */
+final class TextBlock extends JComponent {
+
+    // Comfortably more messages than fit on screen at once.
+    private static final int CACHE_SIZE = 256;
+
+    private final Map<Object, WrappedText> cache = new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, WrappedText> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private int wrapWidth = 1;
+    private WrappedText text;
+
+    void setWrapWidth(int wrapWidth) {
+        if (wrapWidth != this.wrapWidth) {
+            this.wrapWidth = wrapWidth;
+            cache.clear();
+        }
+    }
+
+    /** @param key identifies the text in the cache; the same key must always come with the same text */
+    void setText(Object key, String value) {
+        text = cache.get(key);
+        if (text == null) {
+            text = WrappedText.layout(value, getFont(), wrapWidth);
+            cache.put(key, text);
+        }
+    }
+
+    @Override
+    public void setFont(Font font) {
+        super.setFont(font);
+        cache.clear();
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        Insets in = getInsets();
+        return text == null ? new Dimension(in.left + in.right, in.top + in.bottom)
+                : new Dimension(text.getWidth() + in.left + in.right, text.getHeight() + in.top + in.bottom);
+    }
+
+    @Override
+    public Dimension getMaximumSize() {
+        return getPreferredSize();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        if (text == null) return;
+        Graphics2D g2 = (Graphics2D) g.create();
+        try {
+            g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g2.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+            g2.setColor(getForeground());
+            Insets in = getInsets();
+            text.draw(g2, in.left, in.top);
+        } finally {
+            g2.dispose();
+        }
+    }
+}
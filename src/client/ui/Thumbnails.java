@@ -0,0 +1,153 @@
+package client.ui;
+
+import client.FileTransfers;
+import protocol.SharedFile;
+
+import javax.imageio.ImageIO;
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Thumbnails of shared images, loaded only once their message is painted:
+ * the first paint starts the download, and the image is decoded and scaled
+ * off the EDT when it arrives. Every image entry reserves the same box, so a
+ * thumbnail showing up never moves the list. A few dozen are kept; one
+ * scrolled back into view after that is decoded again from the downloaded
+ * file. EDT only, apart from the decoding.
+ */
+final class Thumbnails {
+
+    static final int WIDTH = 200;
+    static final int HEIGHT = 150;
+    private static final int CACHE_SIZE = 48;
+    // Bigger images are only fetched when clicked.
+    private static final long MAX_AUTO_BYTES = 8L << 20;
+    private static final Color PLACEHOLDER = new Color(0, 0, 0, 40);
+
+    private final FileTransfers transfers;
+    private final Runnable repaint;
+    private final Map<Long, BufferedImage> cache = new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    // Images being fetched or decoded, and ones that turned out not to be images.
+    private final Set<Long> pending = new HashSet<>();
+    private final Set<Long> failed = new HashSet<>();
+    private final ExecutorService decoder = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "thumbnails");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** @param repaint called once a thumbnail is ready to be drawn */
+    Thumbnails(FileTransfers transfers, Runnable repaint) {
+        this.transfers = transfers;
+        this.repaint = repaint;
+    }
+
+    /** An icon for the renderer to point at each image entry in turn. */
+    ThumbnailIcon newIcon() {
+        return new ThumbnailIcon();
+    }
+
+    /** The thumbnail if it is ready; otherwise starts loading it and returns null. */
+    private BufferedImage get(SharedFile file) {
+        long id = file.fileId();
+        BufferedImage image = cache.get(id);
+        if (image != null || pending.contains(id) || failed.contains(id) || file.size() > MAX_AUTO_BYTES) return image;
+        pending.add(id);
+        transfers.download(file);
+        return null;
+    }
+
+    /** Called when a file has been downloaded, whoever asked for it. */
+    void downloaded(SharedFile file, Path path) {
+        long id = file.fileId();
+        if (!pending.contains(id) && !cache.containsKey(id)) {
+            if (!file.isImage() || failed.contains(id)) return;
+            pending.add(id);
+        }
+        decoder.execute(() -> {
+            BufferedImage thumbnail = null;
+            try {
+                BufferedImage full = ImageIO.read(path.toFile());
+                if (full != null) thumbnail = scale(full);
+            } catch (IOException | RuntimeException ignored) {
+                // Shown as a plain file.
+            }
+            BufferedImage result = thumbnail;
+            SwingUtilities.invokeLater(() -> {
+                pending.remove(id);
+                if (result != null) {
+                    cache.put(id, result);
+                } else {
+                    failed.add(id);
+                }
+                repaint.run();
+            });
+        });
+    }
+
+    private static BufferedImage scale(BufferedImage full) {
+        double ratio = Math.min(1.0, Math.min((double) WIDTH / full.getWidth(), (double) HEIGHT / full.getHeight()));
+        int w = Math.max(1, (int) Math.round(full.getWidth() * ratio));
+        int h = Math.max(1, (int) Math.round(full.getHeight() * ratio));
+        BufferedImage scaled = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D g2 = scaled.createGraphics();
+        try {
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g2.drawImage(full, 0, 0, w, h, null);
+        } finally {
+            g2.dispose();
+        }
+        return scaled;
+    }
+
+    /** A fixed-size box showing one file's thumbnail, or a placeholder until it is ready. */
+    final class ThumbnailIcon implements Icon {
+        private SharedFile file;
+
+        void setFile(SharedFile file) {
+            this.file = file;
+        }
+
+        @Override
+        public void paintIcon(Component c, Graphics g, int x, int y) {
+            if (file == null) return;
+            BufferedImage image = get(file);
+            if (image != null) {
+                g.drawImage(image, x + (WIDTH - image.getWidth()) / 2, y + (HEIGHT - image.getHeight()) / 2, null);
+                return;
+            }
+            g.setColor(PLACEHOLDER);
+            g.fillRect(x, y, WIDTH, HEIGHT);
+            String label = failed.contains(file.fileId()) ? "No preview"
+                    : file.size() > MAX_AUTO_BYTES ? "Click to download" : "Loading…";
+            g.setColor(c.getForeground());
+            FontMetrics fm = g.getFontMetrics();
+            g.drawString(label, x + (WIDTH - fm.stringWidth(label)) / 2, y + (HEIGHT + fm.getAscent()) / 2);
+        }
+
+        @Override
+        public int getIconWidth() {
+            return WIDTH;
+        }
+
+        @Override
+        public int getIconHeight() {
+            return HEIGHT;
+        }
+    }
+}
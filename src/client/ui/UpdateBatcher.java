@@ -0,0 +1,90 @@
+package client.ui;
+
+import javax.swing.*;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Collects UI updates from any thread and runs them on the EDT once per
+ * frame. Each frame runs queued updates until the queue is empty or the time
+ * budget is spent, then calls {@code afterBatch} once; anything left waits for
+ * the next frame. The frame timer only runs while there is work queued.
+ * Whenever the queue runs dry, how the frames have kept to the budget so far
+ * is logged at DEBUG.
+ */
+final class UpdateBatcher {
+
+    private static final System.Logger LOG = System.getLogger(UpdateBatcher.class.getName());
+
+    private final Queue<Runnable> updates = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Timer timer;
+    private final long budgetNanos;
+    private final Runnable afterBatch;
+
+    // Stats, written on the EDT only.
+    private long frames;
+    private long applied;
+    private long deferred;
+    private long maxFrameNanos;
+    private long totalFrameNanos;
+    private int maxBacklog;
+    private long reportedFrames;
+
+    UpdateBatcher(int frameMillis, int budgetMillis, Runnable afterBatch) {
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        this.afterBatch = afterBatch;
+        this.timer = new Timer(frameMillis, e -> runFrame());
+        this.timer.setCoalesce(true);
+    }
+
+    /** Queues an update; safe to call from any thread. */
+    void submit(Runnable update) {
+        updates.add(update);
+        if (scheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(timer::start);
+        }
+    }
+
+    private void runFrame() {
+        if (updates.isEmpty()) {
+            // Idle: stop ticking, unless something slipped in after the check.
+            timer.stop();
+            scheduled.set(false);
+            if (frames != reportedFrames) {
+                reportedFrames = frames;
+                LOG.log(System.Logger.Level.DEBUG, this::toString);
+            }
+            if (!updates.isEmpty() && scheduled.compareAndSet(false, true)) timer.start();
+            return;
+        }
+
+        long start = System.nanoTime();
+        int count = 0;
+        Runnable update;
+        while ((update = updates.poll()) != null) {
+            update.run();
+            count++;
+            if (System.nanoTime() - start >= budgetNanos) break;
+        }
+        afterBatch.run();
+
+        long elapsed = System.nanoTime() - start;
+        frames++;
+        applied += count;
+        totalFrameNanos += elapsed;
+        maxFrameNanos = Math.max(maxFrameNanos, elapsed);
+        if (!updates.isEmpty()) deferred++;
+        maxBacklog = Math.max(maxBacklog, count + updates.size());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("frames=%d updates=%d avg=%.2fms max=%.2fms budget=%.0fms deferred=%d maxBacklog=%d",
+                frames, applied,
+                frames == 0 ? 0.0 : totalFrameNanos / 1e6 / frames,
+                maxFrameNanos / 1e6, budgetNanos / 1e6, deferred, maxBacklog);
+    }
+}
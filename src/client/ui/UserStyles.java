@@ -0,0 +1,86 @@
+package client.ui;
+
+import java.awt.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * How each sender's messages look: bubble and text colors and avatar
+ * initials. They are worked out once per sender and kept in a bounded LRU,
+ * so drawing a message only looks them up. EDT only.
+ */
+final class UserStyles {
+
+    /** Everything about a sender's bubbles that does not depend on the message. */
+    record Style(String initials, Color bubble, Color avatar, Color text, Color name, Color time) {
+    }
+
+    // The first color is kept for our own messages.
+    private static final Color[] PALETTE = new Color[]{
+            new Color(37, 211, 102),
+            new Color(255, 121, 198),
+            new Color(129, 236, 236),
+            new Color(255, 234, 167),
+            new Color(250, 177, 160),
+            new Color(255, 118, 117),
+            new Color(189, 195, 199),
+            new Color(85, 239, 196)
+    };
+    private static final int MAX_SENDERS = 512;
+
+    private final Style own;
+    private final Map<String, Style> others = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Style> eldest) {
+            return size() > MAX_SENDERS;
+        }
+    };
+
+    UserStyles(String username) {
+        this.own = style(username, PALETTE[0]);
+    }
+
+    Style of(String sender, boolean isOwn) {
+        if (isOwn) return own;
+        Style s = others.get(sender);
+        if (s == null) {
+            s = style(sender, colorFor(sender));
+            others.put(sender, s);
+        }
+        return s;
+    }
+
+    // floorMod, unlike abs, stays in range for a hash code of Integer.MIN_VALUE.
+    private static Color colorFor(String sender) {
+        return PALETTE[1 + Math.floorMod(sender.toLowerCase().hashCode(), PALETTE.length - 1)];
+    }
+
+    private static Style style(String sender, Color bubble) {
+        Color text = isLight(bubble) ? Color.BLACK : Color.WHITE;
+        Color name = darken(text, 0.25f);
+        return new Style(initials(sender), bubble, darken(bubble, 0.2f), text, name, darken(name, 0.2f));
+    }
+
+    private static boolean isLight(Color c) {
+        double luminance = (0.299 * c.getRed() + 0.587 * c.getGreen() + 0.114 * c.getBlue()) / 255.0;
+        return luminance > 0.7;
+    }
+
+    private static Color darken(Color c, float factor) {
+        float r = c.getRed() / 255f;
+        float g = c.getGreen() / 255f;
+        float b = c.getBlue() / 255f;
+        r = Math.max(0f, r * (1f - factor));
+        g = Math.max(0f, g * (1f - factor));
+        b = Math.max(0f, b * (1f - factor));
+        return new Color(r, g, b);
+    }
+
+    private static String initials(String name) {
+        if (name == null || name.isEmpty()) return "?";
+        String[] parts = name.split(" ");
+        StringBuilder sb = new StringBuilder();
+        for (String p : parts) if (!p.isEmpty()) sb.append(Character.toUpperCase(p.charAt(0)));
+        return sb.length() > 2 ? sb.substring(0, 2) : sb.toString();
+    }
+}
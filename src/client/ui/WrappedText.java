@@ -0,0 +1,77 @@
+package client.ui;
+
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.LineBreakMeasurer;
+import java.awt.font.TextAttribute;
+import java.awt.font.TextLayout;
+import java.text.AttributedString;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plain text broken into lines of at most a given width, measured once and
+ * then drawn as often as needed. Newlines in the text start a new line;
+ * words longer than the width are broken wherever they have to be.
+ */
+public final class WrappedText {
+
+    // Antialiased with fractional metrics, so a layout measures the same on every screen it is drawn on.
+    private static final FontRenderContext FRC = new FontRenderContext(null, true, true);
+
+    private final TextLayout[] lines;
+    private final int width;
+    private final int height;
+
+    private WrappedText(TextLayout[] lines, int width, int height) {
+        this.lines = lines;
+        this.width = width;
+        this.height = height;
+    }
+
+    public static WrappedText layout(String text, Font font, int wrapWidth) {
+        List<TextLayout> lines = new ArrayList<>();
+        float width = 0;
+        float height = 0;
+        int start = 0;
+        while (start <= text.length()) {
+            int end = text.indexOf('\n', start);
+            if (end < 0) end = text.length();
+            if (end == start) {
+                // An empty paragraph still takes up a line; a space has no visible advance.
+                TextLayout blank = new TextLayout(" ", font, FRC);
+                lines.add(blank);
+                height += blank.getAscent() + blank.getDescent() + blank.getLeading();
+            } else {
+                AttributedString paragraph = new AttributedString(text.substring(start, end));
+                paragraph.addAttribute(TextAttribute.FONT, font);
+                LineBreakMeasurer measurer = new LineBreakMeasurer(paragraph.getIterator(), FRC);
+                while (measurer.getPosition() < end - start) {
+                    TextLayout line = measurer.nextLayout(wrapWidth);
+                    lines.add(line);
+                    width = Math.max(width, line.getVisibleAdvance());
+                    height += line.getAscent() + line.getDescent() + line.getLeading();
+                }
+            }
+            start = end + 1;
+        }
+        return new WrappedText(lines.toArray(new TextLayout[0]), (int) Math.ceil(width), (int) Math.ceil(height));
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /** Draws the text with its top left corner at (x, y), in the graphics' current color. */
+    public void draw(Graphics2D g, float x, float y) {
+        for (TextLayout line : lines) {
+            y += line.getAscent();
+            line.draw(g, x, y);
+            y += line.getDescent() + line.getLeading();
+        }
+    }
+}
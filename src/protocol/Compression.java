@@ -0,0 +1,145 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Payload compression for binary connections that negotiated
+ * {@link FrameCodec#COMPRESSION_VERSION} or later.
+ *
+ * <p>Each frame is compressed on its own, so a server can compress a
+ * broadcast once and send the same bytes to every recipient. To make short
+ * chat messages worth compressing without a per-connection streaming context,
+ * both ends prime DEFLATE with the same {@link #DICTIONARY} of common chat
+ * text. A compressed frame has {@link Frame#FLAG_COMPRESSED} set and its
+ * payload is:
+ * <pre>
+ * int    length      uncompressed payload size
+ * ...                raw DEFLATE data
+ * </pre>
+ */
+public final class Compression {
+
+    /** Payloads shorter than this are sent as they are. */
+    public static final int DEFAULT_THRESHOLD = 256;
+
+    // Changing this breaks compatibility; it is part of the protocol version.
+    private static final byte[] DICTIONARY = (
+            "https://www. .com .org github.com/ youtube.com/watch?v= "
+            + "Thank you! Thanks, no problem. I don't know. I think that's because "
+            + "could you please take a look at the meeting tomorrow morning "
+            + "what do you think about this? Let me know if you have any questions. "
+            + "yes, no, maybe, sure, okay, sorry, please, actually, probably, really "
+            + "Good morning, good night, see you later, talk to you soon, "
+            + "I'm going to be there in a few minutes. We should have been doing this "
+            + "the problem is that it doesn't work when I try to run it, the error says "
+            + "Exception in thread \"main\" java.lang. at com. .java: "
+            + "and the of to in is that for it with as was on be at by this have from "
+            + "you are not but what all were when we there can an your which their said "
+            + "if will each about how up out them then she many some so these would other "
+            + "into has more her two like him see time could no make than first been its "
+            + "who now people my made over did down only way find use may water long little "
+            + "very after words called just where most know get through back much before go "
+            + "good new write our used me man too any day same right look think also around "
+            + "another came come work three word must because does part even place well "
+            + "such here take why things help put years different away again off went old "
+            + "number great tell men say small every found still between name should home "
+            + "big give air line set own under read last never us left end along while "
+            + "might next sound below saw something thought both few those always looked "
+            + "show large often together asked house don't world going want school important "
+            + "until form food keep children feet land side without boy once animals life "
+            + "enough took sometimes four head above kind began almost live page got earth "
+            + "need far hand high year mother light parts country father let night following "
+            + "picture being study second eyes soon times story boys since white days paper "
+            + "hard near sentence better best across during today others however sure means "
+            + "knew it's try told young miles sun ways thing whole hear example heard several "
+            + "change answer room sea against top turned learn point city play toward five "
+            + "using himself usually money seen didn't car morning I'm body upon family later "
+            + "turn move face door cut done group true leave color red friends easy "
+            + "I was wondering if you could help me with this. That sounds great, thanks! "
+            + "I think we should I don't think you can just I'm not sure if it's "
+            + "the message from the server, the client, the room, the chat, the user "
+            + " the  and  to  of  a  in  is  it  you  that  I  for  on  this  with  be ")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private static final int LEVEL = Deflater.BEST_SPEED;
+    private static final int POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    // Deflaters hold native memory, so they are pooled rather than made per
+    // frame or kept per thread (there may be one thread per connection).
+    private static final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private static final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+    private Compression() {
+    }
+
+    /**
+     * @return a compressed copy of the frame, or the frame itself if its
+     *         payload is under the threshold or would not get smaller
+     */
+    public static Frame compress(Frame frame, int threshold) {
+        int length = frame.payloadLength();
+        if (length < threshold || frame.hasFlag(Frame.FLAG_COMPRESSED)) return frame;
+
+        byte[] input = new byte[length];
+        frame.payload().get(input);
+        // Room for the length prefix; anything not fitting in the original size is no gain.
+        byte[] output = new byte[4 + length];
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) deflater = new Deflater(LEVEL, true);
+        int compressed;
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(input);
+            deflater.finish();
+            compressed = deflater.deflate(output, 4, length);
+            if (!deflater.finished()) return frame;
+        } finally {
+            release(deflater);
+        }
+        ByteBuffer payload = ByteBuffer.wrap(output, 0, 4 + compressed);
+        payload.putInt(0, length);
+        return new Frame(frame.getType(), frame.getFlags() | Frame.FLAG_COMPRESSED, frame.getId(),
+                frame.getTimestamp(), frame.getSender(), frame.getRoom(), payload);
+    }
+
+    /** @return the frame with its payload inflated, or the frame itself if it is not compressed */
+    public static Frame decompress(Frame frame) throws ProtocolException {
+        if (!frame.hasFlag(Frame.FLAG_COMPRESSED)) return frame;
+        ByteBuffer in = frame.payload();
+        if (in.remaining() < 4) throw new ProtocolException("Truncated compressed payload");
+        int length = in.getInt();
+        if (length < 0 || length > FrameCodec.MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Bad uncompressed length " + length);
+        }
+
+        byte[] output = new byte[length];
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) inflater = new Inflater(true);
+        try {
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(in);
+            int n = inflater.inflate(output);
+            if (n != length || !inflater.finished()) {
+                throw new ProtocolException("Compressed payload does not match its length");
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Corrupt compressed payload: " + e.getMessage());
+        } finally {
+            inflater.reset();
+            if (inflaters.size() < POOL_SIZE) inflaters.offer(inflater); else inflater.end();
+        }
+        return new Frame(frame.getType(), frame.getFlags() & ~Frame.FLAG_COMPRESSED, frame.getId(),
+                frame.getTimestamp(), frame.getSender(), frame.getRoom(), ByteBuffer.wrap(output));
+    }
+
+    private static void release(Deflater deflater) {
+        deflater.reset();
+        if (deflaters.size() < POOL_SIZE) deflaters.offer(deflater); else deflater.end();
+    }
+}
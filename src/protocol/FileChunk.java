@@ -0,0 +1,57 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link FrameType#FILE_CHUNK}: part of a file, from a client uploading it
+ * (the id is the upload's) or from the server to a client downloading it
+ * (the id is the file's).
+ *
+ * <pre>
+ * long   id      upload or file id
+ * long   offset  of the data in the file; {@link #NOT_FOUND} if the server has no such file
+ * bytes  data    the rest of the payload
+ * </pre>
+ *
+ * A {@link FrameType#DOWNLOAD} carries the same fields without data: the
+ * file wanted and where to start, which is past what a client already has
+ * when it resumes. The server then sends the rest of the file in chunks,
+ * only while no chat frame is waiting for the connection.
+ */
+public record FileChunk(long id, long offset, ByteBuffer data) {
+
+    /** Upload chunk size; with its frame header it fits a server's 8 KB read buffer. */
+    public static final int UPLOAD_SIZE = 7 * 1024;
+    /** Download chunk size, and so the longest a chat frame can wait behind a file. */
+    public static final int DOWNLOAD_SIZE = 64 * 1024;
+    public static final long NOT_FOUND = -1;
+
+    private static final int HEADER = 16;
+
+    public Frame toFrame() {
+        ByteBuffer payload = ByteBuffer.allocate(HEADER + data.remaining())
+                .putLong(id).putLong(offset).put(data.duplicate()).flip();
+        return Frame.control(FrameType.FILE_CHUNK, "", payload);
+    }
+
+    /**
+     * The frame of a chunk without its data, for encoding with
+     * {@link FrameCodec#encodeHead} and writing the data after it.
+     */
+    public static Frame head(long id, long offset) {
+        return Frame.control(FrameType.FILE_CHUNK, "", ByteBuffer.allocate(HEADER).putLong(id).putLong(offset).flip());
+    }
+
+    public static Frame download(long fileId, long offset) {
+        return Frame.control(FrameType.DOWNLOAD, "", ByteBuffer.allocate(HEADER).putLong(fileId).putLong(offset).flip());
+    }
+
+    /** Reads a chunk or a download request; the data is a view into the frame's payload. */
+    public static FileChunk from(Frame frame) throws ProtocolException {
+        ByteBuffer p = frame.payload();
+        if (p.remaining() < HEADER) throw new ProtocolException("Truncated file chunk");
+        long id = p.getLong();
+        long offset = p.getLong();
+        return new FileChunk(id, offset, p.slice());
+    }
+}
@@ -0,0 +1,144 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One typed message on the wire. Frames decoded by {@link FrameCodec#decode}
+ * reference the buffer they were read from; call {@link #detach()} before
+ * keeping one past the next read.
+ */
+public final class Frame {
+
+    /** Set on frames replayed from history rather than delivered live. */
+    public static final int FLAG_HISTORY = 0x01;
+    /** Set on frames whose payload is compressed; see {@link Compression}. */
+    public static final int FLAG_COMPRESSED = 0x02;
+    /** Set on frames sent as search results rather than delivered live. */
+    public static final int FLAG_SEARCH = 0x04;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    private final FrameType type;
+    private final int flags;
+    private final long id;
+    private final long timestamp;
+    private final String sender;
+    private final String room;
+    private final ByteBuffer payload;
+    private String text;
+
+    /**
+     * @param payload kept as given rather than copied; its position and limit
+     *                must not change afterwards, or may be null for none
+     */
+    public Frame(FrameType type, int flags, long id, long timestamp, String sender, String room, ByteBuffer payload) {
+        this.type = type;
+        this.flags = flags;
+        this.id = id;
+        this.timestamp = timestamp;
+        this.sender = sender != null ? sender : "";
+        this.room = room != null ? room : "";
+        this.payload = payload != null ? payload : EMPTY;
+    }
+
+    public static Frame message(String sender, String room, String text) {
+        return new Frame(FrameType.MESSAGE, 0, 0, System.currentTimeMillis(), sender, room, utf8(text));
+    }
+
+    /** A message whose text is already UTF-8; the frame keeps a view of {@code text}, not a copy. */
+    public static Frame message(String sender, String room, ByteBuffer text) {
+        return new Frame(FrameType.MESSAGE, 0, 0, System.currentTimeMillis(), sender, room, text);
+    }
+
+    public static Frame system(String room, String text) {
+        return new Frame(FrameType.SYSTEM, 0, 0, System.currentTimeMillis(), "", room, utf8(text));
+    }
+
+    /** A direct message to every device {@code recipient} is logged in on; the server fills in the sender. */
+    public static Frame direct(String recipient, String text) {
+        return new Frame(FrameType.DIRECT, 0, 0, System.currentTimeMillis(), "", recipient, utf8(text));
+    }
+
+    /** A request or notice carrying a small binary payload. */
+    public static Frame control(FrameType type, String room, ByteBuffer payload) {
+        return new Frame(type, 0, 0, System.currentTimeMillis(), "", room, payload);
+    }
+
+    /** A payload-less request such as JOIN, LEAVE or LIST_ROOMS. */
+    public static Frame control(FrameType type, String room) {
+        return new Frame(type, 0, 0, System.currentTimeMillis(), "", room, null);
+    }
+
+    private static ByteBuffer utf8(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Copy of this frame stamped by the server as it is accepted. */
+    public Frame withIdAndRoom(long id, long timestamp, String room) {
+        return new Frame(type, flags, id, timestamp, sender, room, payload);
+    }
+
+    public Frame withFlags(int flags) {
+        return new Frame(type, flags, id, timestamp, sender, room, payload);
+    }
+
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    /** Copy whose payload no longer shares memory with a read buffer. */
+    public Frame detach() {
+        ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+        copy.put(payload.duplicate()).flip();
+        return new Frame(type, flags, id, timestamp, sender, room, copy);
+    }
+
+    public FrameType getType() {
+        return type;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    /** A read-only view of the payload, positioned at its start. */
+    public ByteBuffer payload() {
+        return payload.asReadOnlyBuffer();
+    }
+
+    public int payloadLength() {
+        return payload.remaining();
+    }
+
+    /** The payload decoded as UTF-8, computed on first use. */
+    public String text() {
+        String t = text;
+        if (t == null) {
+            t = StandardCharsets.UTF_8.decode(payload.duplicate()).toString();
+            text = t;
+        }
+        return t;
+    }
+
+    @Override
+    public String toString() {
+        return type + "[id=" + id + ", sender=" + sender + ", room=" + room + ", " + payload.remaining() + " bytes]";
+    }
+}
@@ -0,0 +1,200 @@
+package protocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Binary wire format.
+ *
+ * <p>A binary connection starts with a hello from the client: the magic bytes
+ * {@code 00 'C' 'H' 'A' 'T'} followed by the highest protocol version it
+ * speaks. The server answers with the same magic and the version both sides
+ * will use. A connection whose first byte is not {@code 00}, or that sends
+ * nothing within {@link #HELLO_WAIT_MS}, is a plain text connection, one
+ * message per line.
+ *
+ * <p>After the hello every frame is:
+ * <pre>
+ * int    length      bytes following this field
+ * byte   type        {@link FrameType} code
+ * byte   flags
+ * long   id          assigned by the server, 0 from clients
+ * long   timestamp   epoch millis
+ * short  n, n bytes  sender, UTF-8
+ * short  n, n bytes  room, UTF-8
+ * ...                payload, the rest of the frame
+ * </pre>
+ * All integers are big-endian. From version 2 on, payloads may be compressed;
+ * see {@link Compression}.
+ */
+public final class FrameCodec {
+
+    public static final int VERSION = 2;
+    /** First version in which either side may send {@link Frame#FLAG_COMPRESSED} frames. */
+    public static final int COMPRESSION_VERSION = 2;
+    public static final int HELLO_LENGTH = 6;
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+    public static final int HELLO_WAIT_MS = 500;
+
+    private static final byte[] MAGIC = {0, 'C', 'H', 'A', 'T'};
+    // type + flags + id + timestamp + two string lengths
+    private static final int FIXED_HEADER = 1 + 1 + 8 + 8 + 2 + 2;
+    private static final int MAX_STRING = 255;
+
+    private FrameCodec() {
+    }
+
+    public static byte[] hello(int version) {
+        byte[] b = Arrays.copyOf(MAGIC, HELLO_LENGTH);
+        b[MAGIC.length] = (byte) version;
+        return b;
+    }
+
+    /** @return the version carried by a hello, or -1 if the bytes are not a hello */
+    public static int parseHello(byte[] b) {
+        if (b.length < HELLO_LENGTH) return -1;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (b[i] != MAGIC[i]) return -1;
+        }
+        return b[MAGIC.length] & 0xFF;
+    }
+
+    /** True if the first byte of a connection announces a binary hello. */
+    public static boolean isHelloStart(int firstByte) {
+        return firstByte == MAGIC[0];
+    }
+
+    /** Encodes a frame including its length prefix. */
+    public static byte[] encode(Frame frame) {
+        return encodeHead(frame, 0);
+    }
+
+    /**
+     * Encodes a frame whose payload goes on for {@code following} more bytes
+     * than it holds, which the caller writes straight after; the length prefix
+     * counts them. Lets file data go from disk to the socket without a copy.
+     */
+    public static byte[] encodeHead(Frame frame, int following) {
+        byte[] sender = truncate(frame.getSender());
+        byte[] room = truncate(frame.getRoom());
+        int bodyLength = FIXED_HEADER + sender.length + room.length + frame.payloadLength() + following;
+
+        ByteBuffer buf = ByteBuffer.allocate(4 + bodyLength - following);
+        buf.putInt(bodyLength);
+        buf.put((byte) frame.getType().code());
+        buf.put((byte) frame.getFlags());
+        buf.putLong(frame.getId());
+        buf.putLong(frame.getTimestamp());
+        buf.putShort((short) sender.length).put(sender);
+        buf.putShort((short) room.length).put(room);
+        buf.put(frame.payload());
+        return buf.array();
+    }
+
+    private static byte[] truncate(String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        return b.length <= MAX_STRING ? b : Arrays.copyOf(b, MAX_STRING);
+    }
+
+    /**
+     * Decodes the next complete frame from {@code buf}, advancing its position
+     * past it. The payload is a view into {@code buf}, not a copy.
+     *
+     * @return null if the buffer does not yet hold a whole frame; the position is left unchanged
+     */
+    public static Frame decode(ByteBuffer buf) throws ProtocolException {
+        if (buf.remaining() < 4) return null;
+        int length = buf.getInt(buf.position());
+        checkLength(length);
+        if (buf.remaining() < 4 + length) return null;
+
+        int start = buf.position() + 4;
+        buf.position(start + length);
+        return decodeBody(buf, start, start + length);
+    }
+
+    /**
+     * Number of bytes {@code buf} must hold for {@link #decode} to return the
+     * next frame, or 4 if not even the length is available yet.
+     */
+    public static int requiredBytes(ByteBuffer buf) throws ProtocolException {
+        if (buf.remaining() < 4) return 4;
+        int length = buf.getInt(buf.position());
+        checkLength(length);
+        return 4 + length;
+    }
+
+    /** Decodes a frame body, the bytes following the length prefix. */
+    public static Frame decodeBody(ByteBuffer body) throws ProtocolException {
+        return decodeBody(body, body.position(), body.limit());
+    }
+
+    // Reads by absolute index, so the only view made of buf is the payload's.
+    private static Frame decodeBody(ByteBuffer buf, int start, int end) throws ProtocolException {
+        if (end - start < FIXED_HEADER) throw new ProtocolException("Truncated frame header");
+        int typeCode = buf.get(start);
+        FrameType type = FrameType.fromCode(typeCode);
+        if (type == null) throw new ProtocolException("Unknown frame type " + (typeCode & 0xFF));
+        int flags = buf.get(start + 1) & 0xFF;
+        long id = buf.getLong(start + 2);
+        long timestamp = buf.getLong(start + 10);
+        int senderAt = start + 18;
+        int senderLength = stringLength(buf, senderAt, end);
+        int roomAt = senderAt + 2 + senderLength;
+        int roomLength = stringLength(buf, roomAt, end);
+        int payloadAt = roomAt + 2 + roomLength;
+        return new Frame(type, flags, id, timestamp, readString(buf, senderAt + 2, senderLength),
+                readString(buf, roomAt + 2, roomLength), buf.slice(payloadAt, end - payloadAt));
+    }
+
+    private static int stringLength(ByteBuffer buf, int at, int end) throws ProtocolException {
+        if (at + 2 > end) throw new ProtocolException("Truncated frame");
+        int n = buf.getShort(at) & 0xFFFF;
+        if (at + 2 + n > end) throw new ProtocolException("Truncated frame");
+        return n;
+    }
+
+    private static String readString(ByteBuffer buf, int at, int n) {
+        if (n == 0) return "";
+        if (buf.hasArray()) {
+            return new String(buf.array(), buf.arrayOffset() + at, n, StandardCharsets.UTF_8);
+        }
+        byte[] b = new byte[n];
+        buf.get(at, b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static void checkLength(int length) throws ProtocolException {
+        if (length < FIXED_HEADER || length > MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Bad frame length " + length);
+        }
+    }
+
+    /**
+     * Blocking read of one frame from a stream.
+     *
+     * @return null on a clean end of stream
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (java.io.EOFException e) {
+            return null;
+        }
+        checkLength(length);
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return decodeBody(ByteBuffer.wrap(body));
+    }
+
+    public static byte[] readHello(InputStream in) throws IOException {
+        byte[] b = new byte[HELLO_LENGTH];
+        new DataInputStream(in).readFully(b);
+        return b;
+    }
+}
@@ -0,0 +1,42 @@
+package protocol;
+
+public enum FrameType {
+    MESSAGE(1),
+    SYSTEM(2),
+    JOIN(3),
+    LEAVE(4),
+    LIST_ROOMS(5),
+    HISTORY_REQUEST(6),
+    HISTORY_END(7),
+    LOGIN(8),
+    DIRECT(9),
+    PRESENCE(10),
+    TYPING(11),
+    SEARCH(12),
+    SEARCH_END(13),
+    FILE(14),
+    UPLOAD(15),
+    FILE_CHUNK(16),
+    DOWNLOAD(17);
+
+    private static final FrameType[] BY_CODE = new FrameType[256];
+
+    static {
+        for (FrameType t : values()) BY_CODE[t.code] = t;
+    }
+
+    private final int code;
+
+    FrameType(int code) {
+        this.code = code;
+    }
+
+    public int code() {
+        return code;
+    }
+
+    /** @return the type for a wire code, or null if it is not known to this version. */
+    public static FrameType fromCode(int code) {
+        return BY_CODE[code & 0xFF];
+    }
+}
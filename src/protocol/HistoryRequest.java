@@ -0,0 +1,70 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Payload of a {@link FrameType#HISTORY_REQUEST}: which part of a room's
+ * history the client wants. The server answers with the matching MESSAGE
+ * frames, flagged {@link Frame#FLAG_HISTORY}, followed by a
+ * {@link FrameType#HISTORY_END}.
+ *
+ * <pre>
+ * long  anchor     message id the range is relative to (ignored for LATEST)
+ * int   limit      maximum number of messages
+ * byte  direction  {@link Direction} ordinal
+ * </pre>
+ */
+public record HistoryRequest(String room, long anchor, int limit, Direction direction) {
+
+    public enum Direction {
+        // The newest messages of the room.
+        LATEST,
+        // Messages with ids greater than the anchor, oldest first.
+        AFTER,
+        // Messages with ids less than the anchor, for paging backwards.
+        BEFORE
+    }
+
+    public static HistoryRequest latest(String room, int limit) {
+        return new HistoryRequest(room, 0, limit, Direction.LATEST);
+    }
+
+    public static HistoryRequest after(String room, long afterId, int limit) {
+        return new HistoryRequest(room, afterId, limit, Direction.AFTER);
+    }
+
+    public static HistoryRequest before(String room, long beforeId, int limit) {
+        return new HistoryRequest(room, beforeId, limit, Direction.BEFORE);
+    }
+
+    public Frame toFrame() {
+        ByteBuffer payload = ByteBuffer.allocate(13).putLong(anchor).putInt(limit).put((byte) direction.ordinal()).flip();
+        return Frame.control(FrameType.HISTORY_REQUEST, room, payload);
+    }
+
+    public static HistoryRequest from(Frame frame) throws ProtocolException {
+        ByteBuffer p = frame.payload();
+        if (p.remaining() < 13) throw new ProtocolException("Truncated history request");
+        long anchor = p.getLong();
+        int limit = p.getInt();
+        int dir = p.get();
+        if (dir < 0 || dir >= Direction.values().length) throw new ProtocolException("Bad history direction");
+        return new HistoryRequest(frame.getRoom(), anchor, limit, Direction.values()[dir]);
+    }
+
+    /**
+     * Builds the frame closing a history response.
+     *
+     * @param more whether further messages exist beyond the ones sent
+     */
+    public static Frame end(String room, int count, boolean more) {
+        ByteBuffer payload = ByteBuffer.allocate(5).putInt(count).put((byte) (more ? 1 : 0)).flip();
+        return Frame.control(FrameType.HISTORY_END, room, payload);
+    }
+
+    /** Reads the {@code more} flag of a HISTORY_END frame. */
+    public static boolean hasMore(Frame end) {
+        ByteBuffer p = end.payload();
+        return p.remaining() >= 5 && p.get(4) != 0;
+    }
+}
@@ -0,0 +1,36 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link FrameType#LOGIN}: who is on the other end of a connection. Clients
+ * send it first thing after the hello, with the username as the frame's
+ * sender. The server answers binary clients with the same frame, naming the
+ * user as registered, and refuses with a SYSTEM notice.
+ *
+ * <pre>
+ * long  device   random id of the client installation, 0 if it has none
+ * </pre>
+ *
+ * A login from a device the user is already logged in from replaces that
+ * older connection, which is usually one the server has not yet noticed is
+ * dead.
+ */
+public record Login(String username, long device) {
+
+    /** The device of clients that do not name one; such logins never replace each other. */
+    public static final long ANY_DEVICE = 0;
+
+    public Frame toFrame() {
+        ByteBuffer payload = ByteBuffer.allocate(8).putLong(0, device);
+        return new Frame(FrameType.LOGIN, 0, 0, System.currentTimeMillis(), username, "", payload);
+    }
+
+    /** Reads a login; text clients send none of the payload and so get {@link #ANY_DEVICE}. */
+    public static Login from(Frame frame) throws ProtocolException {
+        ByteBuffer p = frame.payload();
+        if (!p.hasRemaining()) return new Login(frame.getSender(), ANY_DEVICE);
+        if (p.remaining() < 8) throw new ProtocolException("Truncated login");
+        return new Login(frame.getSender(), p.getLong());
+    }
+}
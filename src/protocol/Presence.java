@@ -0,0 +1,82 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Payload of a {@link FrameType#PRESENCE}: who is in a room and who is
+ * typing. The server sends a snapshot when a client enters a room, replacing
+ * whatever the client knew about it, and then deltas listing only the users
+ * whose state changed since the last one.
+ *
+ * <pre>
+ * byte   snapshot   1 for a snapshot, 0 for a delta
+ * short  count
+ * count times:
+ *   byte   state      {@link State} ordinal
+ *   short  n, n bytes username, UTF-8
+ * </pre>
+ *
+ * Clients report their own typing with a {@link FrameType#TYPING} frame
+ * whose one-byte payload is 1 while typing and 0 once they stop.
+ */
+public record Presence(String room, boolean snapshot, Map<String, State> users) {
+
+    public enum State {
+        // Gone from the room, or logged out.
+        OFFLINE,
+        ONLINE,
+        TYPING
+    }
+
+    public Frame toFrame() {
+        byte[][] names = new byte[users.size()][];
+        int length = 1 + 2;
+        int i = 0;
+        for (String name : users.keySet()) {
+            names[i] = name.getBytes(StandardCharsets.UTF_8);
+            length += 1 + 2 + names[i].length;
+            i++;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        payload.put((byte) (snapshot ? 1 : 0)).putShort((short) users.size());
+        i = 0;
+        for (State state : users.values()) {
+            payload.put((byte) state.ordinal()).putShort((short) names[i].length).put(names[i]);
+            i++;
+        }
+        return Frame.control(FrameType.PRESENCE, room, payload.flip());
+    }
+
+    public static Presence from(Frame frame) throws ProtocolException {
+        ByteBuffer p = frame.payload();
+        if (p.remaining() < 3) throw new ProtocolException("Truncated presence");
+        boolean snapshot = p.get() != 0;
+        int count = p.getShort() & 0xFFFF;
+        Map<String, State> users = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            if (p.remaining() < 3) throw new ProtocolException("Truncated presence");
+            int state = p.get();
+            int n = p.getShort() & 0xFFFF;
+            if (state < 0 || state >= State.values().length || p.remaining() < n) {
+                throw new ProtocolException("Bad presence entry");
+            }
+            byte[] name = new byte[n];
+            p.get(name);
+            users.put(new String(name, StandardCharsets.UTF_8), State.values()[state]);
+        }
+        return new Presence(frame.getRoom(), snapshot, users);
+    }
+
+    /** A client's report that it started or stopped typing in its room. */
+    public static Frame typing(boolean typing) {
+        return Frame.control(FrameType.TYPING, "", ByteBuffer.allocate(1).put(0, (byte) (typing ? 1 : 0)));
+    }
+
+    public static boolean isTyping(Frame typing) {
+        ByteBuffer p = typing.payload();
+        return p.hasRemaining() && p.get() != 0;
+    }
+}
@@ -0,0 +1,10 @@
+package protocol;
+
+import java.io.IOException;
+
+public class ProtocolException extends IOException {
+
+    public ProtocolException(String message) {
+        super(message);
+    }
+}
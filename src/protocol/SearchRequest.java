@@ -0,0 +1,63 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Payload of a {@link FrameType#SEARCH}: words to look for in a room's
+ * history, all of which a message must contain. The server answers with the
+ * matching MESSAGE frames, newest first and flagged {@link Frame#FLAG_SEARCH},
+ * followed by a {@link FrameType#SEARCH_END}. An empty room means the one the
+ * client is in.
+ *
+ * <pre>
+ * long  before  only messages with smaller ids, for paging; 0 for the newest
+ * int   limit   maximum number of messages
+ * bytes query   UTF-8, the rest of the payload
+ * </pre>
+ */
+public record SearchRequest(String room, String query, long beforeId, int limit) {
+
+    public static final int DEFAULT_LIMIT = 20;
+
+    /** The newest matches in a room. */
+    public static SearchRequest latest(String room, String query) {
+        return new SearchRequest(room, query, 0, DEFAULT_LIMIT);
+    }
+
+    public Frame toFrame() {
+        byte[] q = query.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(12 + q.length).putLong(beforeId).putInt(limit).put(q).flip();
+        return Frame.control(FrameType.SEARCH, room, payload);
+    }
+
+    public static SearchRequest from(Frame frame) throws ProtocolException {
+        ByteBuffer p = frame.payload();
+        if (p.remaining() < 12) throw new ProtocolException("Truncated search request");
+        long before = p.getLong();
+        int limit = p.getInt();
+        return new SearchRequest(frame.getRoom(), StandardCharsets.UTF_8.decode(p).toString(), before, limit);
+    }
+
+    /** The query of a SEARCH frame, or an empty string if it is truncated. */
+    public static String query(Frame frame) {
+        ByteBuffer p = frame.payload();
+        return p.remaining() < 12 ? "" : StandardCharsets.UTF_8.decode(p.position(12)).toString();
+    }
+
+    /**
+     * Builds the frame closing a search response.
+     *
+     * @param more whether older matches may exist beyond the ones sent
+     */
+    public static Frame end(String room, int count, boolean more) {
+        ByteBuffer payload = ByteBuffer.allocate(5).putInt(count).put((byte) (more ? 1 : 0)).flip();
+        return Frame.control(FrameType.SEARCH_END, room, payload);
+    }
+
+    /** Reads the {@code more} flag of a SEARCH_END frame. */
+    public static boolean hasMore(Frame end) {
+        ByteBuffer p = end.payload();
+        return p.remaining() >= 5 && p.get(4) != 0;
+    }
+}
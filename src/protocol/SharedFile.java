@@ -0,0 +1,68 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * A {@link FrameType#FILE}: a file someone shared in a room. The server
+ * sequences it like a chat message once an {@link Upload} completes, so it
+ * shows up in history; the bytes are fetched separately with a DOWNLOAD
+ * (see {@link FileChunk}). The frame's sender is the user who shared it.
+ *
+ * <pre>
+ * long  fileId  the server's id for the file
+ * long  size    in bytes
+ * bytes name    UTF-8, the rest of the payload
+ * </pre>
+ */
+public record SharedFile(long fileId, long size, String name) {
+
+    // Characters kept of a name; UTF-8 of up to four bytes each stays under the usual 255-byte limit.
+    private static final int MAX_NAME = 60;
+
+    public Frame toFrame(String sender) {
+        byte[] n = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(16 + n.length).putLong(fileId).putLong(size).put(n).flip();
+        return new Frame(FrameType.FILE, 0, 0, System.currentTimeMillis(), sender, "", payload);
+    }
+
+    public static SharedFile from(Frame frame) throws ProtocolException {
+        ByteBuffer p = frame.payload();
+        if (p.remaining() < 16) throw new ProtocolException("Truncated file");
+        long fileId = p.getLong();
+        long size = p.getLong();
+        return new SharedFile(fileId, size, StandardCharsets.UTF_8.decode(p).toString());
+    }
+
+    /**
+     * A name fit to store a file under: the last part of a path, without
+     * control characters, and short enough for any file system.
+     */
+    public static String safeName(String name) {
+        String base = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+        StringBuilder sb = new StringBuilder(Math.min(base.length(), MAX_NAME));
+        base.codePoints().filter(c -> !Character.isISOControl(c) && c != ':')
+                .limit(MAX_NAME).forEach(sb::appendCodePoint);
+        String safe = sb.toString().strip();
+        return safe.isEmpty() || safe.equals(".") || safe.equals("..") ? "file" : safe;
+    }
+
+    /** Whether the name says it is an image the client can show a thumbnail of. */
+    public boolean isImage() {
+        String n = name.toLowerCase(Locale.ROOT);
+        return n.endsWith(".png") || n.endsWith(".jpg") || n.endsWith(".jpeg")
+                || n.endsWith(".gif") || n.endsWith(".bmp");
+    }
+
+    /** The name with its size, as shown to people: {@code "cat.png (12 KB)"}. */
+    public String describe() {
+        return name + " (" + formatSize(size) + ")";
+    }
+
+    public static String formatSize(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return (bytes + 512) / 1024 + " KB";
+        return String.format(Locale.ROOT, "%.1f MB", bytes / (1024.0 * 1024));
+    }
+}
@@ -0,0 +1,141 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fallback text protocol: one message per line, sender before the first
+ * {@code ':'}, and slash commands for logging in, direct messages and room
+ * requests and search. Lines cannot carry newlines, so multi-line messages are flattened.
+ */
+public final class TextCodec {
+
+    public static final String SERVER_SENDER = "Server";
+    /** Longest line accepted from a client, in bytes. */
+    public static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private TextCodec() {
+    }
+
+    /** Parses a chat line such as {@code "alice: hi"}; lines without a sender keep an empty one. */
+    public static Frame parseMessage(String line) {
+        int colon = line.indexOf(':');
+        if (colon > 0) {
+            return Frame.message(line.substring(0, colon).trim(), "", line.substring(colon + 1).trim());
+        }
+        return Frame.message("", "", line);
+    }
+
+    /**
+     * Parses a chat line held as UTF-8 bytes, the way {@link #parseMessage(String)}
+     * does, without decoding it: the frame's payload is a view into {@code line}.
+     */
+    public static Frame parseMessage(ByteBuffer line) {
+        int start = line.position();
+        int end = line.limit();
+        int colon = start;
+        while (colon < end && line.get(colon) != ':') colon++;
+        if (colon == start || colon == end) {
+            return Frame.message("", "", line);
+        }
+        int from = colon + 1;
+        while (from < end && isSpace(line.get(from))) from++;
+        while (end > from && isSpace(line.get(end - 1))) end--;
+        return Frame.message(utf8(line, start, colon).trim(), "", line.slice(from, end - from));
+    }
+
+    /** Whether a line held as bytes is a slash command rather than a chat message. */
+    public static boolean isCommand(ByteBuffer line) {
+        return line.hasRemaining() && line.get(line.position()) == '/';
+    }
+
+    /**
+     * Takes the next complete line from {@code buf}, advancing its position
+     * past the newline. The line is a view into {@code buf}, without its
+     * {@code \n} or {@code \r\n}.
+     *
+     * @return null if the buffer does not yet hold a whole line; the position is left unchanged
+     */
+    public static ByteBuffer nextLine(ByteBuffer buf) {
+        int start = buf.position();
+        int limit = buf.limit();
+        for (int i = start; i < limit; i++) {
+            if (buf.get(i) == '\n') {
+                int end = i > start && buf.get(i - 1) == '\r' ? i - 1 : i;
+                buf.position(i + 1);
+                return buf.slice(start, end - start);
+            }
+        }
+        return null;
+    }
+
+    // The bytes String.trim() removes; none of them occur inside a multi-byte UTF-8 sequence.
+    private static boolean isSpace(byte b) {
+        return (b & 0xFF) <= ' ';
+    }
+
+    private static String utf8(ByteBuffer buf, int from, int to) {
+        if (buf.hasArray()) {
+            return new String(buf.array(), buf.arrayOffset() + from, to - from, StandardCharsets.UTF_8);
+        }
+        byte[] b = new byte[to - from];
+        buf.get(from, b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses {@code /login name}, {@code /msg user text}, {@code /join room},
+     * {@code /leave}, {@code /rooms} or {@code /search words}, which searches
+     * the current room.
+     *
+     * @return null if the line is not a known command
+     */
+    public static Frame parseCommand(String line) {
+        String[] parts = line.trim().split("\\s+", 2);
+        return switch (parts[0]) {
+            case "/login" -> new Login(parts.length > 1 ? parts[1] : "", Login.ANY_DEVICE).toFrame();
+            case "/msg" -> {
+                String[] args = parts.length > 1 ? parts[1].split("\\s+", 2) : new String[]{""};
+                yield Frame.direct(args[0], args.length > 1 ? args[1] : "");
+            }
+            case "/join" -> Frame.control(FrameType.JOIN, parts.length > 1 ? parts[1].toLowerCase() : "");
+            case "/leave" -> Frame.control(FrameType.LEAVE, "");
+            case "/rooms" -> Frame.control(FrameType.LIST_ROOMS, "");
+            case "/search" -> SearchRequest.latest("", parts.length > 1 ? parts[1] : "").toFrame();
+            default -> null;
+        };
+    }
+
+    /** Renders a frame as a single text line, without the terminating newline. */
+    public static String format(Frame frame) {
+        return switch (frame.getType()) {
+            case MESSAGE -> frame.getSender().isEmpty()
+                    ? flatten(frame.text())
+                    : frame.getSender() + ": " + flatten(frame.text());
+            case SYSTEM -> SERVER_SENDER + ": " + flatten(frame.text());
+            case JOIN -> "/join " + frame.getRoom();
+            case LEAVE -> "/leave";
+            case LIST_ROOMS -> "/rooms";
+            case LOGIN -> "/login " + frame.getSender();
+            // Sent by a client, a direct message has no sender yet; delivered, it names both ends.
+            case DIRECT -> frame.getSender().isEmpty()
+                    ? "/msg " + frame.getRoom() + " " + flatten(frame.text())
+                    : frame.getSender() + " -> " + frame.getRoom() + ": " + flatten(frame.text());
+            case SEARCH -> "/search " + SearchRequest.query(frame);
+            case FILE -> {
+                try {
+                    yield frame.getSender() + " shared " + SharedFile.from(frame).describe();
+                } catch (ProtocolException e) {
+                    yield frame.getSender() + " shared a file";
+                }
+            }
+            // History and search results are pushed to text clients as plain messages, and
+            // presence and file transfers are binary only; there is nothing to show for these.
+            case HISTORY_REQUEST, HISTORY_END, SEARCH_END, PRESENCE, TYPING, UPLOAD, FILE_CHUNK, DOWNLOAD -> "";
+        };
+    }
+
+    private static String flatten(String text) {
+        return text.indexOf('\n') < 0 ? text : text.replace("\r", "").replace('\n', ' ');
+    }
+}
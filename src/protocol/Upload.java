@@ -0,0 +1,53 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An {@link FrameType#UPLOAD}: a client starting or resuming the upload of
+ * a file to share in its room, and the server's acknowledgements.
+ *
+ * <pre>
+ * long  uploadId  chosen by the client, the same when it resumes
+ * long  size      of the whole file, in bytes
+ * long  received  bytes the server has; ignored from clients
+ * bytes name      UTF-8, the rest of the payload
+ * </pre>
+ *
+ * The server answers the first UPLOAD on a connection with how much it
+ * already has, so an upload interrupted by a reconnect picks up where it
+ * stopped. The client then sends {@link FileChunk}s from there, keeping at
+ * most a window of bytes unacknowledged; the server acknowledges as they are
+ * written to its spool and shares the file once {@code received == size}.
+ * {@link #REJECTED} means the server will not take the file, with a SYSTEM
+ * notice saying why.
+ */
+public record Upload(long uploadId, long size, long received, String name) {
+
+    public static final long REJECTED = -1;
+
+    public static Upload begin(long uploadId, long size, String name) {
+        return new Upload(uploadId, size, 0, name);
+    }
+
+    /** This upload as acknowledged up to {@code received} bytes. */
+    public Upload ack(long received) {
+        return new Upload(uploadId, size, received, name);
+    }
+
+    public Frame toFrame() {
+        byte[] n = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(24 + n.length)
+                .putLong(uploadId).putLong(size).putLong(received).put(n).flip();
+        return Frame.control(FrameType.UPLOAD, "", payload);
+    }
+
+    public static Upload from(Frame frame) throws ProtocolException {
+        ByteBuffer p = frame.payload();
+        if (p.remaining() < 24) throw new ProtocolException("Truncated upload");
+        long uploadId = p.getLong();
+        long size = p.getLong();
+        long received = p.getLong();
+        return new Upload(uploadId, size, received, StandardCharsets.UTF_8.decode(p).toString());
+    }
+}
@@ -0,0 +1,39 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Free list of equally sized direct buffers. Channels read into direct
+ * buffers without the extra copy a heap buffer costs, but they are slow to
+ * allocate and freed only by the GC, so they are recycled here instead. Not
+ * thread-safe: each reactor owns one pool and only uses it on its own thread.
+ */
+final class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+
+    /**
+     * @param bufferSize capacity of every buffer handed out
+     * @param maxPooled  free buffers kept; more than that are left to the GC
+     */
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /** A cleared buffer of {@code bufferSize} bytes. */
+    ByteBuffer acquire() {
+        ByteBuffer buf = free.pollFirst();
+        return buf != null ? buf : ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /** Returns a buffer; ones this pool did not hand out are ignored. */
+    void release(ByteBuffer buf) {
+        if (buf.isDirect() && buf.capacity() == bufferSize && free.size() < maxPooled) {
+            free.addFirst(buf.clear());
+        }
+    }
+}
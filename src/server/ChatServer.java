@@ -1,49 +1,809 @@
 package server;
 
+import protocol.Compression;
+import protocol.FileChunk;
+import protocol.Frame;
+import protocol.FrameType;
+import protocol.HistoryRequest;
+import protocol.Login;
+import protocol.Presence;
+import protocol.ProtocolException;
+import protocol.SearchRequest;
+import protocol.SharedFile;
+import protocol.TextCodec;
+import protocol.Upload;
+import server.cluster.ClusterBus;
+import server.cluster.ClusterMessage;
+import server.cluster.Deduplicator;
+import server.cluster.TcpMeshBus;
+import server.files.FileStore;
+import server.files.FileTransfer;
+import server.metrics.ConnectionGauges;
+import server.metrics.DisconnectReason;
+import server.metrics.MetricsHttpServer;
+import server.metrics.ServerMetrics;
+import server.search.SearchIndex;
+import server.store.HistoryStore;
+import server.store.MessageLog;
+
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ChatServer {
 
+    // Largest history response, and how many frames are queued before waiting for the client to drain.
+    private static final int MAX_HISTORY = 1000;
+    private static final int HISTORY_CHUNK = 64;
+    private static final int MAX_SEARCH = 100;
+    // Upload bytes between acknowledgements; a quarter of the window a client keeps in flight.
+    private static final int ACK_BYTES = 64 * 1024;
+    // Direct messages are numbered apart from room messages, so other nodes deduplicate them separately.
+    private static final String DIRECT_ORIGIN = "/direct";
+
+    private final ServerConfig config;
     private ServerSocket serverSocket;
-    private final List<ClientHandler> clients = new CopyOnWriteArrayList<>();
+    private NioServer nioServer;
+    private ConnectionExecutor executor;
+    private final Set<Connection> clients = ConcurrentHashMap.newKeySet();
+    private final RoomRegistry rooms = new RoomRegistry();
+    private final UserRegistry users = new UserRegistry();
+    // Direct messages are not logged, so their ids only serve cluster deduplication.
+    private final AtomicLong lastDirectId = new AtomicLong();
+    // Ids double as log offsets, so they are assigned and appended under one lock to keep the log ordered.
+    private final Object sequenceLock = new Object();
+    private long lastId;
+    private MessageLog log;
+    private HistoryStore history;
+    private SearchIndex search;
+    private FileStore files;
+    private final ExecutorService historyExecutor =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("history-", 0).factory());
+    // Spools upload chunks for NIO connections, so a slow disk holds up only the uploader.
+    private final ExecutorService spoolExecutor =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("spool-", 0).factory());
+    private final ServerMetrics metrics = new ServerMetrics(new Gauges());
+    private MetricsHttpServer metricsHttp;
+    private final ClusterBus bus;
+    private final Deduplicator seen = new Deduplicator();
+    private final FloodControl flood;
+    private final PresenceTracker presence;
+    private volatile boolean running = true;
 
     public ChatServer(int port) {
+        this(new ServerConfig().port(port));
+    }
+
+    /** A standalone server, or a TCP mesh node when the config has a cluster port. */
+    public ChatServer(ServerConfig config) {
+        this(config, config.getClusterPort() < 0 ? null
+                : new TcpMeshBus(config.getNodeId(), config.getClusterPort(), config.getPeers()));
+    }
+
+    /**
+     * @param bus carries broadcasts to and from the other nodes, or null to run
+     *            standalone; it is started here and closed by {@link #stop()}
+     */
+    public ChatServer(ServerConfig config, ClusterBus bus) {
+        this.config = config;
+        this.bus = bus;
+        Log.setLevel(config.getLogLevel());
+        OutboundFrame.setCompressThreshold(config.getCompressThreshold());
+        flood = new FloodControl(config, rooms, metrics);
+        presence = new PresenceTracker(rooms, metrics, config.getPresenceIntervalMs());
         try {
-            serverSocket = new ServerSocket(port);
-            System.out.println("Server started on port " + port);
+            if (config.getMode() == ServerMode.NIO) {
+                nioServer = new NioServer(config.getPort(), config.getReactorThreads(), this);
+            } else {
+                serverSocket = new ServerSocket(config.getPort());
+                executor = new ConnectionExecutor(config.getExecutorKind(), config.getMaxConnections());
+            }
+            if (config.getDataDir() != null) {
+                log = new MessageLog(config.getDataDir(), config.getFsyncPolicy(),
+                        config.getFsyncIntervalMs(), config.getSegmentBytes());
+                lastId = log.lastOffset();
+                search = new SearchIndex(config.getDataDir().resolve("index"), log);
+                files = new FileStore(config.getDataDir().resolve("files"), config.getMaxFileBytes());
+            }
+            history = new HistoryStore(config.getHistoryRingSize(), log);
+            history.load();
+            if (bus != null) bus.start(this::onClusterMessage);
+            metrics.registerMBean(getPort());
+            if (config.getMetricsPort() >= 0) {
+                metricsHttp = new MetricsHttpServer(config.getMetricsPort(), metrics);
+                Log.info("Metrics at http://localhost:{}/metrics", metricsHttp.getPort());
+            }
+            Log.info("Server started on port {} ({} mode)", getPort(), config.getMode());
         } catch (IOException e) {
             throw new RuntimeException("Could not start server", e);
         }
     }
 
     public void start() {
-        while (true) {
+        if (config.getMode() == ServerMode.NIO) {
+            nioServer.run();
+            return;
+        }
+        while (running) {
             try {
                 Socket socket = serverSocket.accept();
-                System.out.println("New client connected.");
+                Log.info("New client connected.");
 
                 ClientHandler client = new ClientHandler(socket, this);
-                clients.add(client);
-                new Thread(client).start();
+                // Added on its own thread, once admitted, so a rejected client is never counted or seated.
+                if (!executor.execute(() -> {
+                    addClient(client);
+                    client.run();
+                })) {
+                    Log.warn("Connection limit reached, rejecting client.");
+                    metrics.connectionRejected();
+                    client.close();
+                }
 
             } catch (IOException e) {
-                System.out.println("Error accepting client!");
+                if (running) Log.warn("Error accepting client: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stops accepting clients, disconnects everyone and waits for the
+     * connection threads to exit.
+     */
+    public void stop() {
+        running = false;
+        try {
+            if (serverSocket != null) serverSocket.close();
+            if (nioServer != null) nioServer.close();
+        } catch (IOException ignored) {}
+
+        for (Connection c : clients) {
+            c.close();
+        }
+
+        if (executor != null) {
+            try {
+                if (!executor.shutdown(5, TimeUnit.SECONDS)) {
+                    Log.warn("Some connections did not stop in time.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (bus != null) bus.close();
+        presence.close();
+        historyExecutor.shutdownNow();
+        spoolExecutor.shutdownNow();
+        if (files != null) files.close();
+        if (search != null) {
+            try {
+                search.close();
+            } catch (IOException e) {
+                Log.error("Could not close search index: {}", e.getMessage());
+            }
+        }
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                Log.error("Could not close message log: {}", e.getMessage());
+            }
+        }
+        if (metricsHttp != null) metricsHttp.close();
+        metrics.close();
+        Log.info("Server stopped.");
+        Log.flush();
+    }
+
+    public void addClient(Connection client) {
+        metrics.connectionAccepted();
+        clients.add(client);
+        rooms.join(client.getRoom(), client);
+    }
+
+    /** The port actually bound, which differs from the configured one when that is 0. */
+    public int getPort() {
+        return serverSocket != null ? serverSocket.getLocalPort() : nioServer.getPort();
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    public ConnectionExecutor getExecutor() {
+        return executor;
+    }
+
+    /** The persistent message log, or null when running without a data directory. */
+    public MessageLog getLog() {
+        return log;
+    }
+
+    public HistoryStore getHistory() {
+        return history;
+    }
+
+    /** The full-text index, or null when running without a data directory. */
+    public SearchIndex getSearch() {
+        return search;
+    }
+
+    /** Shared files, or null when running without a data directory. */
+    public FileStore getFiles() {
+        return files;
+    }
+
+    public RoomRegistry getRooms() {
+        return rooms;
+    }
+
+    public UserRegistry getUsers() {
+        return users;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public FloodControl getFloodControl() {
+        return flood;
+    }
+
+    public PresenceTracker getPresence() {
+        return presence;
+    }
+
+    /** The inter-node bus, or null when standalone. */
+    public ClusterBus getBus() {
+        return bus;
+    }
+
+    /**
+     * Called once a connection's protocol is known. Binary clients are told
+     * which room they are in, with who is there, and fetch history
+     * themselves; text clients get the room's recent messages pushed.
+     */
+    public void onConnected(Connection client) {
+        welcome(client, client.getRoom());
+    }
+
+    private void welcome(Connection client, String room) {
+        if (client.isBinary()) {
+            client.send(OutboundFrame.of(Frame.control(FrameType.JOIN, room)));
+            for (Presence snapshot : presence.snapshot(room)) {
+                client.send(OutboundFrame.of(snapshot.toFrame()));
             }
+        } else if (config.getHistoryOnJoin() > 0) {
+            streamHistory(client, HistoryRequest.latest(room, config.getHistoryOnJoin()));
         }
     }
 
-    public void broadcast(String message, ClientHandler sender) {
-        for (ClientHandler c : clients) {
+    /**
+     * Entry point for every line a text client sends: a /command or a chat
+     * message, as UTF-8 without the newline. Like a frame, the line may be a
+     * view into the connection's read buffer; chat messages are never decoded
+     * to a String here.
+     */
+    public void onLine(Connection sender, ByteBuffer line) {
+        if (TextCodec.isCommand(line)) {
+            String text = StandardCharsets.UTF_8.decode(line).toString();
+            Frame command = TextCodec.parseCommand(text);
+            if (command == null) {
+                sender.sendSystem("Unknown command " + text.trim().split("\\s+", 2)[0]);
+            } else {
+                onFrame(sender, command);
+            }
+        } else {
+            onFrame(sender, TextCodec.parseMessage(line));
+        }
+    }
+
+    /**
+     * Entry point for every frame a client sends. The frame may be a view into
+     * the connection's read buffer and is only valid for the duration of the call.
+     */
+    public void onFrame(Connection sender, Frame frame) {
+        metrics.messageIn();
+        Log.debug("Client: {}", frame);
+        switch (frame.getType()) {
+            case MESSAGE -> {
+                // Sending ends typing, without the client having to say so.
+                if (sender.getUsername() != null) presence.typing(sender.getRoom(), sender.getUsername(), false);
+                broadcast(sender.getRoom(), frame, sender);
+            }
+            case TYPING -> {
+                if (sender.getUsername() != null) {
+                    presence.typing(sender.getRoom(), sender.getUsername(), Presence.isTyping(frame));
+                }
+            }
+            case DIRECT -> direct(sender, frame);
+            case LOGIN -> {
+                try {
+                    login(sender, Login.from(frame));
+                } catch (ProtocolException e) {
+                    sender.sendSystem("Bad login");
+                }
+            }
+            case JOIN -> {
+                String room = frame.getRoom().toLowerCase();
+                if (!RoomRegistry.isValidName(room)) {
+                    sender.sendSystem("Usage: /join <room> (letters, digits, - and _)");
+                } else {
+                    joinRoom(sender, room);
+                }
+            }
+            case LEAVE -> joinRoom(sender, RoomRegistry.DEFAULT_ROOM);
+            case HISTORY_REQUEST -> {
+                try {
+                    streamHistory(sender, HistoryRequest.from(frame));
+                } catch (ProtocolException e) {
+                    sender.sendSystem("Bad history request");
+                }
+            }
+            case SEARCH -> {
+                try {
+                    search(sender, SearchRequest.from(frame));
+                } catch (ProtocolException e) {
+                    sender.sendSystem("Bad search request");
+                }
+            }
+            case UPLOAD -> {
+                try {
+                    upload(sender, Upload.from(frame));
+                } catch (ProtocolException e) {
+                    sender.sendSystem("Bad upload");
+                }
+            }
+            case FILE_CHUNK -> {
+                try {
+                    receiveChunk(sender, FileChunk.from(frame));
+                } catch (ProtocolException e) {
+                    sender.sendSystem("Bad file chunk");
+                }
+            }
+            case DOWNLOAD -> {
+                try {
+                    download(sender, FileChunk.from(frame));
+                } catch (ProtocolException e) {
+                    sender.sendSystem("Bad download request");
+                }
+            }
+            case LIST_ROOMS -> {
+                StringBuilder sb = new StringBuilder("Rooms:");
+                rooms.snapshot().forEach((room, count) ->
+                        sb.append(' ').append('#').append(room).append(" (").append(count).append(')'));
+                sender.sendSystem(sb.toString());
+            }
+            default -> sender.sendSystem("Unexpected " + frame.getType() + " frame");
+        }
+    }
+
+    /**
+     * Registers the name a client logged in with, so direct messages can find
+     * it. A second login from the same device replaces the older connection;
+     * other devices are added up to the configured limit.
+     */
+    public void login(Connection client, Login login) {
+        String name = login.username();
+        if (client.getUsername() != null) {
+            client.sendSystem("Already logged in as " + client.getUsername());
+            return;
+        }
+        if (!UserRegistry.isValidName(name)) {
+            client.sendSystem("Usage: /login <name> (up to " + UserRegistry.MAX_NAME_LENGTH + " characters, no ':')");
+            return;
+        }
+        // Named before registering, so a close racing with the login still unregisters it.
+        client.setUsername(name);
+        UserRegistry.Registration registration = users.register(name, login.device(), client, config.getMaxDevices());
+        metrics.login(registration.result());
+        switch (registration.result()) {
+            case TOO_MANY_DEVICES -> {
+                client.setUsername(null);
+                client.sendSystem(name + " is already logged in on " + config.getMaxDevices() + " devices");
+                return;
+            }
+            case REPLACED -> {
+                Log.info("Duplicate login, closing the older connection of {}", name);
+                registration.replaced().close(DisconnectReason.DUPLICATE_LOGIN);
+            }
+            case ADDED -> { }
+        }
+        presence.joined(client.getRoom(), name, client);
+        if (!client.isOpen()) {
+            users.unregister(name, client);
+            presence.left(client.getRoom(), name, client);
+        } else if (client.isBinary()) {
+            client.send(OutboundFrame.of(new Login(name, login.device()).toFrame()));
+        } else {
+            client.sendSystem("Logged in as " + name);
+        }
+    }
+
+    /**
+     * Sends a message to every device of one user, found through the user
+     * index rather than by walking the clients. The sender is the name the
+     * client logged in with, whatever the frame says. In a cluster the
+     * message also goes to the other nodes, which deliver it to devices of
+     * the user connected to them.
+     */
+    private void direct(Connection sender, Frame frame) {
+        String from = sender.getUsername();
+        if (from == null) {
+            sender.sendSystem("Log in with /login <name> to send direct messages");
+            return;
+        }
+        String to = frame.getRoom();
+        if (!UserRegistry.isValidName(to) || frame.payloadLength() == 0) {
+            sender.sendSystem("Usage: /msg <user> <message>");
+            return;
+        }
+        // Without other nodes, an absent user is known to be offline.
+        if (bus == null && users.connections(to).isEmpty()) {
+            sender.sendSystem(to + " is not online");
+            return;
+        }
+        metrics.directMessage();
+        Frame stamped = new Frame(FrameType.DIRECT, 0, lastDirectId.incrementAndGet(), System.currentTimeMillis(),
+                from, to, frame.detach().payload());
+        OutboundFrame out = deliverDirect(stamped, sender);
+        if (bus != null) bus.publish(out);
+    }
+
+    // Queues a direct message for the recipient's devices and the sender's other ones, which show it as sent.
+    private OutboundFrame deliverDirect(Frame frame, Connection sender) {
+        OutboundFrame out = OutboundFrame.of(frame);
+        for (Connection c : users.connections(frame.getRoom())) {
+            if (c != sender) c.send(out);
+        }
+        if (!UserRegistry.sameUser(frame.getSender(), frame.getRoom())) {
+            for (Connection c : users.connections(frame.getSender())) {
+                if (c != sender) c.send(out);
+            }
+        }
+        return out;
+    }
+
+    public void joinRoom(Connection client, String room) {
+        String previous = client.getRoom();
+        if (!room.equals(previous)) {
+            rooms.join(room, client);
+            client.setRoom(room);
+            rooms.leave(previous, client);
+            String username = client.getUsername();
+            if (username != null) {
+                presence.left(previous, username, client);
+                presence.joined(room, username, client);
+            }
+        }
+        client.sendSystem("Joined #" + room + " (" + rooms.members(room).size() + " online)");
+        welcome(client, room);
+    }
+
+    /**
+     * Sends part of a room's history on a separate thread, a chunk at a time,
+     * waiting for the client's queue to drain between chunks so catch-up
+     * never crowds out live messages.
+     */
+    public void streamHistory(Connection client, HistoryRequest request) {
+        historyExecutor.execute(() -> {
+            String room = request.room().isEmpty() ? client.getRoom() : request.room();
+            int limit = Math.min(Math.max(request.limit(), 0), MAX_HISTORY);
+            try {
+                HistoryStore.Page page = switch (request.direction()) {
+                    case LATEST -> history.latest(room, limit);
+                    case AFTER -> history.after(room, request.anchor(), limit);
+                    case BEFORE -> history.before(room, request.anchor(), limit);
+                };
+                List<Frame> frames = page.frames();
+
+                int drainedDepth = config.getQueueCapacity() / 2;
+                for (int i = 0; i < frames.size(); i++) {
+                    if (i % HISTORY_CHUNK == 0) {
+                        while (client.isOpen() && client.getQueueDepth() > drainedDepth) {
+                            Thread.sleep(5);
+                        }
+                        if (!client.isOpen()) return;
+                    }
+                    client.send(OutboundFrame.of(frames.get(i).withFlags(Frame.FLAG_HISTORY)));
+                }
+                if (client.isBinary()) {
+                    client.send(OutboundFrame.of(HistoryRequest.end(room, frames.size(), page.more())));
+                }
+            } catch (IOException e) {
+                Log.warn("History read failed: {}", e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    /**
+     * Answers a search on a separate thread: the index gives the ids of the
+     * matching messages, newest first, and they are read back from the log
+     * in one pass. Text clients get a count line ahead of the matches,
+     * binary clients a SEARCH_END after them.
+     */
+    public void search(Connection client, SearchRequest request) {
+        if (search == null) {
+            client.sendSystem("Search is not available on this server");
+            return;
+        }
+        if (request.query().isBlank()) {
+            client.sendSystem("Usage: /search <words>");
+            return;
+        }
+        historyExecutor.execute(() -> {
+            String room = request.room().isEmpty() ? client.getRoom() : request.room();
+            int limit = Math.min(Math.max(request.limit(), 0), MAX_SEARCH);
+            long start = System.nanoTime();
+            long[] ids = search.search(room, request.query(), request.beforeId(), limit);
+            metrics.searchCompleted(System.nanoTime() - start);
+            if (!client.isBinary()) {
+                client.sendSystem(ids.length + (ids.length == 1 ? " result" : " results")
+                        + " for \"" + request.query().trim() + "\" in #" + room);
+            }
+            try {
+                // One pass over the log, oldest first, then sent newest first like the ids came.
+                long[] ascending = new long[ids.length];
+                for (int i = 0; i < ids.length; i++) ascending[i] = ids[ids.length - 1 - i];
+                List<Frame> frames = log.read(ascending);
+                for (int i = frames.size() - 1; i >= 0; i--) {
+                    client.send(OutboundFrame.of(frames.get(i).withFlags(Frame.FLAG_SEARCH)));
+                }
+            } catch (IOException e) {
+                Log.warn("Search read failed: {}", e.getMessage());
+            }
+            if (client.isBinary()) {
+                client.send(OutboundFrame.of(SearchRequest.end(room, ids.length, ids.length == limit)));
+            }
+        });
+    }
+
+    /**
+     * Starts or resumes a client's upload and tells it how many bytes the
+     * server already has; a rejected upload gets a notice saying why.
+     */
+    public void upload(Connection client, Upload upload) {
+        String reason;
+        if (files == null) {
+            reason = "File sharing is not available on this server";
+        } else if (client.getUsername() == null) {
+            reason = "Log in with /login <name> to share files";
+        } else {
+            Upload named = new Upload(upload.uploadId(), upload.size(), 0, SharedFile.safeName(upload.name()));
+            try {
+                long received = files.begin(client, client.getUsername(), named);
+                client.send(OutboundFrame.of(named.ack(received).toFrame()));
+                return;
+            } catch (IllegalArgumentException e) {
+                reason = e.getMessage();
+            } catch (IOException e) {
+                Log.warn("Could not start upload: {}", e.getMessage());
+                reason = "Could not store " + named.name();
+            }
+        }
+        client.sendSystem(reason);
+        client.send(OutboundFrame.of(upload.ack(Upload.REJECTED).toFrame()));
+    }
+
+    /**
+     * Spools a chunk of an upload on another thread and runs {@code done}
+     * once it is written. For connections whose thread serves others too;
+     * the caller reads nothing more from the connection until then, which
+     * keeps its chunks in order and its memory bounded. The frame may be a
+     * view into a read buffer, so its data is copied first.
+     */
+    public void onChunk(Connection sender, Frame frame, Runnable done) {
+        metrics.messageIn();
+        FileChunk chunk;
+        try {
+            chunk = FileChunk.from(frame.detach());
+        } catch (ProtocolException e) {
+            sender.sendSystem("Bad file chunk");
+            done.run();
+            return;
+        }
+        try {
+            spoolExecutor.execute(() -> {
+                try {
+                    receiveChunk(sender, chunk);
+                } finally {
+                    done.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down.
+            done.run();
+        }
+    }
+
+    /**
+     * Spools a chunk of an upload, acknowledging every {@value #ACK_BYTES}
+     * bytes so the client can send more. A finished upload is moved into the
+     * store on another thread, as flushing it to disk can take a while, and
+     * announced in the uploader's room.
+     */
+    private void receiveChunk(Connection client, FileChunk chunk) {
+        String user = client.getUsername();
+        if (files == null || user == null) return;
+        int length = chunk.data().remaining();
+        Upload ack = null;
+        try {
+            ack = files.write(client, user, chunk);
+        } catch (IOException e) {
+            Log.warn("Could not write upload: {}", e.getMessage());
+        }
+        if (ack == null) {
+            client.send(OutboundFrame.of(new Upload(chunk.id(), 0, Upload.REJECTED, "").toFrame()));
+            return;
+        }
+        long received = ack.received();
+        boolean written = received == chunk.offset() + length;
+        // A chunk that was not written gets an ack too, so the client resends from the right place.
+        if (!written || received == ack.size() || received / ACK_BYTES != chunk.offset() / ACK_BYTES) {
+            client.send(OutboundFrame.of(ack.toFrame()));
+        }
+        if (written && received == ack.size()) {
+            Upload done = ack;
+            historyExecutor.execute(() -> {
+                try {
+                    SharedFile shared = files.complete(user, done.uploadId());
+                    if (shared == null) return;
+                    metrics.fileShared();
+                    // Not sent to other nodes: the file can only be downloaded from this one.
+                    deliver(client.getRoom(), shared.toFrame(user), System.currentTimeMillis(), null);
+                } catch (IOException e) {
+                    Log.warn("Could not store upload: {}", e.getMessage());
+                    client.sendSystem("Could not store " + done.name());
+                }
+            });
+        }
+    }
+
+    /** Starts sending a stored file, from where the client's copy ends. */
+    private void download(Connection client, FileChunk request) {
+        FileTransfer transfer = null;
+        if (files != null) {
+            try {
+                transfer = files.open(request.id(), request.offset());
+            } catch (IOException e) {
+                Log.warn("Could not open file: {}", e.getMessage());
+            }
+        }
+        if (transfer == null) {
+            client.send(OutboundFrame.of(new FileChunk(request.id(), FileChunk.NOT_FOUND, ByteBuffer.allocate(0)).toFrame()));
+        } else if (client.sendFile(transfer)) {
+            metrics.fileDownload();
+        } else {
+            client.sendSystem("Too many downloads at once");
+        }
+    }
+
+    /** Sends a text-protocol line to everyone in the sender's room, or the default room if there is no sender. */
+    public void broadcast(String message, Connection sender) {
+        broadcast(sender != null ? sender.getRoom() : RoomRegistry.DEFAULT_ROOM, TextCodec.parseMessage(message), sender);
+    }
+
+    public void broadcast(String room, Frame message, Connection sender) {
+        long start = System.nanoTime();
+        Frame detached = message.detach();
+        // Once logged in, a connection speaks as its user whatever name the frame carries, as with direct messages.
+        if (sender != null && sender.getUsername() != null && !sender.getUsername().equals(detached.getSender())) {
+            detached = new Frame(detached.getType(), detached.getFlags(), detached.getId(), detached.getTimestamp(),
+                    sender.getUsername(), detached.getRoom(), detached.payload());
+        }
+        OutboundFrame frame = deliver(room, detached, System.currentTimeMillis(), sender);
+        if (bus != null) bus.publish(frame);
+        metrics.broadcastCompleted(System.nanoTime() - start);
+    }
+
+    /**
+     * A message another node sequenced. It gets a local id, so it lands in
+     * this node's log and history like any other, keeps its original
+     * timestamp, and is not forwarded again: every node hears from every
+     * origin directly. Direct messages only go to the two users' devices here.
+     */
+    private void onClusterMessage(ClusterMessage message) {
+        Frame frame;
+        try {
+            frame = Compression.decompress(message.frame());
+        } catch (ProtocolException e) {
+            Log.warn("Bad message from {}: {}", message.origin(), e.getMessage());
+            return;
+        }
+        boolean direct = frame.getType() == FrameType.DIRECT;
+        if (frame.getType() != FrameType.MESSAGE && !direct) return;
+        if (!seen.firstSeen(direct ? message.origin() + DIRECT_ORIGIN : message.origin(), frame.getId())) {
+            metrics.clusterDuplicate();
+            return;
+        }
+        metrics.clusterMessageIn();
+        if (direct) {
+            deliverDirect(frame.detach(), null);
+        } else {
+            deliver(frame.getRoom(), frame.detach(), frame.getTimestamp(), null);
+        }
+    }
+
+    // Sequences a message into the log and history and queues it for the room's members here.
+    private OutboundFrame deliver(String room, Frame detached, long timestamp, Connection sender) {
+        // Every recipient, and the bus, queues the same immutable frame,
+        // so each wire encoding is produced at most once.
+        Frame stamped;
+        synchronized (sequenceLock) {
+            stamped = detached.withIdAndRoom(++lastId, timestamp, room);
+            if (log != null) log.append(stamped);
+            history.record(stamped);
+            // In id order, like the log; the index skips past any gap by reading the log.
+            if (search != null) search.index(stamped);
+        }
+        OutboundFrame frame = OutboundFrame.of(stamped);
+        for (Connection c : rooms.members(room)) {
             if (c != sender) {
-                c.sendMessage(message);
+                c.send(frame);
             }
         }
+        return frame;
     }
 
-    public void removeClient(ClientHandler client) {
-        clients.remove(client);
+    /** Forgets a closed connection and counts why it ended. */
+    public void removeClient(Connection client, DisconnectReason reason) {
+        if (files != null) files.release(client);
+        if (clients.remove(client)) {
+            rooms.leave(client.getRoom(), client);
+            String username = client.getUsername();
+            if (username != null) {
+                users.unregister(username, client);
+                presence.left(client.getRoom(), username, client);
+            }
+            metrics.disconnected(running ? reason : DisconnectReason.SERVER_CLOSED, client.getDroppedCount());
+        }
+    }
+
+    private final class Gauges implements ConnectionGauges {
+        @Override
+        public int connectedClients() {
+            return clients.size();
+        }
+
+        @Override
+        public int activeRooms() {
+            return rooms.size();
+        }
+
+        @Override
+        public long totalQueueDepth() {
+            long total = 0;
+            for (Connection c : clients) total += c.getQueueDepth();
+            return total;
+        }
+
+        @Override
+        public long maxQueueDepth() {
+            long max = 0;
+            for (Connection c : clients) max = Math.max(max, c.getQueueDepth());
+            return max;
+        }
+
+        @Override
+        public long droppedFrames() {
+            long total = 0;
+            for (Connection c : clients) total += c.getDroppedCount();
+            return total;
+        }
+
+        @Override
+        public long logDroppedMessages() {
+            return log == null ? 0 : log.droppedCount();
+        }
     }
 }
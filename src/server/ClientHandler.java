@@ -1,46 +1,315 @@
 package server;
 
+import protocol.Compression;
+import protocol.FileChunk;
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.FrameType;
+import protocol.ProtocolException;
+import protocol.TextCodec;
+import server.files.FileTransfer;
+import server.metrics.DisconnectReason;
+import server.metrics.ServerMetrics;
+
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class ClientHandler implements Runnable, Connection {
 
-public class ClientHandler implements Runnable {
+    // Messages written between two flushes of the socket.
+    private static final int WRITE_BATCH = 64;
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
 
     private final Socket socket;
     private final ChatServer server;
-    private BufferedReader reader;
-    private PrintWriter writer;
+    private final OutboundQueue outbound;
+    private final ServerMetrics metrics;
+    private final TokenBucket bucket;
+    // First reason this side gave for closing; the read loop's own outcome otherwise.
+    private volatile DisconnectReason closeReason;
+    private volatile String room = RoomRegistry.DEFAULT_ROOM;
+    private volatile String username;
+    private volatile boolean binary;
+    private volatile WireFormat format = WireFormat.TEXT;
+    private InputStream in;
+    private OutputStream out;
+    // Bytes read and not yet handled, ready for reading between fills. Frames
+    // and lines are parsed in place, so reading allocates nothing per message.
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE).flip();
 
     public ClientHandler(Socket socket, ChatServer server) {
         this.socket = socket;
         this.server = server;
+        this.outbound = server.getConfig().newOutboundQueue();
+        this.metrics = server.getMetrics();
+        this.bucket = server.getFloodControl().newConnectionBucket();
 
         try {
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            writer = new PrintWriter(socket.getOutputStream(), true);
+            in = new CountingInputStream(socket.getInputStream(), metrics);
+            out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
         } catch (IOException e) {
-            System.out.println("Client handler setup failed.");
+            Log.warn("Client handler setup failed: {}", e.getMessage());
         }
     }
 
     @Override
     public void run() {
+        DisconnectReason reason = DisconnectReason.CLIENT_CLOSED;
         try {
-            String msg;
+            if (sentHello()) {
+                negotiateBinary();
+            }
+            server.getExecutor().newThread(this::writeLoop).start();
+            server.onConnected(this);
 
-            while ((msg = reader.readLine()) != null) {
-                System.out.println("Client: " + msg);
-                server.broadcast(msg, this);
+            if (binary) {
+                readFrames();
+            } else {
+                readLines();
             }
 
+        } catch (ProtocolException e) {
+            reason = DisconnectReason.PROTOCOL_ERROR;
         } catch (IOException e) {
-            System.out.println("Client disconnected.");
+            reason = DisconnectReason.IO_ERROR;
         } finally {
-            server.removeClient(this);
+            Log.info("Client disconnected.");
+            server.removeClient(this, closeReason != null ? closeReason : reason);
+            outbound.close();
             try { socket.close(); } catch (IOException ignored) {}
         }
     }
 
-    public void sendMessage(String msg) {
-        writer.println(msg);
+    // Binary clients send their hello right away; silent or text clients are treated as text.
+    private boolean sentHello() throws IOException {
+        socket.setSoTimeout(FrameCodec.HELLO_WAIT_MS);
+        try {
+            return fill() && FrameCodec.isHelloStart(readBuffer.get(readBuffer.position()));
+        } catch (SocketTimeoutException e) {
+            return false;
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
+
+    private void negotiateBinary() throws IOException {
+        while (readBuffer.remaining() < FrameCodec.HELLO_LENGTH) {
+            if (!fill()) throw new EOFException();
+        }
+        byte[] hello = new byte[FrameCodec.HELLO_LENGTH];
+        readBuffer.get(hello);
+        int version = FrameCodec.parseHello(hello);
+        if (version < 1) throw new ProtocolException("Bad hello");
+        int agreed = Math.min(version, FrameCodec.VERSION);
+        out.write(FrameCodec.hello(agreed));
+        out.flush();
+        binary = true;
+        format = WireFormat.forVersion(agreed, server.getConfig());
+        outbound.setFormat(format);
+    }
+
+    private void readLines() throws IOException {
+        do {
+            ByteBuffer line;
+            while ((line = TextCodec.nextLine(readBuffer)) != null) {
+                if (admit(!TextCodec.isCommand(line))) server.onLine(this, line);
+            }
+            if (readBuffer.remaining() == readBuffer.capacity()) {
+                // The buffer is full and the line has not ended yet.
+                if (readBuffer.capacity() >= TextCodec.MAX_LINE_LENGTH) throw new ProtocolException("Line too long");
+                grow(Math.min(readBuffer.capacity() * 2, TextCodec.MAX_LINE_LENGTH));
+            }
+        } while (fill());
+    }
+
+    private void readFrames() throws IOException {
+        do {
+            Frame frame;
+            // Frames handed to the server are views into readBuffer, valid until the next fill.
+            while ((frame = FrameCodec.decode(readBuffer)) != null) {
+                // File chunks are paced by the upload window rather than the rate limits.
+                if (frame.getType() == FrameType.FILE_CHUNK || admit(frame.getType() == FrameType.MESSAGE)) {
+                    server.onFrame(this, Compression.decompress(frame));
+                }
+            }
+            int required = FrameCodec.requiredBytes(readBuffer);
+            if (required > readBuffer.capacity()) grow(required);
+        } while (fill());
+    }
+
+    /**
+     * Reads more from the socket after the bytes not yet handled.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        readBuffer.compact();
+        try {
+            int n = in.read(readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position(), readBuffer.remaining());
+            if (n < 0) return false;
+            readBuffer.position(readBuffer.position() + n);
+            return true;
+        } finally {
+            readBuffer.flip();
+        }
+    }
+
+    private void grow(int capacity) {
+        readBuffer = ByteBuffer.allocate(capacity).put(readBuffer).flip();
+    }
+
+    /**
+     * Charges one inbound frame or line to the rate limits. Over them, this
+     * thread sleeps before handling or dropping it; nothing reads the socket
+     * meanwhile, so TCP slows the client down.
+     *
+     * @return true to handle the frame
+     * @throws SocketException if the client was disconnected for it
+     */
+    private boolean admit(boolean message) throws IOException {
+        FloodControl flood = server.getFloodControl();
+        long wait = flood.admit(bucket, room, message);
+        if (wait == 0) return true;
+        if (flood.getPolicy() == FloodControl.Policy.DISCONNECT) {
+            Log.warn("Disconnecting flooding client.");
+            close(DisconnectReason.RATE_LIMITED);
+            throw new SocketException("Rate limit exceeded");
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        return flood.getPolicy() == FloodControl.Policy.DELAY;
+    }
+
+    private void writeLoop() {
+        List<OutboundFrame> batch = new ArrayList<>(WRITE_BATCH);
+        // Allocated with the first download; a socket from a ServerSocket has no channel to transfer files to.
+        byte[] chunkBuffer = null;
+        try {
+            while (outbound.drainTo(batch, WRITE_BATCH)) {
+                long bytes = 0;
+                int frames = batch.size();
+                for (OutboundFrame frame : batch) {
+                    frame.writeTo(out, format);
+                    bytes += frame.length(format);
+                }
+                // One chunk of a download at a time, and only once no frame is waiting.
+                FileTransfer transfer = outbound.getDepth() == 0 ? outbound.nextTransfer() : null;
+                if (transfer != null) {
+                    if (chunkBuffer == null) chunkBuffer = new byte[FileChunk.DOWNLOAD_SIZE];
+                    bytes += transfer.writeTo(out, chunkBuffer);
+                    frames++;
+                    if (transfer.isDone()) {
+                        outbound.removeTransfer(transfer);
+                        transfer.close();
+                    }
+                }
+                out.flush();
+                metrics.written(frames, bytes);
+                batch.clear();
+            }
+        } catch (IOException e) {
+            close(DisconnectReason.IO_ERROR);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void send(OutboundFrame frame) {
+        if (!outbound.offer(frame) && !socket.isClosed()) {
+            Log.warn("Disconnecting slow client.");
+            close(DisconnectReason.SLOW_CONSUMER);
+        }
+    }
+
+    @Override
+    public boolean sendFile(FileTransfer transfer) {
+        if (outbound.offerTransfer(transfer)) return true;
+        try { transfer.close(); } catch (IOException ignored) {}
+        return false;
+    }
+
+    @Override
+    public void close() {
+        close(DisconnectReason.SERVER_CLOSED);
+    }
+
+    @Override
+    public void close(DisconnectReason reason) {
+        if (closeReason == null) closeReason = reason;
+        outbound.close();
+        try { socket.close(); } catch (IOException ignored) {}
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    @Override
+    public boolean isBinary() {
+        return binary;
+    }
+
+    @Override
+    public String getRoom() {
+        return room;
+    }
+
+    @Override
+    public void setRoom(String room) {
+        this.room = room;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return outbound.getDepth();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return outbound.getDroppedCount();
+    }
+
+    /** Counts bytes as they come off the socket, before any buffering. */
+    private static final class CountingInputStream extends FilterInputStream {
+        private final ServerMetrics metrics;
+
+        CountingInputStream(InputStream in, ServerMetrics metrics) {
+            super(in);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) metrics.bytesIn(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) metrics.bytesIn(n);
+            return n;
+        }
     }
 }
@@ -0,0 +1,50 @@
+package server;
+
+import protocol.Frame;
+import server.files.FileTransfer;
+import server.metrics.DisconnectReason;
+
+public interface Connection {
+
+    /** Queues a frame. The frame may be shared with other connections. */
+    void send(OutboundFrame frame);
+
+    /**
+     * Queues a file download, sent a chunk at a time whenever no frame is
+     * waiting to go out.
+     *
+     * @return false if the connection will not take it, in which case the transfer is closed
+     */
+    boolean sendFile(FileTransfer transfer);
+
+    /** Sends a notice from the server to this client only. */
+    default void sendSystem(String text) {
+        send(OutboundFrame.of(Frame.system(getRoom(), text)));
+    }
+
+    void close();
+
+    /** Closes the connection, counting it under {@code reason} unless it was already closing. */
+    void close(DisconnectReason reason);
+
+    boolean isOpen();
+
+    /** True once the client has negotiated the binary protocol; false for text clients. */
+    boolean isBinary();
+
+    /** The room this client's messages go to. */
+    String getRoom();
+
+    void setRoom(String room);
+
+    /** The name this client logged in with, or null if it has not. */
+    String getUsername();
+
+    void setUsername(String username);
+
+    /** Messages queued for this client but not yet written to its socket. */
+    int getQueueDepth();
+
+    /** Messages discarded because this client could not keep up. */
+    long getDroppedCount();
+}
@@ -0,0 +1,88 @@
+package server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs blocking {@link ClientHandler}s, one thread each, up to a fixed number of
+ * concurrent connections. Threads are named so they can be told apart in a
+ * thread dump, and the number in flight is tracked for monitoring.
+ */
+public class ConnectionExecutor {
+
+    public enum Kind { VIRTUAL, PLATFORM }
+
+    private final Kind kind;
+    private final int maxConnections;
+    private final Semaphore permits;
+    private final ThreadFactory factory;
+    private final ExecutorService executor;
+
+    public ConnectionExecutor(Kind kind, int maxConnections) {
+        if (maxConnections < 1) throw new IllegalArgumentException("maxConnections must be >= 1");
+        this.kind = kind;
+        this.maxConnections = maxConnections;
+        this.permits = new Semaphore(maxConnections);
+
+        this.factory = kind == Kind.VIRTUAL
+                ? Thread.ofVirtual().name("chat-conn-v", 0).factory()
+                : Thread.ofPlatform().name("chat-conn-", 0).factory();
+        this.executor = Executors.newThreadPerTaskExecutor(factory);
+    }
+
+    /**
+     * Starts the connection on its own thread.
+     *
+     * @return false if the connection limit has been reached or the executor is shut down
+     */
+    public boolean execute(Runnable connection) {
+        if (!permits.tryAcquire()) return false;
+        try {
+            executor.execute(() -> {
+                try {
+                    connection.run();
+                } finally {
+                    permits.release();
+                }
+            });
+            return true;
+        } catch (RuntimeException e) {
+            permits.release();
+            return false;
+        }
+    }
+
+    /**
+     * Creates an unstarted helper thread of the same kind, e.g. a connection's
+     * writer. Helper threads do not count against the connection limit.
+     */
+    public Thread newThread(Runnable task) {
+        return factory.newThread(task);
+    }
+
+    public int getActiveConnections() {
+        return maxConnections - permits.availablePermits();
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Stops accepting work and waits for running connections to finish. Callers
+     * are expected to have closed the sockets first so blocked reads return.
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        if (executor.awaitTermination(timeout, unit)) return true;
+        executor.shutdownNow();
+        return false;
+    }
+}
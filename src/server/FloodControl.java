@@ -0,0 +1,87 @@
+package server;
+
+import server.metrics.ServerMetrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inbound rate limits. Every frame or line a client sends takes a token from
+ * its connection's bucket, and every chat message also takes one from its
+ * room's bucket, so neither one noisy client nor one busy room can take over
+ * the node's fan-out. What happens to a client over its limit is the
+ * configured {@link Policy}; short of disconnecting, the connection also
+ * stops reading its socket until the limit allows more, so the client is
+ * slowed down by TCP flow control rather than just ignored.
+ */
+public final class FloodControl {
+
+    public enum Policy {
+        // Hold the frame and stop reading until it is within the limit, then handle it.
+        DELAY,
+        // Discard the frame, then stop reading until the limit allows more.
+        DROP,
+        // Close the connection.
+        DISCONNECT
+    }
+
+    // Room buckets are swept of empty rooms once there are this many.
+    private static final int ROOM_SWEEP_THRESHOLD = 4096;
+
+    private final ServerConfig config;
+    private final RoomRegistry rooms;
+    private final ServerMetrics metrics;
+    private final Map<String, TokenBucket> roomBuckets = new ConcurrentHashMap<>();
+
+    FloodControl(ServerConfig config, RoomRegistry rooms, ServerMetrics metrics) {
+        this.config = config;
+        this.rooms = rooms;
+        this.metrics = metrics;
+    }
+
+    /** A bucket for a new connection, or null when connections are not limited. */
+    TokenBucket newConnectionBucket() {
+        return config.getRateLimit() > 0 ? new TokenBucket(config.getRateLimit(), config.getRateBurst()) : null;
+    }
+
+    Policy getPolicy() {
+        return config.getFloodPolicy();
+    }
+
+    /**
+     * Charges one inbound frame to its connection and, for chat messages, to
+     * the room it goes to. Under {@link Policy#DELAY} the tokens are always
+     * taken, borrowing from the future if need be; otherwise they are only
+     * taken when the frame is within the limits.
+     *
+     * @param connection the connection's bucket, or null if unlimited
+     * @return 0 to handle the frame now, otherwise the nanoseconds to stop reading for
+     */
+    long admit(TokenBucket connection, String room, boolean message) {
+        TokenBucket roomBucket = message && config.getRoomRateLimit() > 0 ? roomBucket(room) : null;
+        if (connection == null && roomBucket == null) return 0;
+
+        long now = System.nanoTime();
+        Policy policy = config.getFloodPolicy();
+        long wait;
+        if (policy == Policy.DELAY) {
+            wait = connection != null ? connection.reserve(now) : 0;
+            if (roomBucket != null) wait = Math.max(wait, roomBucket.reserve(now));
+        } else {
+            wait = connection != null ? connection.tryAcquire(now) : 0;
+            if (wait == 0 && roomBucket != null) wait = roomBucket.tryAcquire(now);
+        }
+        if (wait > 0) metrics.rateLimited(policy);
+        return wait;
+    }
+
+    private TokenBucket roomBucket(String room) {
+        TokenBucket bucket = roomBuckets.get(room);
+        if (bucket != null) return bucket;
+        if (roomBuckets.size() >= ROOM_SWEEP_THRESHOLD) {
+            roomBuckets.keySet().removeIf(r -> rooms.members(r).isEmpty());
+        }
+        return roomBuckets.computeIfAbsent(room,
+                r -> new TokenBucket(config.getRoomRateLimit(), config.getRoomRateBurst()));
+    }
+}
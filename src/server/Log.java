@@ -0,0 +1,181 @@
+package server;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server logging. Calls below the current level return after one volatile
+ * read; enabled calls format their message on the caller's thread and hand it
+ * to a background writer, so no request thread ever waits on the console. If
+ * the writer falls behind, lines are dropped and counted rather than blocking.
+ *
+ * <p>Messages take up to three arguments, each written in place of the next
+ * {@code {}} in the message, as in
+ * {@code Log.info("Cluster node {} listening on port {}", id, port)}; they are
+ * only turned into text if the line is logged.
+ */
+public final class Log {
+
+    public enum Level {DEBUG, INFO, WARN, ERROR}
+
+    private static final int QUEUE_CAPACITY = 16 * 1024;
+    private static final int WRITE_BATCH = 256;
+    private static final DateTimeFormatter TIME =
+            DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static volatile Level level = Level.INFO;
+    private static final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final LongAdder dropped = new LongAdder();
+
+    static {
+        Thread writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private Log() {
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static boolean isEnabled(Level l) {
+        return l.compareTo(level) >= 0;
+    }
+
+    public static void debug(String message) {
+        if (isEnabled(Level.DEBUG)) enqueue(Level.DEBUG, message);
+    }
+
+    public static void debug(String message, Object arg) {
+        if (isEnabled(Level.DEBUG)) enqueue(Level.DEBUG, format(message, arg));
+    }
+
+    public static void debug(String message, Object arg1, Object arg2) {
+        if (isEnabled(Level.DEBUG)) enqueue(Level.DEBUG, format(message, arg1, arg2));
+    }
+
+    public static void debug(String message, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(Level.DEBUG)) enqueue(Level.DEBUG, format(message, arg1, arg2, arg3));
+    }
+
+    public static void info(String message) {
+        if (isEnabled(Level.INFO)) enqueue(Level.INFO, message);
+    }
+
+    public static void info(String message, Object arg) {
+        if (isEnabled(Level.INFO)) enqueue(Level.INFO, format(message, arg));
+    }
+
+    public static void info(String message, Object arg1, Object arg2) {
+        if (isEnabled(Level.INFO)) enqueue(Level.INFO, format(message, arg1, arg2));
+    }
+
+    public static void info(String message, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(Level.INFO)) enqueue(Level.INFO, format(message, arg1, arg2, arg3));
+    }
+
+    public static void warn(String message) {
+        if (isEnabled(Level.WARN)) enqueue(Level.WARN, message);
+    }
+
+    public static void warn(String message, Object arg) {
+        if (isEnabled(Level.WARN)) enqueue(Level.WARN, format(message, arg));
+    }
+
+    public static void warn(String message, Object arg1, Object arg2) {
+        if (isEnabled(Level.WARN)) enqueue(Level.WARN, format(message, arg1, arg2));
+    }
+
+    public static void warn(String message, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(Level.WARN)) enqueue(Level.WARN, format(message, arg1, arg2, arg3));
+    }
+
+    public static void error(String message, Object arg) {
+        if (isEnabled(Level.ERROR)) enqueue(Level.ERROR, format(message, arg));
+    }
+
+    public static void error(String message, Object arg1, Object arg2) {
+        if (isEnabled(Level.ERROR)) enqueue(Level.ERROR, format(message, arg1, arg2));
+    }
+
+    public static void error(String message, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(Level.ERROR)) enqueue(Level.ERROR, format(message, arg1, arg2, arg3));
+    }
+
+    /** Lines discarded because the writer could not keep up. */
+    public static long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /** Waits briefly for everything logged so far to be written, e.g. before exiting. */
+    public static void flush() {
+        CountDownLatch done = new CountDownLatch(1);
+        try {
+            if (queue.offer(new Entry(0, null, null, done), 1, TimeUnit.SECONDS)) {
+                done.await(1, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Writes each argument in place of the next {} in the message.
+    private static String format(String message, Object... args) {
+        StringBuilder sb = new StringBuilder(message.length() + 32);
+        int from = 0;
+        for (Object arg : args) {
+            int at = message.indexOf("{}", from);
+            if (at < 0) break;
+            sb.append(message, from, at).append(arg);
+            from = at + 2;
+        }
+        return sb.append(message, from, message.length()).toString();
+    }
+
+    private static void enqueue(Level l, String message) {
+        if (!queue.offer(new Entry(System.currentTimeMillis(), l, message, null))) {
+            dropped.increment();
+        }
+    }
+
+    private static void writeLoop() {
+        PrintStream out = System.out;
+        List<Entry> batch = new ArrayList<>(WRITE_BATCH);
+        StringBuilder sb = new StringBuilder(256);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, WRITE_BATCH - 1);
+            for (Entry e : batch) {
+                if (e.flushed != null) {
+                    out.flush();
+                    e.flushed.countDown();
+                    continue;
+                }
+                sb.setLength(0);
+                TIME.formatTo(Instant.ofEpochMilli(e.time), sb);
+                sb.append(' ').append(e.level).append(e.level.name().length() == 4 ? "  " : " ").append(e.message);
+                out.println(sb);
+            }
+            out.flush();
+            batch.clear();
+        }
+    }
+
+    private record Entry(long time, Level level, String message, CountDownLatch flushed) {
+    }
+}
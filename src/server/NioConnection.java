@@ -0,0 +1,450 @@
+package server;
+
+import protocol.Compression;
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.FrameType;
+import protocol.ProtocolException;
+import protocol.TextCodec;
+import server.files.FileTransfer;
+import server.metrics.DisconnectReason;
+import server.metrics.ServerMetrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking counterpart of {@link ClientHandler}. All channel I/O happens on
+ * the owning reactor thread; {@link #send} may be called from any thread and
+ * only enqueues the frame.
+ */
+class NioConnection implements Connection {
+
+    // Frames handed to a single gathering write.
+    private static final int WRITE_BATCH = 64;
+    // File chunks written per OP_WRITE, so a fast reader does not keep the reactor from its other connections.
+    private static final int CHUNKS_PER_WRITE = 16;
+
+    private final SocketChannel channel;
+    private final NioReactor reactor;
+    private final ChatServer server;
+    // Unread bytes, in a buffer from the reactor's pool; null while there are none.
+    private ByteBuffer readBuffer;
+    private final OutboundQueue outbound;
+    private final ServerMetrics metrics;
+    private final TokenBucket bucket;
+    private volatile String room = RoomRegistry.DEFAULT_ROOM;
+    private volatile String username;
+    // Decided by the first bytes the client sends; nothing is written before that.
+    private volatile boolean negotiated;
+    private volatile boolean binary;
+    private volatile WireFormat format = WireFormat.TEXT;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private SelectionKey key;
+    // Frames being written to the socket, touched only on the reactor thread.
+    private final List<OutboundFrame> drained = new ArrayList<>(WRITE_BATCH);
+    private final ByteBuffer[] pending = new ByteBuffer[WRITE_BATCH];
+    private int pendingStart;
+    private int pendingEnd;
+    // The download whose chunk is being written; no frame may go out until it is finished.
+    private FileTransfer sending;
+    // Reading is off until the rate limits allow more; touched only on the reactor thread.
+    private boolean paused;
+    // The next frame or line was already charged to the limits before reading paused.
+    private boolean admitted;
+
+    NioConnection(SocketChannel channel, NioReactor reactor, ChatServer server) {
+        this.channel = channel;
+        this.reactor = reactor;
+        this.server = server;
+        this.outbound = server.getConfig().newOutboundQueue();
+        this.metrics = server.getMetrics();
+        this.bucket = server.getFloodControl().newConnectionBucket();
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    void onReadable() {
+        if (readBuffer == null) readBuffer = reactor.readBuffers().acquire();
+        try {
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                close(DisconnectReason.CLIENT_CLOSED);
+                return;
+            }
+            metrics.bytesIn(n);
+            readBuffer.flip();
+            if (!negotiated && !negotiate()) {
+                readBuffer.compact();
+                return;
+            }
+            processBuffered();
+        } catch (ProtocolException e) {
+            close(DisconnectReason.PROTOCOL_ERROR);
+        } catch (IOException e) {
+            close(DisconnectReason.IO_ERROR);
+        } finally {
+            releaseIfDrained();
+        }
+    }
+
+    // An idle connection holds no read buffer; only a partial frame or line, or paused reading, keeps one.
+    private void releaseIfDrained() {
+        if (readBuffer != null && (closed.get() || readBuffer.position() == 0 && !paused)) {
+            reactor.readBuffers().release(readBuffer);
+            readBuffer = null;
+        }
+    }
+
+    // Handles what is in readBuffer (flipped for reading) and leaves it ready for the next read.
+    private void processBuffered() throws IOException {
+        if (binary) {
+            readFrames();
+        } else {
+            readLines();
+        }
+    }
+
+    /** @return false if more bytes are needed to tell the protocols apart */
+    private boolean negotiate() throws IOException {
+        if (!readBuffer.hasRemaining()) return false;
+        if (FrameCodec.isHelloStart(readBuffer.get(readBuffer.position()))) {
+            if (readBuffer.remaining() < FrameCodec.HELLO_LENGTH) return false;
+            byte[] hello = new byte[FrameCodec.HELLO_LENGTH];
+            readBuffer.get(hello);
+            int version = FrameCodec.parseHello(hello);
+            if (version < 1) throw new ProtocolException("Bad hello");
+            int agreed = Math.min(version, FrameCodec.VERSION);
+            binary = true;
+            format = WireFormat.forVersion(agreed, server.getConfig());
+            outbound.setFormat(format);
+            writeHelloAck(FrameCodec.hello(agreed));
+        }
+        negotiated = true;
+        server.onConnected(this);
+        if (outbound.getDepth() > 0 && flushScheduled.compareAndSet(false, true)) {
+            enableWrite();
+        }
+        return true;
+    }
+
+    /** Called on the reactor thread once the hello window has passed. */
+    void negotiationTimeout() {
+        if (negotiated || closed.get()) return;
+        negotiated = true;
+        server.onConnected(this);
+        if (outbound.getDepth() > 0 && flushScheduled.compareAndSet(false, true)) {
+            enableWrite();
+        }
+    }
+
+    private void writeHelloAck(byte[] ack) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(ack);
+        channel.write(buf);
+        if (buf.hasRemaining()) throw new IOException("Could not write hello");
+    }
+
+    private void readLines() throws IOException {
+        // Lines are handled in place, like frames, and never copied out of readBuffer.
+        while (!paused && !closed.get()) {
+            int start = readBuffer.position();
+            ByteBuffer line = TextCodec.nextLine(readBuffer);
+            if (line == null) break;
+            if (!admitted && !admit(!TextCodec.isCommand(line))) {
+                // A delayed line is read again once reading resumes.
+                if (admitted) readBuffer.position(start);
+                continue;
+            }
+            admitted = false;
+            server.onLine(this, line);
+        }
+        if (!paused && readBuffer.remaining() == readBuffer.capacity()) {
+            // The buffer is full and the line has not ended yet.
+            if (readBuffer.capacity() >= TextCodec.MAX_LINE_LENGTH) throw new ProtocolException("Line too long");
+            grow(Math.min(readBuffer.capacity() * 2, TextCodec.MAX_LINE_LENGTH));
+        } else {
+            readBuffer.compact();
+        }
+    }
+
+    private void readFrames() throws IOException {
+        // Frames are parsed in place; their payloads are views into readBuffer
+        // and are consumed by the server before the buffer is compacted.
+        while (!paused && !closed.get()) {
+            int start = readBuffer.position();
+            Frame frame = FrameCodec.decode(readBuffer);
+            if (frame == null) break;
+            // File chunks are paced by the upload window rather than the rate limits.
+            if (!admitted && frame.getType() != FrameType.FILE_CHUNK && !admit(frame.getType() == FrameType.MESSAGE)) {
+                // A delayed frame is decoded again once reading resumes.
+                if (admitted) readBuffer.position(start);
+                continue;
+            }
+            admitted = false;
+            if (frame.getType() == FrameType.FILE_CHUNK) {
+                // Written to disk on another thread; the rest waits in readBuffer until it is done.
+                pauseReading();
+                server.onChunk(this, Compression.decompress(frame), () -> reactor.execute(this::resumeReading));
+                continue;
+            }
+            server.onFrame(this, Compression.decompress(frame));
+        }
+        int required = FrameCodec.requiredBytes(readBuffer);
+        if (required > readBuffer.capacity()) {
+            grow(required);
+        } else {
+            readBuffer.compact();
+        }
+    }
+
+    // Moves the unread bytes to a heap buffer of their own, for frames or lines bigger than a pooled one.
+    private void grow(int capacity) {
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        bigger.put(readBuffer);
+        reactor.readBuffers().release(readBuffer);
+        readBuffer = bigger;
+    }
+
+    /**
+     * Charges one inbound frame or line to the rate limits.
+     *
+     * @return true to handle it now; otherwise the connection has been closed,
+     *         or reading is paused and {@link #admitted} says whether the frame
+     *         is to be handled on resume or was dropped
+     */
+    private boolean admit(boolean message) {
+        FloodControl flood = server.getFloodControl();
+        long wait = flood.admit(bucket, room, message);
+        if (wait == 0) return true;
+        switch (flood.getPolicy()) {
+            case DISCONNECT -> {
+                Log.warn("Disconnecting flooding client.");
+                close(DisconnectReason.RATE_LIMITED);
+                return false;
+            }
+            case DELAY -> admitted = true;
+            case DROP -> admitted = false;
+        }
+        pauseReading(wait);
+        return false;
+    }
+
+    // Unread bytes stay in the socket's receive buffer meanwhile, so TCP slows the client down.
+    private void pauseReading(long nanos) {
+        pauseReading();
+        long millis = Math.max(1, (nanos + TimeUnit.MILLISECONDS.toNanos(1) - 1) / TimeUnit.MILLISECONDS.toNanos(1));
+        reactor.schedule(this::resumeReading, millis);
+    }
+
+    private void pauseReading() {
+        paused = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    private void resumeReading() {
+        if (closed.get() || !key.isValid()) return;
+        paused = false;
+        readBuffer.flip();
+        try {
+            processBuffered();
+        } catch (ProtocolException e) {
+            close(DisconnectReason.PROTOCOL_ERROR);
+        } catch (IOException e) {
+            close(DisconnectReason.IO_ERROR);
+        } finally {
+            releaseIfDrained();
+        }
+        if (!paused && !closed.get()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    @Override
+    public void send(OutboundFrame frame) {
+        if (closed.get()) return;
+        if (!outbound.offer(frame)) {
+            Log.warn("Disconnecting slow client.");
+            reactor.execute(() -> close(DisconnectReason.SLOW_CONSUMER));
+            return;
+        }
+        scheduleFlush();
+    }
+
+    @Override
+    public boolean sendFile(FileTransfer transfer) {
+        if (closed.get() || !outbound.offerTransfer(transfer)) {
+            try { transfer.close(); } catch (IOException ignored) {}
+            return false;
+        }
+        scheduleFlush();
+        return true;
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            if (reactor.inEventLoop()) {
+                enableWrite();
+            } else {
+                reactor.execute(this::enableWrite);
+            }
+        }
+    }
+
+    private void enableWrite() {
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    void onWritable() {
+        flushScheduled.set(false);
+        if (!negotiated) {
+            // negotiate() reschedules the flush once the encoding is known.
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            return;
+        }
+        try {
+            int chunks = 0;
+            while (true) {
+                if (sending != null && sending.inChunk()) {
+                    if (!writeChunk(sending)) {
+                        flushScheduled.set(true);
+                        return;
+                    }
+                    continue;
+                }
+                if (pendingStart == pendingEnd && !refillPending()) {
+                    // Nothing else to send: the next chunk of a download, in turn.
+                    if (chunks == CHUNKS_PER_WRITE) {
+                        flushScheduled.set(true);
+                        return;
+                    }
+                    sending = outbound.nextTransfer();
+                    if (sending == null) break;
+                    chunks++;
+                    if (!writeChunk(sending)) {
+                        flushScheduled.set(true);
+                        return;
+                    }
+                    continue;
+                }
+                metrics.bytesOut(channel.write(pending, pendingStart, pendingEnd - pendingStart));
+                while (pendingStart < pendingEnd && !pending[pendingStart].hasRemaining()) {
+                    pending[pendingStart++] = null;
+                }
+                if (pendingStart < pendingEnd) {
+                    // Socket buffer is full; wait for the next OP_WRITE.
+                    flushScheduled.set(true);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if ((outbound.getDepth() > 0 || outbound.hasTransfers()) && flushScheduled.compareAndSet(false, true)) {
+                enableWrite();
+            }
+        } catch (IOException e) {
+            close(DisconnectReason.IO_ERROR);
+        }
+    }
+
+    /** @return false if the socket filled up part way through the chunk */
+    private boolean writeChunk(FileTransfer transfer) throws IOException {
+        metrics.bytesOut(transfer.writeTo(channel));
+        if (transfer.inChunk()) return false;
+        metrics.framesOut(1);
+        if (transfer.isDone()) {
+            outbound.removeTransfer(transfer);
+            transfer.close();
+            sending = null;
+        }
+        return true;
+    }
+
+    private boolean refillPending() {
+        pendingStart = 0;
+        pendingEnd = outbound.drainNow(drained, WRITE_BATCH);
+        metrics.framesOut(pendingEnd);
+        for (int i = 0; i < pendingEnd; i++) {
+            pending[i] = drained.get(i).buffer(format);
+        }
+        drained.clear();
+        return pendingEnd > 0;
+    }
+
+    @Override
+    public void close() {
+        close(DisconnectReason.SERVER_CLOSED);
+    }
+
+    /**
+     * Closes the connection; callable from any thread. The key and channel
+     * are released on the reactor, so it never finds a key cancelled in the
+     * middle of handling it.
+     */
+    @Override
+    public void close(DisconnectReason reason) {
+        if (!closed.compareAndSet(false, true)) return;
+        Log.info("Client disconnected.");
+        server.removeClient(this, reason);
+        if (reactor.inEventLoop() || !reactor.isRunning()) {
+            release();
+        } else {
+            reactor.execute(this::release);
+        }
+    }
+
+    private void release() {
+        if (key != null) key.cancel();
+        try { channel.close(); } catch (IOException ignored) {}
+        outbound.close();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    @Override
+    public boolean isBinary() {
+        return binary;
+    }
+
+    @Override
+    public String getRoom() {
+        return room;
+    }
+
+    @Override
+    public void setRoom(String room) {
+        this.room = room;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return outbound.getDepth();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return outbound.getDroppedCount();
+    }
+}
@@ -0,0 +1,163 @@
+package server;
+
+import protocol.FrameCodec;
+import server.metrics.DisconnectReason;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single-threaded event loop owning a {@link Selector} and every connection
+ * registered with it. Other threads talk to it only through {@link #execute}.
+ */
+class NioReactor implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    // Only connections with unread bytes hold a read buffer, so a few per reactor are enough to reuse.
+    private static final int MAX_POOLED_READ_BUFFERS = 256;
+
+    private final Selector selector;
+    private final ChatServer server;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Only touched on the reactor thread.
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private long timerSeq;
+    private final BufferPool readBuffers = new BufferPool(READ_BUFFER_SIZE, MAX_POOLED_READ_BUFFERS);
+    private volatile Thread thread;
+    private volatile boolean running = true;
+
+    NioReactor(ChatServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                NioConnection conn = new NioConnection(channel, this, server);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, conn);
+                conn.attach(key);
+                server.addClient(conn);
+                schedule(conn::negotiationTimeout, FrameCodec.HELLO_WAIT_MS);
+            } catch (ClosedChannelException e) {
+                Log.info("Client disconnected.");
+            }
+        });
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /** Runs a task on the reactor thread after roughly {@code delayMs}. */
+    void schedule(Runnable task, long delayMs) {
+        long deadline = System.nanoTime() + delayMs * 1_000_000;
+        execute(() -> timers.add(new Timer(deadline, timerSeq++, task)));
+    }
+
+    /** Read buffers for this reactor's connections; only to be used on the reactor thread. */
+    BufferPool readBuffers() {
+        return readBuffers;
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /** False once the loop has stopped, after which tasks no longer run. */
+    boolean isRunning() {
+        Thread t = thread;
+        return t == null ? running : t.isAlive();
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        while (running) {
+            try {
+                Timer next = timers.peek();
+                if (next == null) {
+                    selector.select();
+                } else {
+                    long waitMs = (next.deadline - System.nanoTime()) / 1_000_000;
+                    if (waitMs > 0) selector.select(waitMs); else selector.selectNow();
+                }
+            } catch (IOException e) {
+                Log.error("Selector failure: {}", e.getMessage());
+                continue;
+            }
+            if (!running) break;
+
+            runTasks();
+            long now = System.nanoTime();
+            while (!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+                runSafely(timers.poll().task);
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                NioConnection conn = (NioConnection) key.attachment();
+                try {
+                    if (!key.isValid()) {
+                        conn.close(DisconnectReason.IO_ERROR);
+                        continue;
+                    }
+                    if (key.isReadable()) {
+                        conn.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        conn.onWritable();
+                    }
+                } catch (RuntimeException e) {
+                    // A bug or a key cancelled under us costs this connection, not the whole reactor.
+                    Log.error("Connection failed on the reactor: {}", e);
+                    conn.close(DisconnectReason.IO_ERROR);
+                }
+            }
+        }
+        // Lets connections closed during shutdown release their channels.
+        runTasks();
+        try { selector.close(); } catch (IOException ignored) {}
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            runSafely(task);
+        }
+    }
+
+    // Tasks and timers belong to different connections; one failing must not stop the loop for the rest.
+    private static void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            Log.error("Reactor task failed: {}", e);
+        }
+    }
+
+    void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private record Timer(long deadline, long seq, Runnable task) implements Comparable<Timer> {
+        @Override
+        public int compareTo(Timer o) {
+            int c = Long.compare(deadline - o.deadline, 0);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+}
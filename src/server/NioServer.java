@@ -0,0 +1,76 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Accepts connections on a non-blocking {@link ServerSocketChannel} and hands
+ * them round-robin to a fixed set of {@link NioReactor} threads.
+ */
+class NioServer implements Runnable {
+
+    private final ServerSocketChannel acceptChannel;
+    private final Selector acceptSelector;
+    private final NioReactor[] reactors;
+    private final ChatServer server;
+    private int next;
+    private volatile boolean running = true;
+
+    NioServer(int port, int reactorThreads, ChatServer server) throws IOException {
+        this.server = server;
+        this.acceptChannel = ServerSocketChannel.open();
+        this.acceptChannel.bind(new InetSocketAddress(port));
+        this.acceptChannel.configureBlocking(false);
+        this.acceptSelector = Selector.open();
+        this.acceptChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+        this.reactors = new NioReactor[reactorThreads];
+        for (int i = 0; i < reactorThreads; i++) {
+            reactors[i] = new NioReactor(server);
+        }
+    }
+
+    int getPort() {
+        return acceptChannel.socket().getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        for (int i = 0; i < reactors.length; i++) {
+            Thread t = new Thread(reactors[i], "nio-reactor-" + i);
+            t.start();
+        }
+
+        while (running) {
+            try {
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+                if (!running) break;
+
+                SocketChannel channel;
+                while ((channel = acceptChannel.accept()) != null) {
+                    Log.info("New client connected.");
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    reactors[next].register(channel);
+                    next = (next + 1) % reactors.length;
+                }
+            } catch (IOException e) {
+                if (running) Log.warn("Error accepting client: {}", e.getMessage());
+            }
+        }
+    }
+
+    void close() throws IOException {
+        running = false;
+        acceptSelector.wakeup();
+        acceptChannel.close();
+        for (NioReactor reactor : reactors) {
+            reactor.close();
+        }
+    }
+}
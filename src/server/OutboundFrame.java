@@ -0,0 +1,116 @@
+package server;
+
+import protocol.Compression;
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.TextCodec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A frame on its way out. A broadcast builds one of these and hands it to every
+ * recipient; each wire encoding is produced at most once, the first time a
+ * recipient speaking it asks, and then shared. That includes the compressed
+ * one, so a large broadcast is deflated once however many clients get it.
+ * The bytes must never be modified after that.
+ */
+public final class OutboundFrame {
+
+    // Payload size from which the compressed encoding compresses; set from the server config.
+    private static volatile int compressThreshold = Compression.DEFAULT_THRESHOLD;
+
+    private final Frame frame;
+    private volatile byte[] text;
+    private volatile byte[] binary;
+    private volatile byte[] compressed;
+
+    private OutboundFrame(Frame frame, byte[] text, byte[] binary, byte[] compressed) {
+        this.frame = frame;
+        this.text = text;
+        this.binary = binary;
+        this.compressed = compressed;
+    }
+
+    /**
+     * Wraps a frame for sending. Its payload must not share a read buffer
+     * that will be reused; see {@link Frame#detach()}.
+     */
+    public static OutboundFrame of(Frame frame) {
+        return new OutboundFrame(frame, null, null, null);
+    }
+
+    static void setCompressThreshold(int bytes) {
+        compressThreshold = bytes;
+    }
+
+    /** Joins two frames into one, used when a slow client's backlog is coalesced. */
+    static OutboundFrame concat(OutboundFrame first, OutboundFrame second, WireFormat format) {
+        byte[] a = first.bytes(format);
+        byte[] b = second.bytes(format);
+        byte[] joined = new byte[a.length + b.length];
+        System.arraycopy(a, 0, joined, 0, a.length);
+        System.arraycopy(b, 0, joined, a.length, b.length);
+        return switch (format) {
+            case TEXT -> new OutboundFrame(null, joined, null, null);
+            case BINARY -> new OutboundFrame(null, null, joined, null);
+            case COMPRESSED -> new OutboundFrame(null, null, null, joined);
+        };
+    }
+
+    /** The logical frame, or null for a coalesced batch. */
+    public Frame frame() {
+        return frame;
+    }
+
+    // Racing recipients may both encode; either result is identical.
+    private byte[] bytes(WireFormat format) {
+        return switch (format) {
+            case TEXT -> {
+                byte[] t = text;
+                if (t == null) {
+                    t = (TextCodec.format(frame) + "\n").getBytes(StandardCharsets.UTF_8);
+                    text = t;
+                }
+                yield t;
+            }
+            case BINARY -> {
+                byte[] b = binary;
+                if (b == null) {
+                    b = FrameCodec.encode(frame);
+                    binary = b;
+                }
+                yield b;
+            }
+            case COMPRESSED -> {
+                byte[] c = compressed;
+                if (c == null) {
+                    int threshold = compressThreshold;
+                    Frame packed = threshold < 0 ? frame : Compression.compress(frame, threshold);
+                    // Small frames share the plain binary bytes.
+                    c = packed == frame ? bytes(WireFormat.BINARY) : FrameCodec.encode(packed);
+                    compressed = c;
+                }
+                yield c;
+            }
+        };
+    }
+
+    public int length(WireFormat format) {
+        return bytes(format).length;
+    }
+
+    /**
+     * Returns a fresh read-only view positioned at the start of the frame.
+     * Views share the underlying bytes, so this does not copy.
+     */
+    public ByteBuffer buffer(WireFormat format) {
+        return ByteBuffer.wrap(bytes(format)).asReadOnlyBuffer();
+    }
+
+    public void writeTo(OutputStream out, WireFormat format) throws IOException {
+        out.write(bytes(format));
+    }
+}
@@ -0,0 +1,218 @@
+package server;
+
+import server.files.FileTransfer;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of frames waiting to be written to one client. Producers
+ * never block: once the queue is full the configured {@link OverflowPolicy}
+ * decides what gives.
+ *
+ * <p>File downloads wait here too, apart from the frames: a writer sends the
+ * next chunk of one only when no frame is queued, taking the downloads in
+ * turn, so chat never waits behind more than one chunk.
+ */
+public class OutboundQueue {
+
+    public enum OverflowPolicy {
+        // Discard the oldest queued message to make room.
+        DROP_OLDEST,
+        // Refuse the message; the caller disconnects the client.
+        DISCONNECT,
+        // Append the message to the last queued entry so the backlog stops growing in entries.
+        COALESCE
+    }
+
+    // Upper bound for a coalesced entry; past it we fall back to dropping the oldest message.
+    private static final int MAX_COALESCED_BYTES = 64 * 1024;
+    // Downloads one client may have in progress at once.
+    private static final int MAX_TRANSFERS = 8;
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ArrayDeque<OutboundFrame> items;
+    private final ArrayDeque<FileTransfer> transfers = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile int depth;
+    private volatile WireFormat format = WireFormat.TEXT;
+    private boolean closed;
+
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be >= 1");
+        this.capacity = capacity;
+        this.policy = policy;
+        this.items = new ArrayDeque<>(Math.min(capacity, 64));
+    }
+
+    /**
+     * @return false if the queue is closed or full under {@link OverflowPolicy#DISCONNECT}
+     */
+    public boolean offer(OutboundFrame frame) {
+        lock.lock();
+        try {
+            if (closed) return false;
+            if (items.size() >= capacity) {
+                switch (policy) {
+                    case DISCONNECT -> {
+                        dropped.incrementAndGet();
+                        return false;
+                    }
+                    case COALESCE -> {
+                        OutboundFrame last = items.peekLast();
+                        if (last.length(format) + frame.length(format) < MAX_COALESCED_BYTES) {
+                            items.pollLast();
+                            items.addLast(OutboundFrame.concat(last, frame, format));
+                            return true;
+                        }
+                        items.pollFirst();
+                        dropped.incrementAndGet();
+                    }
+                    case DROP_OLDEST -> {
+                        items.pollFirst();
+                        dropped.incrementAndGet();
+                    }
+                }
+            }
+            items.addLast(frame);
+            depth = items.size();
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a download behind any others, to be sent in chunks between frames.
+     *
+     * @return false if the queue is closed or the client has too many downloads going
+     */
+    public boolean offerTransfer(FileTransfer transfer) {
+        lock.lock();
+        try {
+            if (closed || transfers.size() >= MAX_TRANSFERS) return false;
+            transfers.addLast(transfer);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The download to send a chunk of next, taking them in turn, or null if there are none. */
+    public FileTransfer nextTransfer() {
+        lock.lock();
+        try {
+            FileTransfer next = transfers.pollFirst();
+            if (next != null) transfers.addLast(next);
+            return next;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Forgets a finished download. */
+    public void removeTransfer(FileTransfer transfer) {
+        lock.lock();
+        try {
+            transfers.remove(transfer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean hasTransfers() {
+        lock.lock();
+        try {
+            return !transfers.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sets the wire encoding used when frames have to be coalesced. */
+    public void setFormat(WireFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * Non-blocking variant of {@link #drainTo}.
+     *
+     * @return the number of frames moved into {@code out}
+     */
+    public int drainNow(List<OutboundFrame> out, int max) {
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < max && !items.isEmpty()) {
+                out.add(items.pollFirst());
+                n++;
+            }
+            depth = items.size();
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until at least one message or download is queued, then moves up
+     * to {@code max} messages into {@code out}; none if only downloads are.
+     *
+     * @return false once the queue has been closed and fully drained
+     */
+    public boolean drainTo(List<OutboundFrame> out, int max) throws InterruptedException {
+        lock.lock();
+        try {
+            while (items.isEmpty() && transfers.isEmpty()) {
+                if (closed) return false;
+                notEmpty.await();
+            }
+            for (int i = 0; i < max && !items.isEmpty(); i++) {
+                out.add(items.pollFirst());
+            }
+            depth = items.size();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            items.clear();
+            depth = 0;
+            for (FileTransfer transfer : transfers) {
+                try {
+                    transfer.close();
+                } catch (IOException ignored) {}
+            }
+            transfers.clear();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,236 @@
+package server;
+
+import protocol.Presence;
+import server.metrics.ServerMetrics;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Who is in each room and who is typing, published to the room's binary
+ * members as {@link Presence} deltas. A change only marks its user dirty; a
+ * timer then sends each room's dirty users at most once per interval, in one
+ * frame shared by every member, and leaves out anyone whose state ended up
+ * where it was last published. However fast people type or come and go, a
+ * room costs at most one presence frame per member per interval.
+ *
+ * <p>Only logged-in users have presence. A user counts as online in a room
+ * while any of their connections is in it.
+ */
+public final class PresenceTracker implements Closeable {
+
+    // Typing lapses unless the client repeats it within this time, e.g. because it went away mid-word.
+    static final long TYPING_TIMEOUT_MS = 5000;
+    // Keeps the snapshot of a very big room well under the frame size limit.
+    private static final int MAX_ENTRIES_PER_FRAME = 1024;
+
+    private final RoomRegistry rooms;
+    private final ServerMetrics metrics;
+    // Each room's state is only touched inside compute() on this map, which
+    // also makes dropping an empty room atomic with a concurrent join.
+    private final Map<String, RoomPresence> byRoom = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+
+    PresenceTracker(RoomRegistry rooms, ServerMetrics metrics, long intervalMillis) {
+        this.rooms = rooms;
+        this.metrics = metrics;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "presence");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleAtFixedRate(this::publish, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void joined(String room, String username, Connection conn) {
+        metrics.presenceChange();
+        byRoom.compute(room, (r, state) -> {
+            if (state == null) state = new RoomPresence();
+            state.join(username, conn);
+            return state;
+        });
+    }
+
+    public void left(String room, String username, Connection conn) {
+        metrics.presenceChange();
+        byRoom.computeIfPresent(room, (r, state) -> {
+            state.leave(username, conn);
+            return state;
+        });
+    }
+
+    public void typing(String room, String username, boolean typing) {
+        if (typing) metrics.presenceChange();
+        byRoom.computeIfPresent(room, (r, state) -> {
+            state.typing(username, typing, System.currentTimeMillis());
+            return state;
+        });
+    }
+
+    /** Frames describing everyone in a room right now, for a client entering it. */
+    public List<Presence> snapshot(String room) {
+        List<Map<String, Presence.State>> chunks = new ArrayList<>();
+        byRoom.computeIfPresent(room, (r, state) -> {
+            chunks.addAll(chunk(state.snapshot(System.currentTimeMillis())));
+            return state;
+        });
+        if (chunks.isEmpty()) chunks.add(Map.of());
+        List<Presence> result = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            // Only the first chunk clears what the client knew; the rest add to it.
+            result.add(new Presence(room, i == 0, chunks.get(i)));
+        }
+        return result;
+    }
+
+    // Runs on the timer thread: sends every room's delta since the last run.
+    private void publish() {
+        long now = System.currentTimeMillis();
+        for (String room : byRoom.keySet()) {
+            List<Map<String, Presence.State>> chunks = new ArrayList<>(1);
+            byRoom.computeIfPresent(room, (r, state) -> {
+                chunks.addAll(chunk(state.delta(now)));
+                return state.isEmpty() ? null : state;
+            });
+            for (Map<String, Presence.State> users : chunks) {
+                OutboundFrame frame = OutboundFrame.of(new Presence(room, false, users).toFrame());
+                metrics.presenceDelta();
+                for (Connection c : rooms.members(room)) {
+                    if (c.isBinary()) c.send(frame);
+                }
+            }
+        }
+    }
+
+    private static List<Map<String, Presence.State>> chunk(Map<String, Presence.State> users) {
+        if (users.isEmpty()) return List.of();
+        if (users.size() <= MAX_ENTRIES_PER_FRAME) return List.of(users);
+        List<Map<String, Presence.State>> chunks = new ArrayList<>();
+        Map<String, Presence.State> current = null;
+        for (Map.Entry<String, Presence.State> e : users.entrySet()) {
+            if (current == null || current.size() == MAX_ENTRIES_PER_FRAME) {
+                current = new LinkedHashMap<>();
+                chunks.add(current);
+            }
+            current.put(e.getKey(), e.getValue());
+        }
+        return chunks;
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    /** One user in one room. */
+    private static final class Member {
+        final String name;
+        final Set<Connection> connections = new HashSet<>(2);
+        // When typing lapses; 0 while not typing.
+        long typingUntil;
+        Presence.State published = Presence.State.OFFLINE;
+        boolean dirty;
+
+        Member(String name) {
+            this.name = name;
+        }
+
+        Presence.State state(long now) {
+            if (connections.isEmpty()) return Presence.State.OFFLINE;
+            return typingUntil > now ? Presence.State.TYPING : Presence.State.ONLINE;
+        }
+    }
+
+    /** One room's members, keyed like {@link UserRegistry} so names match regardless of case. */
+    private static final class RoomPresence {
+        private final Map<String, Member> members = new HashMap<>();
+        private final List<Member> dirty = new ArrayList<>();
+        private final List<Member> typing = new ArrayList<>();
+
+        void join(String username, Connection conn) {
+            Member m = members.computeIfAbsent(UserRegistry.key(username), k -> new Member(username));
+            // Sets make join and leave idempotent, so a login racing with a disconnect cannot skew the count.
+            if (m.connections.add(conn)) markDirty(m);
+        }
+
+        void leave(String username, Connection conn) {
+            Member m = members.get(UserRegistry.key(username));
+            if (m == null || !m.connections.remove(conn)) return;
+            if (m.connections.isEmpty()) stopTyping(m);
+            markDirty(m);
+        }
+
+        void typing(String username, boolean on, long now) {
+            Member m = members.get(UserRegistry.key(username));
+            if (m == null || m.connections.isEmpty()) return;
+            if (on) {
+                if (m.typingUntil == 0) typing.add(m);
+                m.typingUntil = now + TYPING_TIMEOUT_MS;
+                markDirty(m);
+            } else if (m.typingUntil != 0) {
+                stopTyping(m);
+                markDirty(m);
+            }
+        }
+
+        private void stopTyping(Member m) {
+            if (m.typingUntil != 0) {
+                m.typingUntil = 0;
+                typing.remove(m);
+            }
+        }
+
+        private void markDirty(Member m) {
+            if (!m.dirty) {
+                m.dirty = true;
+                dirty.add(m);
+            }
+        }
+
+        Map<String, Presence.State> delta(long now) {
+            for (int i = typing.size() - 1; i >= 0; i--) {
+                Member m = typing.get(i);
+                if (m.typingUntil <= now) {
+                    stopTyping(m);
+                    markDirty(m);
+                }
+            }
+            if (dirty.isEmpty()) return Map.of();
+            Map<String, Presence.State> changes = new LinkedHashMap<>();
+            for (Member m : dirty) {
+                m.dirty = false;
+                Presence.State state = m.state(now);
+                if (state != m.published) {
+                    changes.put(m.name, state);
+                    m.published = state;
+                }
+                if (state == Presence.State.OFFLINE) members.remove(UserRegistry.key(m.name));
+            }
+            dirty.clear();
+            return changes;
+        }
+
+        Map<String, Presence.State> snapshot(long now) {
+            Map<String, Presence.State> users = new LinkedHashMap<>();
+            for (Member m : members.values()) {
+                Presence.State state = m.state(now);
+                if (state != Presence.State.OFFLINE) users.put(m.name, state);
+            }
+            return users;
+        }
+
+        boolean isEmpty() {
+            return members.isEmpty();
+        }
+    }
+}
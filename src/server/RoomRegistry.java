@@ -0,0 +1,56 @@
+package server;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Named rooms and their members. Joining or leaving only touches the one
+ * room's member set, and a room disappears once its last member leaves.
+ */
+public class RoomRegistry {
+
+    public static final String DEFAULT_ROOM = "general";
+
+    private final Map<String, Set<Connection>> rooms = new ConcurrentHashMap<>();
+
+    public static boolean isValidName(String room) {
+        return room != null && room.matches("[a-z0-9_-]{1,32}");
+    }
+
+    public void join(String room, Connection conn) {
+        // The add happens inside compute(), so a concurrent leave cannot drop the set from under it.
+        rooms.compute(room, (r, members) -> {
+            if (members == null) members = ConcurrentHashMap.newKeySet();
+            members.add(conn);
+            return members;
+        });
+    }
+
+    public void leave(String room, Connection conn) {
+        // compute() keeps the removal atomic with a concurrent join of the same room.
+        rooms.computeIfPresent(room, (r, members) -> {
+            members.remove(conn);
+            return members.isEmpty() ? null : members;
+        });
+    }
+
+    public Set<Connection> members(String room) {
+        Set<Connection> members = rooms.get(room);
+        return members != null ? members : Collections.emptySet();
+    }
+
+    /** Rooms that currently have members. */
+    public int size() {
+        return rooms.size();
+    }
+
+    /** Room names with their member counts, sorted by name. */
+    public Map<String, Integer> snapshot() {
+        Map<String, Integer> result = new TreeMap<>();
+        rooms.forEach((room, members) -> result.put(room, members.size()));
+        return result;
+    }
+}
@@ -0,0 +1,379 @@
+package server;
+
+import protocol.Compression;
+import server.store.FsyncPolicy;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ServerConfig {
+
+    private int port = 5000;
+    private ServerMode mode = ServerMode.BLOCKING;
+    private int reactorThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private ConnectionExecutor.Kind executorKind = ConnectionExecutor.Kind.VIRTUAL;
+    private int maxConnections = 100_000;
+    private int queueCapacity = 1024;
+    private OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+    private Path dataDir;
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.BATCHED;
+    private long fsyncIntervalMs = 1000;
+    private long segmentBytes = 64L << 20;
+    private int historyRingSize = 500;
+    private int historyOnJoin = 50;
+    private Log.Level logLevel = Log.Level.INFO;
+    private int metricsPort = -1;
+    private int compressThreshold = Compression.DEFAULT_THRESHOLD;
+    private String nodeId = "node";
+    private int clusterPort = -1;
+    private List<InetSocketAddress> peers = List.of();
+    private double rateLimit = -1;
+    private int rateBurst = 40;
+    private double roomRateLimit = -1;
+    private int roomRateBurst = 100;
+    private FloodControl.Policy floodPolicy = FloodControl.Policy.DELAY;
+    private int maxDevices = 4;
+    private long presenceIntervalMs = 250;
+    private long maxFileBytes = 100L << 20;
+
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+            String key = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (key) {
+                case "port" -> config.port(Integer.parseInt(value));
+                case "mode" -> config.mode(ServerMode.valueOf(value.toUpperCase()));
+                case "reactors" -> config.reactorThreads(Integer.parseInt(value));
+                case "executor" -> config.executorKind(ConnectionExecutor.Kind.valueOf(value.toUpperCase()));
+                case "max-connections" -> config.maxConnections(Integer.parseInt(value));
+                case "queue-capacity" -> config.queueCapacity(Integer.parseInt(value));
+                case "overflow" -> config.overflowPolicy(OutboundQueue.OverflowPolicy.valueOf(value.toUpperCase()));
+                case "data-dir" -> config.dataDir(value.equals("none") ? null : Path.of(value));
+                case "fsync" -> config.fsyncPolicy(FsyncPolicy.valueOf(value.toUpperCase()));
+                case "fsync-interval-ms" -> config.fsyncIntervalMs(Long.parseLong(value));
+                case "segment-mb" -> config.segmentBytes(Long.parseLong(value) << 20);
+                case "history-ring" -> config.historyRingSize(Integer.parseInt(value));
+                case "history-on-join" -> config.historyOnJoin(Integer.parseInt(value));
+                case "log-level" -> config.logLevel(Log.Level.valueOf(value.toUpperCase()));
+                case "metrics-port" -> config.metricsPort(value.equals("none") ? -1 : Integer.parseInt(value));
+                case "compress-threshold" -> config.compressThreshold(value.equals("none") ? -1 : Integer.parseInt(value));
+                case "node-id" -> config.nodeId(value);
+                case "cluster-port" -> config.clusterPort(value.equals("none") ? -1 : Integer.parseInt(value));
+                case "peers" -> config.peers(parsePeers(value));
+                case "rate-limit" -> config.rateLimit(value.equals("none") ? -1 : Double.parseDouble(value));
+                case "rate-burst" -> config.rateBurst(Integer.parseInt(value));
+                case "room-rate-limit" -> config.roomRateLimit(value.equals("none") ? -1 : Double.parseDouble(value));
+                case "room-rate-burst" -> config.roomRateBurst(Integer.parseInt(value));
+                case "flood-policy" -> config.floodPolicy(FloodControl.Policy.valueOf(value.toUpperCase()));
+                case "max-devices" -> config.maxDevices(Integer.parseInt(value));
+                case "presence-interval-ms" -> config.presenceIntervalMs(Long.parseLong(value));
+                case "max-file-mb" -> config.maxFileBytes(Long.parseLong(value) << 20);
+                default -> throw new IllegalArgumentException("Unknown option: --" + key);
+            }
+        }
+        return config;
+    }
+
+    /** Parses {@code host:port,host:port,...}; an empty string means no peers. */
+    static List<InetSocketAddress> parsePeers(String value) {
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String peer : value.split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) continue;
+            int colon = peer.lastIndexOf(':');
+            if (colon <= 0) throw new IllegalArgumentException("Peer must be host:port: " + peer);
+            peers.add(InetSocketAddress.createUnresolved(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+        }
+        return peers;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public ServerConfig port(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public ServerMode getMode() {
+        return mode;
+    }
+
+    public ServerConfig mode(ServerMode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    public int getReactorThreads() {
+        return reactorThreads;
+    }
+
+    public ServerConfig reactorThreads(int reactorThreads) {
+        if (reactorThreads < 1) throw new IllegalArgumentException("reactors must be >= 1");
+        this.reactorThreads = reactorThreads;
+        return this;
+    }
+
+    public ConnectionExecutor.Kind getExecutorKind() {
+        return executorKind;
+    }
+
+    public ServerConfig executorKind(ConnectionExecutor.Kind executorKind) {
+        this.executorKind = executorKind;
+        return this;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public ServerConfig maxConnections(int maxConnections) {
+        if (maxConnections < 1) throw new IllegalArgumentException("max-connections must be >= 1");
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public ServerConfig queueCapacity(int queueCapacity) {
+        if (queueCapacity < 1) throw new IllegalArgumentException("queue-capacity must be >= 1");
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    public OutboundQueue.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public ServerConfig overflowPolicy(OutboundQueue.OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    /** Directory for the message log, search index and shared files, or null (the default) to keep nothing on disk. */
+    public Path getDataDir() {
+        return dataDir;
+    }
+
+    public ServerConfig dataDir(Path dataDir) {
+        this.dataDir = dataDir;
+        return this;
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    public ServerConfig fsyncPolicy(FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+        return this;
+    }
+
+    public long getFsyncIntervalMs() {
+        return fsyncIntervalMs;
+    }
+
+    public ServerConfig fsyncIntervalMs(long fsyncIntervalMs) {
+        if (fsyncIntervalMs < 1) throw new IllegalArgumentException("fsync-interval-ms must be >= 1");
+        this.fsyncIntervalMs = fsyncIntervalMs;
+        return this;
+    }
+
+    public long getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    public ServerConfig segmentBytes(long segmentBytes) {
+        if (segmentBytes < 1 << 20) throw new IllegalArgumentException("segment-mb must be >= 1");
+        this.segmentBytes = segmentBytes;
+        return this;
+    }
+
+    /** Recent messages kept in memory per room. */
+    public int getHistoryRingSize() {
+        return historyRingSize;
+    }
+
+    public ServerConfig historyRingSize(int historyRingSize) {
+        if (historyRingSize < 1) throw new IllegalArgumentException("history-ring must be >= 1");
+        this.historyRingSize = historyRingSize;
+        return this;
+    }
+
+    /** Messages pushed to text clients when they enter a room; binary clients ask for their own. */
+    public int getHistoryOnJoin() {
+        return historyOnJoin;
+    }
+
+    public ServerConfig historyOnJoin(int historyOnJoin) {
+        if (historyOnJoin < 0) throw new IllegalArgumentException("history-on-join must be >= 0");
+        this.historyOnJoin = historyOnJoin;
+        return this;
+    }
+
+    public Log.Level getLogLevel() {
+        return logLevel;
+    }
+
+    public ServerConfig logLevel(Log.Level logLevel) {
+        this.logLevel = logLevel;
+        return this;
+    }
+
+    /** Port of the plain-text metrics endpoint, or -1 when it is off. */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public ServerConfig metricsPort(int metricsPort) {
+        if (metricsPort < -1) throw new IllegalArgumentException("metrics-port must be a port or none");
+        this.metricsPort = metricsPort;
+        return this;
+    }
+
+    /**
+     * Payload size in bytes from which frames to clients that support it are
+     * compressed, or -1 to never compress.
+     */
+    public int getCompressThreshold() {
+        return compressThreshold;
+    }
+
+    public ServerConfig compressThreshold(int compressThreshold) {
+        if (compressThreshold < -1) throw new IllegalArgumentException("compress-threshold must be >= 0 or none");
+        this.compressThreshold = compressThreshold;
+        return this;
+    }
+
+    /** Readable name of this node in a cluster, used in logs and peer handshakes. */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public ServerConfig nodeId(String nodeId) {
+        if (nodeId.isBlank()) throw new IllegalArgumentException("node-id must not be empty");
+        this.nodeId = nodeId;
+        return this;
+    }
+
+    /** Port other nodes connect to, or -1 to run standalone. */
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    public ServerConfig clusterPort(int clusterPort) {
+        if (clusterPort < -1) throw new IllegalArgumentException("cluster-port must be a port or none");
+        this.clusterPort = clusterPort;
+        return this;
+    }
+
+    /** Cluster ports of the other nodes. The list may name this node too; it is skipped. */
+    public List<InetSocketAddress> getPeers() {
+        return peers;
+    }
+
+    public ServerConfig peers(List<InetSocketAddress> peers) {
+        this.peers = List.copyOf(peers);
+        return this;
+    }
+
+    /** Frames or lines per second each connection may send, or -1 (the default) for no limit. */
+    public double getRateLimit() {
+        return rateLimit;
+    }
+
+    public ServerConfig rateLimit(double rateLimit) {
+        if (rateLimit <= 0 && rateLimit != -1) throw new IllegalArgumentException("rate-limit must be > 0 or none");
+        this.rateLimit = rateLimit;
+        return this;
+    }
+
+    /** Frames a connection may send at once after being quiet. */
+    public int getRateBurst() {
+        return rateBurst;
+    }
+
+    public ServerConfig rateBurst(int rateBurst) {
+        if (rateBurst < 1) throw new IllegalArgumentException("rate-burst must be >= 1");
+        this.rateBurst = rateBurst;
+        return this;
+    }
+
+    /** Chat messages per second each room accepts from all its members together, or -1 for no limit. */
+    public double getRoomRateLimit() {
+        return roomRateLimit;
+    }
+
+    public ServerConfig roomRateLimit(double roomRateLimit) {
+        if (roomRateLimit <= 0 && roomRateLimit != -1) throw new IllegalArgumentException("room-rate-limit must be > 0 or none");
+        this.roomRateLimit = roomRateLimit;
+        return this;
+    }
+
+    public int getRoomRateBurst() {
+        return roomRateBurst;
+    }
+
+    public ServerConfig roomRateBurst(int roomRateBurst) {
+        if (roomRateBurst < 1) throw new IllegalArgumentException("room-rate-burst must be >= 1");
+        this.roomRateBurst = roomRateBurst;
+        return this;
+    }
+
+    /** What happens to a client that sends faster than the rate limits allow. */
+    public FloodControl.Policy getFloodPolicy() {
+        return floodPolicy;
+    }
+
+    public ServerConfig floodPolicy(FloodControl.Policy floodPolicy) {
+        this.floodPolicy = floodPolicy;
+        return this;
+    }
+
+    /** Connections one user may be logged in on at once. */
+    public int getMaxDevices() {
+        return maxDevices;
+    }
+
+    public ServerConfig maxDevices(int maxDevices) {
+        if (maxDevices < 1) throw new IllegalArgumentException("max-devices must be >= 1");
+        this.maxDevices = maxDevices;
+        return this;
+    }
+
+    /** How often presence and typing changes are sent to rooms, batched. */
+    public long getPresenceIntervalMs() {
+        return presenceIntervalMs;
+    }
+
+    public ServerConfig presenceIntervalMs(long presenceIntervalMs) {
+        if (presenceIntervalMs < 10) throw new IllegalArgumentException("presence-interval-ms must be >= 10");
+        this.presenceIntervalMs = presenceIntervalMs;
+        return this;
+    }
+
+    /** Largest file a client may share. */
+    public long getMaxFileBytes() {
+        return maxFileBytes;
+    }
+
+    public ServerConfig maxFileBytes(long maxFileBytes) {
+        if (maxFileBytes < 1 << 20) throw new IllegalArgumentException("max-file-mb must be >= 1");
+        this.maxFileBytes = maxFileBytes;
+        return this;
+    }
+
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(queueCapacity, overflowPolicy);
+    }
+}
@@ -2,7 +2,8 @@ package server;
 
 public class ServerMain {
     public static void main(String[] args) {
-        ChatServer server = new ChatServer(5000);
+        ChatServer server = new ChatServer(ServerConfig.fromArgs(args));
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "server-shutdown"));
         server.start();
     }
 }
@@ -0,0 +1,8 @@
+package server;
+
+public enum ServerMode {
+    // One thread per connected client, virtual by default, blocked reading its socket.
+    BLOCKING,
+    // A few selector threads multiplexing every connection.
+    NIO
+}
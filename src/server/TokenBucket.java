@@ -0,0 +1,59 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket kept as a single timestamp, so taking a token is one
+ * compare-and-set and never blocks. The bucket stores when it will next be
+ * completely full (the "theoretical arrival time" of the generic cell rate
+ * algorithm); a token is available while that lies less than
+ * {@code burst} refill intervals ahead of now.
+ */
+final class TokenBucket {
+
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final AtomicLong fullAt;
+
+    /**
+     * @param perSecond tokens added per second
+     * @param burst     tokens the bucket holds, and so the largest burst allowed after a quiet spell
+     */
+    TokenBucket(double perSecond, int burst) {
+        if (perSecond <= 0 || burst < 1) throw new IllegalArgumentException("need rate > 0 and burst >= 1");
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / perSecond));
+        this.toleranceNanos = intervalNanos * (burst - 1);
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes a token if one is available.
+     *
+     * @return 0 if a token was taken, otherwise the nanoseconds until one will be
+     */
+    long tryAcquire(long now) {
+        while (true) {
+            long t = fullAt.get();
+            long base = t - now > 0 ? t : now;
+            long wait = base - toleranceNanos - now;
+            if (wait > 0) return wait;
+            if (fullAt.compareAndSet(t, base + intervalNanos)) return 0;
+        }
+    }
+
+    /**
+     * Takes a token, borrowing it from the future if none is available.
+     *
+     * @return the nanoseconds the caller should wait before acting on it, 0 if none
+     */
+    long reserve(long now) {
+        while (true) {
+            long t = fullAt.get();
+            long base = t - now > 0 ? t : now;
+            if (fullAt.compareAndSet(t, base + intervalNanos)) {
+                return Math.max(0, base - toleranceNanos - now);
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package server;
+
+import protocol.Login;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Logged-in users and the connections they are logged in on, one per device.
+ * Names match regardless of case. Finding a user's connections is a single
+ * hash lookup returning a list that is rebuilt only when that user logs in or
+ * out, so a direct message costs the same however many clients are connected.
+ */
+public class UserRegistry {
+
+    public static final int MAX_NAME_LENGTH = 32;
+
+    /** The outcome of a login. */
+    public enum Result {
+        /** The user's first device, or another one. */
+        ADDED,
+        /** The device was already logged in on another connection, which the new one replaces. */
+        REPLACED,
+        /** The user is logged in on as many devices as allowed; the login is refused. */
+        TOO_MANY_DEVICES
+    }
+
+    /** @param replaced for {@link Result#REPLACED}, the older connection, which the caller should close */
+    public record Registration(Result result, Connection replaced) {
+    }
+
+    private final Map<String, Devices> users = new ConcurrentHashMap<>();
+
+    /** Whether a name can be logged in with: 1 to 32 characters, no control characters or {@code ':'}, not padded. */
+    public static boolean isValidName(String name) {
+        if (name == null || name.isEmpty() || name.length() > MAX_NAME_LENGTH || !name.equals(name.strip())) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == ':' || Character.isISOControl(c)) return false;
+        }
+        return true;
+    }
+
+    /** Whether two names belong to the same user. */
+    public static boolean sameUser(String a, String b) {
+        return key(a).equals(key(b));
+    }
+
+    // Returns the name itself when it is already lower case, so lookups usually allocate nothing.
+    static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Logs a connection in. Checking for the same device is a scan of the
+     * user's few connections, done atomically with the update.
+     *
+     * @param device     the client's device id, {@link Login#ANY_DEVICE} if it has none
+     * @param maxDevices how many connections one user may have at once
+     */
+    public Registration register(String name, long device, Connection conn, int maxDevices) {
+        Registration[] outcome = new Registration[1];
+        users.compute(key(name), (k, current) -> {
+            if (current == null) {
+                outcome[0] = new Registration(Result.ADDED, null);
+                return Devices.of(device, conn);
+            }
+            int i = current.indexOf(device);
+            if (i >= 0) {
+                outcome[0] = new Registration(Result.REPLACED, current.connections.get(i));
+                return current.replace(i, conn);
+            }
+            if (current.connections.size() >= maxDevices) {
+                outcome[0] = new Registration(Result.TOO_MANY_DEVICES, null);
+                return current;
+            }
+            outcome[0] = new Registration(Result.ADDED, null);
+            return current.add(device, conn);
+        });
+        return outcome[0];
+    }
+
+    /** Logs a connection out; a connection that was replaced is simply not found. */
+    public void unregister(String name, Connection conn) {
+        users.computeIfPresent(key(name), (k, current) -> current.remove(conn));
+    }
+
+    /** The connections a user is logged in on, empty if none. The list is shared; do not modify it. */
+    public List<Connection> connections(String name) {
+        Devices devices = users.get(key(name));
+        return devices != null ? devices.connections : List.of();
+    }
+
+    /** Users logged in on at least one connection. */
+    public int size() {
+        return users.size();
+    }
+
+    // One user's connections and their device ids, by position. Never modified; each change makes a new one.
+    private record Devices(long[] ids, List<Connection> connections) {
+
+        static Devices of(long device, Connection conn) {
+            return new Devices(new long[]{device}, List.of(conn));
+        }
+
+        int indexOf(long device) {
+            if (device == Login.ANY_DEVICE) return -1;
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] == device) return i;
+            }
+            return -1;
+        }
+
+        Devices add(long device, Connection conn) {
+            long[] newIds = Arrays.copyOf(ids, ids.length + 1);
+            newIds[ids.length] = device;
+            List<Connection> list = new ArrayList<>(connections);
+            list.add(conn);
+            return new Devices(newIds, List.copyOf(list));
+        }
+
+        Devices replace(int i, Connection conn) {
+            List<Connection> list = new ArrayList<>(connections);
+            list.set(i, conn);
+            return new Devices(ids, List.copyOf(list));
+        }
+
+        // Null when the last connection goes, which drops the user from the map.
+        Devices remove(Connection conn) {
+            int i = connections.indexOf(conn);
+            if (i < 0) return this;
+            if (ids.length == 1) return null;
+            long[] newIds = new long[ids.length - 1];
+            System.arraycopy(ids, 0, newIds, 0, i);
+            System.arraycopy(ids, i + 1, newIds, i, ids.length - i - 1);
+            List<Connection> list = new ArrayList<>(connections);
+            list.remove(i);
+            return new Devices(newIds, List.copyOf(list));
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package server;
+
+import protocol.FrameCodec;
+
+/** How frames are encoded for one connection, settled when it is negotiated. */
+public enum WireFormat {
+    // One line of text per frame.
+    TEXT,
+    // Length-prefixed binary frames.
+    BINARY,
+    // Binary frames, with payloads over the server's threshold compressed.
+    COMPRESSED;
+
+    /** The binary format for a negotiated protocol version. */
+    static WireFormat forVersion(int version, ServerConfig config) {
+        return version >= FrameCodec.COMPRESSION_VERSION && config.getCompressThreshold() >= 0 ? COMPRESSED : BINARY;
+    }
+}
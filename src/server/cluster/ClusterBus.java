@@ -0,0 +1,31 @@
+package server.cluster;
+
+import server.OutboundFrame;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Carries broadcasts between the nodes of a cluster. Each node publishes the
+ * messages its own clients send and receives everyone else's; what the node
+ * does with them is up to the handler. Implementations may deliver a message
+ * more than once or slightly out of order, so receivers deduplicate.
+ */
+public interface ClusterBus extends Closeable {
+
+    /** Starts connecting to peers and passing their messages to the handler, on the bus's own threads. */
+    void start(Consumer<ClusterMessage> handler) throws IOException;
+
+    /**
+     * Sends a locally sequenced message to every peer. Must not block on a
+     * slow or unreachable peer; messages it cannot keep up with are dropped.
+     */
+    void publish(OutboundFrame message);
+
+    /** Peers this node can currently send to. */
+    int connectedPeers();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,12 @@
+package server.cluster;
+
+import protocol.Frame;
+
+/**
+ * A broadcast received from another node.
+ *
+ * @param origin the sending node's instance id, unique per process run
+ * @param frame  the message as sequenced by the origin, carrying its id there
+ */
+public record ClusterMessage(String origin, Frame frame) {
+}
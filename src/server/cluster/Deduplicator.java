@@ -0,0 +1,43 @@
+package server.cluster;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Drops messages already seen, by origin and id. Ids from one origin only
+ * grow, so each origin needs just its highest id and a bitmap of the
+ * {@value #WINDOW} ids below it; anything further behind than that counts as
+ * seen. Memory stays constant per origin however long the node runs.
+ */
+public final class Deduplicator {
+
+    static final int WINDOW = 64;
+
+    private final Map<String, Window> origins = new ConcurrentHashMap<>();
+
+    /** @return true the first time an id is offered for an origin */
+    public boolean firstSeen(String origin, long id) {
+        return origins.computeIfAbsent(origin, o -> new Window()).mark(id);
+    }
+
+    private static final class Window {
+        private long highest;
+        // Bit i set means id (highest - i) has been seen.
+        private long seen;
+
+        synchronized boolean mark(long id) {
+            if (id > highest) {
+                long shift = id - highest;
+                seen = shift >= WINDOW ? 1 : (seen << shift) | 1;
+                highest = id;
+                return true;
+            }
+            long behind = highest - id;
+            if (behind >= WINDOW) return false;
+            long bit = 1L << behind;
+            if ((seen & bit) != 0) return false;
+            seen |= bit;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package server.cluster;
+
+import protocol.Frame;
+import protocol.FrameCodec;
+import server.Log;
+import server.OutboundFrame;
+import server.WireFormat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * The built-in {@link ClusterBus}: a full mesh of plain TCP links. Every node
+ * listens on its cluster port and dials every peer it is given; a dialed link
+ * only ever carries the dialer's messages, so each pair of nodes shares two
+ * one-way sockets. Messages go out in the compressed binary encoding,
+ * reusing the bytes already encoded for clients that negotiated it.
+ *
+ * <p>Each outgoing link has its own bounded queue and writer thread, so a
+ * slow or unreachable peer never holds up the others or the publisher; when
+ * its queue is full, new messages for it are dropped and counted. Links that
+ * fail are redialed about once a second. All nodes can be given the same peer
+ * list: a node that dials itself notices and stops.
+ */
+public final class TcpMeshBus implements ClusterBus {
+
+    private static final int LINK_QUEUE_CAPACITY = 8192;
+    private static final int WRITE_BATCH = 256;
+    private static final int HANDSHAKE_TIMEOUT_MS = 3000;
+    private static final long REDIAL_MS = 1000;
+    private static final String MAGIC = "chat-mesh/1";
+
+    private final String instanceId;
+    private final int port;
+    private final List<InetSocketAddress> peers;
+    private final List<Link> links = new ArrayList<>();
+    private final Set<Socket> inbound = ConcurrentHashMap.newKeySet();
+    private final ThreadFactory threads = Thread.ofVirtual().name("cluster-", 0).factory();
+    private final LongAdder dropped = new LongAdder();
+    private ServerSocket listener;
+    private volatile boolean running = true;
+
+    /**
+     * @param nodeId a readable name for this node; a random suffix makes the
+     *               instance id unique, so a restarted node's ids never
+     *               collide with those of its previous run
+     * @param port   port to accept peer links on, 0 for any
+     * @param peers  cluster ports of the other nodes; may include this one
+     */
+    public TcpMeshBus(String nodeId, int port, List<InetSocketAddress> peers) {
+        this.instanceId = nodeId + "#" + Long.toHexString(ThreadLocalRandom.current().nextLong() >>> 20);
+        this.port = port;
+        this.peers = List.copyOf(peers);
+    }
+
+    @Override
+    public void start(Consumer<ClusterMessage> handler) throws IOException {
+        listener = new ServerSocket(port);
+        threads.newThread(() -> acceptLoop(handler)).start();
+        for (InetSocketAddress peer : peers) {
+            Link link = new Link(peer);
+            links.add(link);
+            link.thread = threads.newThread(link::run);
+            link.thread.start();
+        }
+        Log.info("Cluster node {} listening on port {}", instanceId, getPort());
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    /** The cluster port actually bound. */
+    public int getPort() {
+        return listener.getLocalPort();
+    }
+
+    @Override
+    public void publish(OutboundFrame message) {
+        for (Link link : links) {
+            if (link.connected && !link.queue.offer(message)) dropped.increment();
+        }
+    }
+
+    @Override
+    public int connectedPeers() {
+        int n = 0;
+        for (Link link : links) {
+            if (link.connected) n++;
+        }
+        return n;
+    }
+
+    /** Messages not sent because a peer's link queue was full. */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            if (listener != null) listener.close();
+        } catch (IOException ignored) {
+        }
+        for (Link link : links) link.close();
+        for (Socket s : inbound) closeQuietly(s);
+    }
+
+    private void acceptLoop(Consumer<ClusterMessage> handler) {
+        while (running) {
+            try {
+                Socket socket = listener.accept();
+                threads.newThread(() -> receive(socket, handler)).start();
+            } catch (IOException e) {
+                if (running) Log.warn("Cluster accept failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    // Reads one peer's messages until its link closes.
+    private void receive(Socket socket, Consumer<ClusterMessage> handler) {
+        inbound.add(socket);
+        String origin = null;
+        try (socket) {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            if (!MAGIC.equals(in.readUTF())) return;
+            origin = in.readUTF();
+            out.writeUTF(instanceId);
+            out.flush();
+            if (origin.equals(instanceId)) return;
+            socket.setSoTimeout(0);
+            Log.info("Cluster link from {}", origin);
+
+            Frame frame;
+            while ((frame = FrameCodec.read(in)) != null) {
+                handler.accept(new ClusterMessage(origin, frame));
+            }
+        } catch (IOException e) {
+            if (running && origin != null) Log.warn("Cluster link from {} failed: {}", origin, e.getMessage());
+        } finally {
+            inbound.remove(socket);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /** The outgoing half of the mesh towards one peer. */
+    private final class Link {
+        private final InetSocketAddress address;
+        private final BlockingQueue<OutboundFrame> queue = new ArrayBlockingQueue<>(LINK_QUEUE_CAPACITY);
+        // Messages are only queued while the link is up; a peer that is down gets nothing to replay later.
+        private volatile boolean connected;
+        private volatile Socket socket;
+        private Thread thread;
+
+        Link(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        void run() {
+            List<OutboundFrame> batch = new ArrayList<>(WRITE_BATCH);
+            while (running) {
+                String peer = null;
+                try (Socket s = new Socket()) {
+                    socket = s;
+                    s.connect(new InetSocketAddress(address.getHostString(), address.getPort()), HANDSHAKE_TIMEOUT_MS);
+                    s.setTcpNoDelay(true);
+                    s.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                    DataInputStream in = new DataInputStream(s.getInputStream());
+                    out.writeUTF(MAGIC);
+                    out.writeUTF(instanceId);
+                    out.flush();
+                    peer = in.readUTF();
+                    if (peer.equals(instanceId)) {
+                        // Our own address in the peer list.
+                        return;
+                    }
+                    Log.info("Cluster link to {} at {}:{}", peer, address.getHostString(), address.getPort());
+                    connected = true;
+
+                    while (running) {
+                        batch.add(queue.take());
+                        queue.drainTo(batch, WRITE_BATCH - 1);
+                        for (OutboundFrame f : batch) f.writeTo(out, WireFormat.COMPRESSED);
+                        out.flush();
+                        batch.clear();
+                    }
+                } catch (IOException e) {
+                    if (running && peer != null) Log.warn("Cluster link to {} lost: {}", peer, e.getMessage());
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    connected = false;
+                    queue.clear();
+                    batch.clear();
+                }
+                redialPause();
+            }
+        }
+
+        private void redialPause() {
+            try {
+                // Jittered so nodes restarted together do not all redial in step.
+                TimeUnit.MILLISECONDS.sleep(REDIAL_MS / 2 + ThreadLocalRandom.current().nextLong(REDIAL_MS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void close() {
+            thread.interrupt();
+            Socket s = socket;
+            if (s != null) closeQuietly(s);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package server.files;
+
+import protocol.FileChunk;
+import protocol.SharedFile;
+import protocol.Upload;
+import server.Connection;
+import server.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+/**
+ * Files shared in rooms, on disk under the data directory.
+ *
+ * <p>An upload is spooled to {@code spool/} as its chunks arrive, off the
+ * reactor threads in NIO mode so a slow disk never holds up other
+ * connections. The spool outlives the connection, so a client that
+ * reconnects resumes the upload from the bytes already there. A complete upload is moved up beside {@code spool/}, named
+ * after a random id that clients download it by; the name it was shared
+ * under travels in the FILE message.
+ */
+public final class FileStore implements Closeable {
+
+    // Spools untouched for this long belong to uploads nobody is coming back for.
+    private static final Duration SPOOL_EXPIRY = Duration.ofDays(1);
+
+    private final Path spoolDir;
+    private final Path filesDir;
+    private final long maxFileBytes;
+    private final Map<SpoolKey, Spool> spools = new ConcurrentHashMap<>();
+
+    /** Whose upload a spool is; names are compared ignoring case, as logins are. */
+    private record SpoolKey(String user, long uploadId) {
+        SpoolKey {
+            user = user.toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /** An upload in progress; its fields are guarded by the spool itself. */
+    private static final class Spool {
+        final Path path;
+        final Upload upload;
+        FileChannel channel;
+        Connection owner;
+        long received;
+
+        Spool(Path path, Upload upload) {
+            this.path = path;
+            this.upload = upload;
+        }
+    }
+
+    public FileStore(Path dir, long maxFileBytes) throws IOException {
+        this.spoolDir = dir.resolve("spool");
+        this.filesDir = dir;
+        this.maxFileBytes = maxFileBytes;
+        Files.createDirectories(spoolDir);
+        deleteExpiredSpools();
+    }
+
+    /**
+     * Starts an upload, or resumes it if this user has already sent part of
+     * it, possibly from another connection or before a restart.
+     *
+     * @return the bytes already received, which the client continues from
+     */
+    public long begin(Connection owner, String user, Upload upload) throws IOException {
+        if (upload.size() <= 0 || upload.size() > maxFileBytes) {
+            throw new IllegalArgumentException("Files must be 1 byte to " + SharedFile.formatSize(maxFileBytes));
+        }
+        SpoolKey key = new SpoolKey(user, upload.uploadId());
+        while (true) {
+            Spool spool = spools.computeIfAbsent(key, k -> new Spool(spoolDir.resolve(fileName(k)), upload));
+            synchronized (spool) {
+                // Released by a connection closing meanwhile.
+                if (spools.get(key) != spool) continue;
+                return resume(spool, owner, upload);
+            }
+        }
+    }
+
+    // Called holding the spool.
+    private static long resume(Spool spool, Connection owner, Upload upload) throws IOException {
+        if (spool.upload.size() != upload.size()) {
+            throw new IllegalArgumentException("Upload " + upload.uploadId() + " was started with another size");
+        }
+        if (spool.channel == null) {
+            spool.channel = FileChannel.open(spool.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            spool.received = spool.channel.size();
+            if (spool.received > upload.size()) {
+                spool.channel.truncate(0);
+                spool.received = 0;
+            }
+        }
+        spool.owner = owner;
+        return spool.received;
+    }
+
+    /**
+     * Appends a chunk to its upload. A chunk that does not start where the
+     * spool ends is one the client sent before it learned of a reconnect, and
+     * is ignored.
+     *
+     * @return what was received so far, or null if there is no such upload
+     *         on this connection
+     */
+    public Upload write(Connection owner, String user, FileChunk chunk) throws IOException {
+        Spool spool = spools.get(new SpoolKey(user, chunk.id()));
+        if (spool == null) return null;
+        synchronized (spool) {
+            if (spool.owner != owner || spool.channel == null) return null;
+            if (chunk.offset() == spool.received
+                    && spool.received + chunk.data().remaining() <= spool.upload.size()) {
+                while (chunk.data().hasRemaining()) {
+                    spool.received += spool.channel.write(chunk.data(), spool.received);
+                }
+            }
+            return spool.upload.ack(spool.received);
+        }
+    }
+
+    /**
+     * Moves a fully received upload into the store.
+     *
+     * @return the file to announce, or null if the upload is not complete or
+     *         another connection already completed it
+     */
+    public SharedFile complete(String user, long uploadId) throws IOException {
+        SpoolKey key = new SpoolKey(user, uploadId);
+        Spool spool = spools.get(key);
+        if (spool == null) return null;
+        synchronized (spool) {
+            if (spool.channel == null || spool.received != spool.upload.size()) return null;
+            spool.channel.force(false);
+            spool.channel.close();
+            spool.channel = null;
+            spools.remove(key);
+            long fileId;
+            Path target;
+            do {
+                fileId = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+                target = path(fileId);
+            } while (Files.exists(target));
+            Files.move(spool.path, target, StandardCopyOption.ATOMIC_MOVE);
+            return new SharedFile(fileId, spool.upload.size(), spool.upload.name());
+        }
+    }
+
+    /**
+     * Opens a stored file for sending from {@code offset} on.
+     *
+     * @return null if there is no such file
+     */
+    public FileTransfer open(long fileId, long offset) throws IOException {
+        if (fileId <= 0) return null;
+        try {
+            return new FileTransfer(fileId, FileChannel.open(path(fileId), StandardOpenOption.READ), Math.max(offset, 0));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /** Closes the uploads of a connection that went away; their spools stay for the client to resume. */
+    public void release(Connection owner) {
+        for (Iterator<Spool> it = spools.values().iterator(); it.hasNext(); ) {
+            Spool spool = it.next();
+            synchronized (spool) {
+                if (spool.owner != owner) continue;
+                closeQuietly(spool);
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Spool spool : spools.values()) {
+            synchronized (spool) {
+                closeQuietly(spool);
+            }
+        }
+        spools.clear();
+    }
+
+    private static void closeQuietly(Spool spool) {
+        if (spool.channel == null) return;
+        try {
+            spool.channel.close();
+        } catch (IOException e) {
+            Log.warn("Could not close upload spool: {}", e.getMessage());
+        }
+        spool.channel = null;
+    }
+
+    private Path path(long fileId) {
+        return filesDir.resolve(Long.toHexString(fileId));
+    }
+
+    // Path-safe whatever the user name, and a digest so two users can never share a spool after a restart.
+    private static String fileName(SpoolKey key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.user().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 16) + "-" + Long.toHexString(key.uploadId());
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void deleteExpiredSpools() throws IOException {
+        FileTime cutoff = FileTime.from(Instant.now().minus(SPOOL_EXPIRY));
+        try (Stream<Path> files = Files.list(spoolDir)) {
+            for (Path p : (Iterable<Path>) files::iterator) {
+                if (Files.getLastModifiedTime(p).compareTo(cutoff) < 0) Files.deleteIfExists(p);
+            }
+        }
+    }
+}
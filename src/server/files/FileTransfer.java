@@ -0,0 +1,108 @@
+package server.files;
+
+import protocol.FileChunk;
+import protocol.FrameCodec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * One file being sent to one client, as a run of {@link FileChunk} frames.
+ * Each chunk's frame header is encoded on its own and its data goes from the
+ * file to the socket with {@link FileChannel#transferTo}, so file bytes never
+ * pass through the Java heap. Used by a single writer thread.
+ */
+public final class FileTransfer implements Closeable {
+
+    private final long fileId;
+    private final FileChannel file;
+    private final long size;
+    private long position;
+    // Header of the chunk being written and where its data ends; null between chunks.
+    private ByteBuffer head;
+    private long chunkEnd;
+
+    FileTransfer(long fileId, FileChannel file, long position) throws IOException {
+        this.fileId = fileId;
+        this.file = file;
+        this.size = file.size();
+        this.position = Math.min(position, size);
+    }
+
+    public long getFileId() {
+        return fileId;
+    }
+
+    /** True once every chunk has been written. */
+    public boolean isDone() {
+        return head == null && position >= size;
+    }
+
+    /** True while a chunk is part written; nothing else may go to the socket until it is finished. */
+    public boolean inChunk() {
+        return head != null;
+    }
+
+    /**
+     * Writes what it can of the current chunk, starting one if none is under
+     * way, and stops at the end of the chunk or when the socket is full.
+     *
+     * @return the bytes written
+     */
+    public long writeTo(WritableByteChannel out) throws IOException {
+        if (head == null && !startChunk()) return 0;
+        long written = 0;
+        if (head.hasRemaining()) {
+            written += out.write(head);
+            if (head.hasRemaining()) return written;
+        }
+        while (position < chunkEnd) {
+            long n = file.transferTo(position, chunkEnd - position, out);
+            if (n <= 0) return written;
+            position += n;
+            written += n;
+        }
+        head = null;
+        return written;
+    }
+
+    /**
+     * Writes the next whole chunk to a stream, copying its data through
+     * {@code buffer}. For sockets without a channel to transfer to.
+     *
+     * @return the bytes written
+     */
+    public long writeTo(OutputStream out, byte[] buffer) throws IOException {
+        if (head == null && !startChunk()) return 0;
+        long written = head.remaining();
+        out.write(head.array(), head.position(), head.remaining());
+        ByteBuffer data = ByteBuffer.wrap(buffer);
+        while (position < chunkEnd) {
+            data.clear().limit((int) Math.min(buffer.length, chunkEnd - position));
+            int n = file.read(data, position);
+            if (n < 0) throw new IOException("File shrank while being sent");
+            out.write(buffer, 0, n);
+            position += n;
+            written += n;
+        }
+        head = null;
+        return written;
+    }
+
+    private boolean startChunk() {
+        if (position >= size) return false;
+        int n = (int) Math.min(FileChunk.DOWNLOAD_SIZE, size - position);
+        head = ByteBuffer.wrap(FrameCodec.encodeHead(FileChunk.head(fileId, position), n));
+        chunkEnd = position + n;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,19 @@
+package server.metrics;
+
+/** Point-in-time values read from the server's live connections and stores when metrics are collected. */
+public interface ConnectionGauges {
+
+    int connectedClients();
+
+    int activeRooms();
+
+    long totalQueueDepth();
+
+    long maxQueueDepth();
+
+    /** Frames dropped by overflow policies on connections that are still open. */
+    long droppedFrames();
+
+    /** Messages the message log dropped instead of writing, or 0 if there is no log. */
+    long logDroppedMessages();
+}
@@ -0,0 +1,19 @@
+package server.metrics;
+
+/** Why a connection ended, as counted by {@link ServerMetrics}. */
+public enum DisconnectReason {
+    /** The client closed its end. */
+    CLIENT_CLOSED,
+    /** Reading or writing the socket failed. */
+    IO_ERROR,
+    /** The client sent something that is not valid protocol. */
+    PROTOCOL_ERROR,
+    /** The client's outbound queue overflowed under the DISCONNECT policy. */
+    SLOW_CONSUMER,
+    /** The client sent faster than the rate limits allow under the DISCONNECT flood policy. */
+    RATE_LIMITED,
+    /** The same user logged in again from the same device on a newer connection. */
+    DUPLICATE_LOGIN,
+    /** The server closed the connection, e.g. while shutting down. */
+    SERVER_CLOSED
+}
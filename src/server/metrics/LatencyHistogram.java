@@ -0,0 +1,80 @@
+package server.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram over fixed, roughly logarithmic microsecond buckets.
+ * Recording is a short scan and two {@link LongAdder} increments, cheap
+ * enough for every broadcast; percentiles are bucket upper bounds.
+ */
+public final class LatencyHistogram {
+
+    private static final long[] BOUNDS_MICROS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500,
+            1_000, 2_000, 5_000, 10_000, 20_000, 50_000, 100_000, 200_000, 500_000, 1_000_000
+    };
+
+    // One more bucket than bounds, for everything above the last one.
+    private final LongAdder[] buckets = new LongAdder[BOUNDS_MICROS.length + 1];
+    private final LongAdder sumMicros = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+    }
+
+    public void recordNanos(long nanos) {
+        long micros = nanos / 1000;
+        int i = 0;
+        while (i < BOUNDS_MICROS.length && micros > BOUNDS_MICROS[i]) i++;
+        buckets[i].increment();
+        sumMicros.add(micros);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder b : buckets) count += b.sum();
+        return count;
+    }
+
+    public long getSumMicros() {
+        return sumMicros.sum();
+    }
+
+    /** Upper bound of the bucket holding the given percentile, or -1 above the last bound. */
+    public long percentileMicros(double percentile) {
+        long[] counts = snapshot();
+        long total = 0;
+        for (long c : counts) total += c;
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS_MICROS.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return BOUNDS_MICROS[i];
+        }
+        return -1;
+    }
+
+    /** Writes the histogram in the Prometheus text format, with cumulative buckets in seconds. */
+    void writeText(StringBuilder out, String name, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        long[] counts = snapshot();
+        long cumulative = 0;
+        for (int i = 0; i < BOUNDS_MICROS.length; i++) {
+            cumulative += counts[i];
+            out.append(name).append("_bucket{le=\"").append(BOUNDS_MICROS[i] / 1e6).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        cumulative += counts[BOUNDS_MICROS.length];
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        out.append(name).append("_sum ").append(getSumMicros() / 1e6).append('\n');
+        out.append(name).append("_count ").append(cumulative).append('\n');
+    }
+
+    private long[] snapshot() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) counts[i] = buckets[i].sum();
+        return counts;
+    }
+}
@@ -0,0 +1,418 @@
+package server.metrics;
+
+import server.FloodControl;
+import server.Log;
+import server.UserRegistry;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide counters. Every update is a {@link LongAdder} increment, so the
+ * hot paths never contend on a shared cache line; totals are only summed when
+ * someone reads them through JMX or the text endpoint.
+ */
+public class ServerMetrics implements ServerMetricsMXBean, Closeable {
+
+    private final ConnectionGauges gauges;
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    // Frames dropped on connections that have since closed; open ones are read from the gauges.
+    private final LongAdder closedDropped = new LongAdder();
+    private final Map<DisconnectReason, LongAdder> disconnects = new EnumMap<>(DisconnectReason.class);
+    private final Map<FloodControl.Policy, LongAdder> rateLimited = new EnumMap<>(FloodControl.Policy.class);
+    private final Map<UserRegistry.Result, LongAdder> logins = new EnumMap<>(UserRegistry.Result.class);
+    private final LongAdder directMessages = new LongAdder();
+    private final LongAdder presenceChanges = new LongAdder();
+    private final LongAdder presenceDeltas = new LongAdder();
+    private final LongAdder filesShared = new LongAdder();
+    private final LongAdder fileDownloads = new LongAdder();
+    private final LongAdder clusterIn = new LongAdder();
+    private final LongAdder clusterDuplicates = new LongAdder();
+    private final LatencyHistogram broadcastTime = new LatencyHistogram();
+    private final LatencyHistogram searchTime = new LatencyHistogram();
+
+    // Per-second rates, recomputed by the sampler.
+    private final ScheduledExecutorService sampler;
+    private volatile double messagesInRate;
+    private volatile double messagesOutRate;
+    private long lastIn;
+    private long lastOut;
+    private long lastSample = System.nanoTime();
+
+    private ObjectName mbeanName;
+
+    public ServerMetrics(ConnectionGauges gauges) {
+        this.gauges = gauges;
+        for (DisconnectReason r : DisconnectReason.values()) disconnects.put(r, new LongAdder());
+        for (FloodControl.Policy p : FloodControl.Policy.values()) rateLimited.put(p, new LongAdder());
+        for (UserRegistry.Result r : UserRegistry.Result.values()) logins.put(r, new LongAdder());
+        this.sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-sampler");
+            t.setDaemon(true);
+            return t;
+        });
+        sampler.scheduleAtFixedRate(this::sampleRates, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public void connectionAccepted() {
+        accepted.increment();
+    }
+
+    public void connectionRejected() {
+        rejected.increment();
+    }
+
+    public void messageIn() {
+        messagesIn.increment();
+    }
+
+    public void bytesIn(long n) {
+        bytesIn.add(n);
+    }
+
+    /** Frames and bytes actually written to a client's socket. */
+    public void written(int frames, long bytes) {
+        messagesOut.add(frames);
+        bytesOut.add(bytes);
+    }
+
+    public void bytesOut(long n) {
+        bytesOut.add(n);
+    }
+
+    public void framesOut(int frames) {
+        messagesOut.add(frames);
+    }
+
+    /** Time from sequencing a message to having queued it for every recipient. */
+    public void broadcastCompleted(long nanos) {
+        broadcastTime.recordNanos(nanos);
+    }
+
+    /** Time to look up a search query in the index, without reading the matches. */
+    public void searchCompleted(long nanos) {
+        searchTime.recordNanos(nanos);
+    }
+
+    /** A login attempt with a valid name, by outcome. */
+    public void login(UserRegistry.Result result) {
+        logins.get(result).increment();
+    }
+
+    /** A direct message accepted from a local client. */
+    public void directMessage() {
+        directMessages.increment();
+    }
+
+    /** A user entering or leaving a room, or starting to type. */
+    public void presenceChange() {
+        presenceChanges.increment();
+    }
+
+    /** A batch of presence changes sent to one room. */
+    public void presenceDelta() {
+        presenceDeltas.increment();
+    }
+
+    /** A message from another node, delivered to local clients. */
+    public void clusterMessageIn() {
+        clusterIn.increment();
+    }
+
+    /** A message from another node that had already been delivered. */
+    public void clusterDuplicate() {
+        clusterDuplicates.increment();
+    }
+
+    /** An inbound frame over the rate limits, and what was done about it. */
+    public void rateLimited(FloodControl.Policy action) {
+        rateLimited.get(action).increment();
+    }
+
+    public void disconnected(DisconnectReason reason, long droppedFrames) {
+        disconnects.get(reason).increment();
+        closedDropped.add(droppedFrames);
+    }
+
+    /** Registers this as an MXBean; a name clash is logged and otherwise ignored. */
+    public void registerMBean(int port) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("chat:type=Server,port=" + port);
+            server.registerMBean(this, name);
+            mbeanName = name;
+        } catch (InstanceAlreadyExistsException e) {
+            Log.warn("Metrics MBean already registered for port {}", port);
+        } catch (JMException e) {
+            Log.warn("Could not register metrics MBean: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        sampler.shutdownNow();
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException ignored) {
+            }
+            mbeanName = null;
+        }
+    }
+
+    private void sampleRates() {
+        long now = System.nanoTime();
+        long in = messagesIn.sum();
+        long out = messagesOut.sum();
+        double seconds = (now - lastSample) / 1e9;
+        messagesInRate = (in - lastIn) / seconds;
+        messagesOutRate = (out - lastOut) / seconds;
+        lastIn = in;
+        lastOut = out;
+        lastSample = now;
+    }
+
+    @Override
+    public long getConnectedClients() {
+        return gauges.connectedClients();
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getConnectionsRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public double getMessagesInPerSecond() {
+        return messagesInRate;
+    }
+
+    @Override
+    public double getMessagesOutPerSecond() {
+        return messagesOutRate;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getOutboundQueueDepth() {
+        return gauges.totalQueueDepth();
+    }
+
+    @Override
+    public long getMaxOutboundQueueDepth() {
+        return gauges.maxQueueDepth();
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return closedDropped.sum() + gauges.droppedFrames();
+    }
+
+    @Override
+    public Map<String, Long> getDisconnects() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        disconnects.forEach((reason, count) -> result.put(reason.name().toLowerCase(), count.sum()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getRateLimited() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        rateLimited.forEach((action, count) -> result.put(action.name().toLowerCase(), count.sum()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getLogins() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        logins.forEach((outcome, count) -> result.put(outcome.name().toLowerCase(), count.sum()));
+        return result;
+    }
+
+    @Override
+    public long getDirectMessages() {
+        return directMessages.sum();
+    }
+
+    @Override
+    public long getPresenceChanges() {
+        return presenceChanges.sum();
+    }
+
+    @Override
+    public long getPresenceDeltas() {
+        return presenceDeltas.sum();
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return broadcastTime.getCount();
+    }
+
+    /** An upload completed and was announced in its room. */
+    public void fileShared() {
+        filesShared.increment();
+    }
+
+    /** A download started, or resumed, by a client. */
+    public void fileDownload() {
+        fileDownloads.increment();
+    }
+
+    @Override
+    public long getFilesShared() {
+        return filesShared.sum();
+    }
+
+    @Override
+    public long getFileDownloads() {
+        return fileDownloads.sum();
+    }
+
+    @Override
+    public long getBroadcastP50Micros() {
+        return broadcastTime.percentileMicros(50);
+    }
+
+    @Override
+    public long getBroadcastP99Micros() {
+        return broadcastTime.percentileMicros(99);
+    }
+
+    @Override
+    public long getSearches() {
+        return searchTime.getCount();
+    }
+
+    @Override
+    public long getSearchP99Micros() {
+        return searchTime.percentileMicros(99);
+    }
+
+    @Override
+    public long getClusterMessagesIn() {
+        return clusterIn.sum();
+    }
+
+    @Override
+    public long getClusterDuplicates() {
+        return clusterDuplicates.sum();
+    }
+
+    @Override
+    public long getLogLinesDropped() {
+        return Log.getDroppedCount();
+    }
+
+    @Override
+    public long getMessageLogDropped() {
+        return gauges.logDroppedMessages();
+    }
+
+    /** All metrics in the Prometheus text exposition format. */
+    public String toText() {
+        StringBuilder out = new StringBuilder(4096);
+        gauge(out, "chat_connected_clients", "Open client connections.", gauges.connectedClients());
+        gauge(out, "chat_active_rooms", "Rooms with at least one member.", gauges.activeRooms());
+        counter(out, "chat_connections_accepted_total", "Connections accepted.", accepted.sum());
+        counter(out, "chat_connections_rejected_total", "Connections refused at the connection limit.", rejected.sum());
+        counter(out, "chat_messages_in_total", "Messages and commands received from clients.", messagesIn.sum());
+        counter(out, "chat_messages_out_total", "Frames written to client sockets.", messagesOut.sum());
+        gauge(out, "chat_messages_in_per_second", "Inbound messages over the last second.", messagesInRate);
+        gauge(out, "chat_messages_out_per_second", "Outbound frames over the last second.", messagesOutRate);
+        counter(out, "chat_bytes_in_total", "Bytes read from client sockets.", bytesIn.sum());
+        counter(out, "chat_bytes_out_total", "Bytes written to client sockets.", bytesOut.sum());
+        gauge(out, "chat_outbound_queue_depth", "Frames waiting in all outbound queues.", gauges.totalQueueDepth());
+        gauge(out, "chat_outbound_queue_depth_max", "Deepest single outbound queue.", gauges.maxQueueDepth());
+        counter(out, "chat_outbound_dropped_total", "Frames dropped by outbound overflow policies.", getDroppedFrames());
+
+        out.append("# HELP chat_disconnects_total Closed connections by reason.\n");
+        out.append("# TYPE chat_disconnects_total counter\n");
+        disconnects.forEach((reason, count) -> out.append("chat_disconnects_total{reason=\"")
+                .append(reason.name().toLowerCase()).append("\"} ").append(count.sum()).append('\n'));
+
+        out.append("# HELP chat_rate_limited_total Inbound frames over the rate limits, by action taken.\n");
+        out.append("# TYPE chat_rate_limited_total counter\n");
+        rateLimited.forEach((action, count) -> out.append("chat_rate_limited_total{action=\"")
+                .append(action.name().toLowerCase()).append("\"} ").append(count.sum()).append('\n'));
+
+        out.append("# HELP chat_logins_total Logins by outcome; replaced counts duplicate logins from one device.\n");
+        out.append("# TYPE chat_logins_total counter\n");
+        logins.forEach((outcome, count) -> out.append("chat_logins_total{result=\"")
+                .append(outcome.name().toLowerCase()).append("\"} ").append(count.sum()).append('\n'));
+        counter(out, "chat_direct_messages_total", "Direct messages sent by local clients.", directMessages.sum());
+        counter(out, "chat_presence_changes_total", "Room joins, leaves and typing reported by users.", presenceChanges.sum());
+        counter(out, "chat_presence_deltas_total", "Batched presence frames sent to rooms.", presenceDeltas.sum());
+        counter(out, "chat_files_shared_total", "Uploads completed and shared in a room.", filesShared.sum());
+        counter(out, "chat_file_downloads_total", "Downloads started or resumed.", fileDownloads.sum());
+
+        broadcastTime.writeText(out, "chat_broadcast_seconds",
+                "Time to sequence a message and queue it for every recipient.");
+        searchTime.writeText(out, "chat_search_seconds", "Time to look up a search query in the index.");
+        counter(out, "chat_cluster_messages_in_total", "Messages received from other nodes.", clusterIn.sum());
+        counter(out, "chat_cluster_duplicates_total", "Messages from other nodes dropped as already seen.", clusterDuplicates.sum());
+        counter(out, "chat_log_lines_dropped_total", "Log lines dropped because the writer fell behind.", Log.getDroppedCount());
+        counter(out, "chat_message_log_dropped_total", "Messages not written to the message log because its writer fell behind or failed.", getMessageLogDropped());
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, double value) {
+        header(out, name, help, "gauge");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "gauge");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+}
@@ -0,0 +1,65 @@
+package server.metrics;
+
+import java.util.Map;
+
+/** Management view of {@link ServerMetrics}, registered as {@code chat:type=Server,port=<port>}. */
+public interface ServerMetricsMXBean {
+
+    long getConnectedClients();
+
+    long getConnectionsAccepted();
+
+    long getConnectionsRejected();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    double getMessagesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getOutboundQueueDepth();
+
+    long getMaxOutboundQueueDepth();
+
+    long getDroppedFrames();
+
+    Map<String, Long> getDisconnects();
+
+    Map<String, Long> getRateLimited();
+
+    Map<String, Long> getLogins();
+
+    long getDirectMessages();
+
+    long getPresenceChanges();
+
+    long getPresenceDeltas();
+
+    long getFilesShared();
+
+    long getFileDownloads();
+
+    long getBroadcasts();
+
+    long getBroadcastP50Micros();
+
+    long getBroadcastP99Micros();
+
+    long getSearches();
+
+    long getSearchP99Micros();
+
+    long getClusterMessagesIn();
+
+    long getClusterDuplicates();
+
+    long getLogLinesDropped();
+
+    long getMessageLogDropped();
+}
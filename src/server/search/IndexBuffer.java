@@ -0,0 +1,85 @@
+package server.search;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The newest part of the index, in memory until it is written out as a
+ * segment. Not thread-safe: the owner locks it for both adding and searching.
+ */
+final class IndexBuffer {
+
+    private final Map<String, IdList> terms = new HashMap<>();
+    private long firstId;
+    private long lastId;
+    private int docs;
+
+    /** Terms are kept per room, so a room's search never looks at another room's postings. */
+    static String key(String room, String term) {
+        return room + '\0' + term;
+    }
+
+    /** Adds a message; ids must increase. */
+    void add(long id, String room, List<String> messageTerms) {
+        if (docs == 0) firstId = id;
+        lastId = id;
+        docs++;
+        for (String term : messageTerms) {
+            terms.computeIfAbsent(key(room, term), k -> new IdList()).add(id);
+        }
+    }
+
+    /** The postings for a key, or null; valid until the buffer next changes. */
+    Postings postings(String key) {
+        return terms.get(key);
+    }
+
+    Map<String, IdList> terms() {
+        return terms;
+    }
+
+    int docs() {
+        return docs;
+    }
+
+    long firstId() {
+        return firstId;
+    }
+
+    long lastId() {
+        return lastId;
+    }
+
+    /** A growable list of increasing ids. */
+    static final class IdList implements Postings {
+        private long[] ids = new long[4];
+        private int size;
+
+        void add(long id) {
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+
+        long[] array() {
+            return ids;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public long get(int index) {
+            return ids[index];
+        }
+
+        @Override
+        public int indexBelow(long id) {
+            int i = Arrays.binarySearch(ids, 0, size, id);
+            return (i >= 0 ? i : -i - 1) - 1;
+        }
+    }
+}
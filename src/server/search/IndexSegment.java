@@ -0,0 +1,228 @@
+package server.search;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A read-only index segment, memory-mapped; see {@link SegmentWriter} for the
+ * layout. Only every {@value #INDEX_INTERVAL}th dictionary entry is held on
+ * the heap, so an open segment costs little memory however many terms it
+ * has. Safe for concurrent readers.
+ */
+final class IndexSegment {
+
+    static final int MAGIC = 0x43494458;
+    static final int BLOCK_SIZE = 128;
+    // Segments are mapped whole, and a mapping cannot exceed 2 GB.
+    static final long MAX_BYTES = 1L << 30;
+
+    private static final int TRAILER = 8 + 4 + 8 + 8 + 4 + 4;
+    private static final int INDEX_INTERVAL = 32;
+
+    private final Path path;
+    private final ByteBuffer buf;
+    private final int dictionaryPosition;
+    private final int termCount;
+    private final long firstId;
+    private final long lastId;
+    private final int docs;
+    private final byte[][] indexTerms;
+    private final int[] indexPositions;
+
+    private IndexSegment(Path path, ByteBuffer buf) throws IOException {
+        this.path = path;
+        this.buf = buf;
+        int t = buf.limit() - TRAILER;
+        if (t < 0 || buf.getInt(buf.limit() - 4) != MAGIC) throw new IOException("Not an index segment: " + path);
+        dictionaryPosition = (int) buf.getLong(t);
+        termCount = buf.getInt(t + 8);
+        firstId = buf.getLong(t + 12);
+        lastId = buf.getLong(t + 20);
+        docs = buf.getInt(t + 28);
+
+        int entries = (termCount + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+        indexTerms = new byte[entries][];
+        indexPositions = new int[entries];
+        int p = dictionaryPosition;
+        for (int i = 0; i < termCount; i++) {
+            int n = buf.getShort(p) & 0xFFFF;
+            if (i % INDEX_INTERVAL == 0) {
+                byte[] term = new byte[n];
+                buf.get(p + 2, term);
+                indexTerms[i / INDEX_INTERVAL] = term;
+                indexPositions[i / INDEX_INTERVAL] = p;
+            }
+            p += 2 + n + 4 + 8;
+        }
+    }
+
+    static IndexSegment open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new IndexSegment(path, map);
+        }
+    }
+
+    Path path() {
+        return path;
+    }
+
+    long firstId() {
+        return firstId;
+    }
+
+    long lastId() {
+        return lastId;
+    }
+
+    int docs() {
+        return docs;
+    }
+
+    long sizeBytes() {
+        return buf.limit();
+    }
+
+    /** The postings of a term, or null if the segment does not have it. */
+    Postings postings(byte[] term) {
+        int i = floorIndexEntry(term);
+        if (i < 0) return null;
+        int p = indexPositions[i];
+        int last = Math.min(termCount, (i + 1) * INDEX_INTERVAL);
+        for (int e = i * INDEX_INTERVAL; e < last; e++) {
+            int n = buf.getShort(p) & 0xFFFF;
+            int cmp = compare(p + 2, n, term);
+            if (cmp == 0) {
+                return new BlockPostings(buf.getLong(p + 2 + n + 4), buf.getInt(p + 2 + n));
+            }
+            if (cmp > 0) return null;
+            p += 2 + n + 4 + 8;
+        }
+        return null;
+    }
+
+    private int floorIndexEntry(byte[] term) {
+        int lo = 0, hi = indexTerms.length - 1, found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Arrays.compareUnsigned(indexTerms[mid], term) <= 0) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    // Compares the n bytes at p with term, unsigned, without copying them out.
+    private int compare(int p, int n, byte[] term) {
+        int common = Math.min(n, term.length);
+        for (int i = 0; i < common; i++) {
+            int cmp = Integer.compare(buf.get(p + i) & 0xFF, term[i] & 0xFF);
+            if (cmp != 0) return cmp;
+        }
+        return Integer.compare(n, term.length);
+    }
+
+    /** Every term with its ids, in dictionary order; for merging. */
+    List<Term> terms() {
+        List<Term> terms = new ArrayList<>(termCount);
+        int p = dictionaryPosition;
+        for (int i = 0; i < termCount; i++) {
+            int n = buf.getShort(p) & 0xFFFF;
+            byte[] term = new byte[n];
+            buf.get(p + 2, term);
+            terms.add(new Term(term, buf.getInt(p + 2 + n), buf.getLong(p + 2 + n + 4)));
+            p += 2 + n + 4 + 8;
+        }
+        return terms;
+    }
+
+    /** Decodes all ids of a term into {@code out} from index {@code at}. */
+    void readAll(Term term, long[] out, int at) {
+        BlockPostings postings = new BlockPostings(term.position, term.count);
+        for (int i = 0; i < term.count; i++) out[at + i] = postings.get(i);
+    }
+
+    record Term(byte[] bytes, int count, long position) {
+    }
+
+    /** One term's ids, decoded a block at a time. Not thread-safe; each query makes its own. */
+    private final class BlockPostings implements Postings {
+        private final int count;
+        private final int blocks;
+        private final int firstIds;
+        private final int offsets;
+        private final int deltas;
+        private final long[] block = new long[BLOCK_SIZE];
+        private int decoded = -1;
+
+        BlockPostings(long position, int count) {
+            this.count = count;
+            this.blocks = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            this.firstIds = (int) position;
+            this.offsets = firstIds + 8 * blocks;
+            this.deltas = offsets + 4 * blocks;
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+        @Override
+        public long get(int index) {
+            decode(index / BLOCK_SIZE);
+            return block[index % BLOCK_SIZE];
+        }
+
+        @Override
+        public int indexBelow(long id) {
+            int lo = 0, hi = blocks - 1, b = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (buf.getLong(firstIds + 8 * mid) < id) {
+                    b = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            if (b < 0) return -1;
+            int n = decode(b);
+            int i = Arrays.binarySearch(block, 0, n, id);
+            return b * BLOCK_SIZE + (i >= 0 ? i : -i - 1) - 1;
+        }
+
+        // Returns the number of ids in block b.
+        private int decode(int b) {
+            int n = Math.min(BLOCK_SIZE, count - b * BLOCK_SIZE);
+            if (decoded == b) return n;
+            long id = buf.getLong(firstIds + 8 * b);
+            block[0] = id;
+            int p = deltas + buf.getInt(offsets + 4 * b);
+            for (int i = 1; i < n; i++) {
+                long delta = 0;
+                int shift = 0;
+                byte x;
+                do {
+                    x = buf.get(p++);
+                    delta |= (long) (x & 0x7F) << shift;
+                    shift += 7;
+                } while (x < 0);
+                id += delta;
+                block[i] = id;
+            }
+            decoded = b;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package server.search;
+
+/**
+ * The ids of the messages containing one term, in increasing order, from a
+ * segment or from the in-memory buffer. Queries walk the rarest term's list
+ * backwards and probe the others, so both operations must be cheap for ids
+ * close to the previous one.
+ */
+interface Postings {
+
+    int size();
+
+    long get(int index);
+
+    /** Index of the last id less than {@code id}, or -1 if there is none. */
+    int indexBelow(long id);
+
+    default boolean contains(long id) {
+        int i = indexBelow(id + 1);
+        return i >= 0 && get(i) == id;
+    }
+
+    /**
+     * Adds to {@code out} the ids below {@code beforeId} that appear in every
+     * list, newest first, until it holds {@code limit}.
+     *
+     * @return how many were added
+     */
+    static int intersect(Postings[] terms, long beforeId, int limit, long[] out, int outSize) {
+        Postings rarest = terms[0];
+        for (Postings p : terms) {
+            if (p.size() < rarest.size()) rarest = p;
+        }
+        int added = 0;
+        for (int i = rarest.indexBelow(beforeId); i >= 0 && outSize + added < limit; i--) {
+            long id = rarest.get(i);
+            boolean all = true;
+            for (Postings p : terms) {
+                if (p != rarest && !p.contains(id)) {
+                    all = false;
+                    break;
+                }
+            }
+            if (all) out[outSize + added++] = id;
+        }
+        return added;
+    }
+}
@@ -0,0 +1,482 @@
+package server.search;
+
+import protocol.Frame;
+import protocol.FrameType;
+import server.Log;
+import server.store.MessageLog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Full-text index of chat messages, per room, for finding old messages by
+ * the words in them.
+ *
+ * <p>New messages go into an in-memory buffer, which is written out as an
+ * immutable {@link IndexSegment} every {@value #FLUSH_DOCS} messages. A
+ * background thread merges runs of {@value #MERGE_FACTOR} similar-sized
+ * segments, so a query touches a few dozen segments at most. Queries read a
+ * snapshot of the segment list and never wait for a flush or merge.
+ *
+ * <p>{@link #index} only enqueues, like {@link MessageLog#append}; an indexer
+ * thread tokenizes. When the queue is full the message is skipped there and
+ * read back from the log once the indexer notices the gap, which is also how
+ * messages that were not yet flushed at a crash are indexed again on start.
+ */
+public final class SearchIndex implements Closeable {
+
+    static final int FLUSH_DOCS = 50_000;
+    static final int MERGE_FACTOR = 4;
+
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final String SEGMENT_SUFFIX = ".idx";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // How long a gap may wait for the log writer to catch up before it is skipped.
+    private static final int GAP_RETRIES = 50;
+
+    private final Path dir;
+    private final MessageLog log;
+    private final BlockingQueue<Frame> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread indexer;
+    private final Thread merger;
+    private volatile boolean running = true;
+
+    // Swapped under stateLock; searches read whichever one is current.
+    private volatile State state;
+    private final Object stateLock = new Object();
+    // Held by whichever thread is merging.
+    private final Object mergeLock = new Object();
+    // Files of segments merged away that could not be deleted yet. Guarded by mergeLock.
+    private final List<Path> retired = new ArrayList<>();
+
+    // Guarded by indexLock.
+    private final Object indexLock = new Object();
+    private long lastIndexed;
+
+    /** The immutable view a query works on: segments oldest first, then the buffers. */
+    private record State(List<IndexSegment> segments, IndexBuffer flushing, IndexBuffer current) {
+    }
+
+    /**
+     * Opens the index in {@code dir}, creating it if needed, and starts the
+     * indexer and merge threads.
+     *
+     * @param log where messages missing from the index are read back from,
+     *            or null if every message is passed to {@link #add}
+     */
+    public SearchIndex(Path dir, MessageLog log) throws IOException {
+        this.dir = dir;
+        this.log = log;
+        Files.createDirectories(dir);
+        List<IndexSegment> segments = recover(log != null ? log.lastOffset() : Long.MAX_VALUE);
+        lastIndexed = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).lastId();
+        state = new State(List.copyOf(segments), null, new IndexBuffer());
+
+        indexer = new Thread(this::indexLoop, "search-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+        merger = new Thread(this::mergeLoop, "search-merge");
+        merger.setDaemon(true);
+        merger.start();
+    }
+
+    /** Queues a delivered message for indexing; never blocks. */
+    public void index(Frame frame) {
+        if (running && frame.getType() == FrameType.MESSAGE) queue.offer(frame);
+    }
+
+    /**
+     * Indexes a message on the calling thread. Messages already indexed are
+     * ignored; ones between the last indexed and this are read from the log.
+     */
+    public void add(Frame frame) {
+        synchronized (indexLock) {
+            long id = frame.getId();
+            if (id <= lastIndexed) return;
+            if (id > lastIndexed + 1 && log != null) catchUp(id - 1);
+            addIndexed(frame);
+        }
+    }
+
+    /**
+     * Ids of messages in {@code room} below {@code beforeId} containing every
+     * word of {@code query}, newest first.
+     *
+     * @param beforeId exclusive upper bound, or 0 for the newest messages
+     */
+    public long[] search(String room, String query, long beforeId, int limit) {
+        List<String> terms = Tokenizer.terms(query);
+        if (terms.isEmpty() || limit <= 0) return new long[0];
+        long before = beforeId > 0 ? beforeId : Long.MAX_VALUE;
+        String[] keys = new String[terms.size()];
+        byte[][] keyBytes = new byte[terms.size()][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = IndexBuffer.key(room, terms.get(i));
+            keyBytes[i] = keys[i].getBytes(StandardCharsets.UTF_8);
+        }
+
+        long[] out = new long[limit];
+        int found = 0;
+        State s = state;
+        synchronized (s.current) {
+            found += search(s.current, keys, before, limit, out, found);
+        }
+        if (s.flushing != null && found < limit) {
+            found += search(s.flushing, keys, before, limit, out, found);
+        }
+        Postings[] postings = new Postings[keys.length];
+        for (int i = s.segments.size() - 1; i >= 0 && found < limit; i--) {
+            IndexSegment segment = s.segments.get(i);
+            if (segment.firstId() >= before) continue;
+            boolean all = true;
+            for (int k = 0; k < keys.length && all; k++) {
+                postings[k] = segment.postings(keyBytes[k]);
+                all = postings[k] != null;
+            }
+            if (all) found += Postings.intersect(postings, before, limit, out, found);
+        }
+        return found == limit ? out : Arrays.copyOf(out, found);
+    }
+
+    private static int search(IndexBuffer buffer, String[] keys, long before, int limit, long[] out, int found) {
+        Postings[] postings = new Postings[keys.length];
+        for (int k = 0; k < keys.length; k++) {
+            postings[k] = buffer.postings(keys[k]);
+            if (postings[k] == null) return 0;
+        }
+        return Postings.intersect(postings, before, limit, out, found);
+    }
+
+    /** Writes the buffered messages out as a segment. */
+    public void flush() throws IOException {
+        synchronized (indexLock) {
+            flushLocked();
+        }
+    }
+
+    /** Runs merges until none is due; for benchmarks that want a settled index. */
+    public void awaitMerges() throws IOException {
+        synchronized (mergeLock) {
+            while (mergeOnce()) {
+                // keep going
+            }
+        }
+    }
+
+    public int segmentCount() {
+        return state.segments.size();
+    }
+
+    /** Id of the newest message indexed, whether or not it has been flushed. */
+    public long lastIndexed() {
+        synchronized (indexLock) {
+            return lastIndexed;
+        }
+    }
+
+    /** Indexes what is still queued, writes it out and stops the threads. */
+    @Override
+    public void close() throws IOException {
+        // Not interrupted: that would close the log's channels under a catch-up read.
+        running = false;
+        LockSupport.unpark(merger);
+        try {
+            indexer.join();
+            merger.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Frame frame;
+        while ((frame = queue.poll()) != null) add(frame);
+        flush();
+        synchronized (mergeLock) {
+            deleteRetired();
+        }
+    }
+
+    private void indexLoop() {
+        if (log != null) {
+            synchronized (indexLock) {
+                catchUp(log.lastOffset());
+            }
+        }
+        while (running) {
+            try {
+                Frame frame = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (frame != null) add(frame);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                Log.error("Indexing failed: {}", e);
+            }
+        }
+    }
+
+    // Reads the messages after the last indexed one, up to toId, back from the log.
+    private void catchUp(long toId) {
+        for (int attempt = 0; lastIndexed < toId; attempt++) {
+            try {
+                log.scan(lastIndexed + 1, toId, f -> {
+                    if (f.getId() > lastIndexed) addIndexed(f);
+                    return true;
+                });
+            } catch (IOException e) {
+                Log.warn("Could not read the message log for indexing: {}", e.getMessage());
+                return;
+            }
+            if (lastIndexed >= toId) return;
+            // The writer thread may not have reached these ids yet.
+            if (attempt == GAP_RETRIES || !running) {
+                Log.warn("Messages missing from the log were not indexed, up to id {}", toId);
+                return;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+    }
+
+    // Caller holds indexLock. Ids of frames that are not messages are only passed over.
+    private void addIndexed(Frame frame) {
+        lastIndexed = frame.getId();
+        if (frame.getType() != FrameType.MESSAGE) return;
+        List<String> terms = Tokenizer.terms(frame.text());
+        IndexBuffer current = state.current;
+        synchronized (current) {
+            current.add(frame.getId(), frame.getRoom(), terms);
+        }
+        if (current.docs() >= FLUSH_DOCS) {
+            try {
+                flushLocked();
+            } catch (IOException e) {
+                Log.error("Could not write search index segment: {}", e.getMessage());
+            }
+        }
+    }
+
+    // Caller holds indexLock, so the buffer no longer changes once it is swapped out.
+    private void flushLocked() throws IOException {
+        IndexBuffer buffer = state.current;
+        if (buffer.docs() == 0) return;
+        synchronized (stateLock) {
+            state = new State(state.segments, buffer, new IndexBuffer());
+        }
+        IndexSegment segment;
+        try {
+            segment = write(buffer);
+        } catch (IOException e) {
+            // Nothing was added meanwhile, so the buffer goes back as it was and is retried next time.
+            synchronized (stateLock) {
+                state = new State(state.segments, null, buffer);
+            }
+            throw e;
+        }
+        synchronized (stateLock) {
+            List<IndexSegment> segments = new ArrayList<>(state.segments);
+            segments.add(segment);
+            state = new State(List.copyOf(segments), null, state.current);
+        }
+        LockSupport.unpark(merger);
+    }
+
+    private IndexSegment write(IndexBuffer buffer) throws IOException {
+        List<Map.Entry<byte[], IndexBuffer.IdList>> terms = new ArrayList<>(buffer.terms().size());
+        for (Map.Entry<String, IndexBuffer.IdList> e : buffer.terms().entrySet()) {
+            terms.add(Map.entry(e.getKey().getBytes(StandardCharsets.UTF_8), e.getValue()));
+        }
+        terms.sort((a, b) -> Arrays.compareUnsigned(a.getKey(), b.getKey()));
+
+        Path temp = dir.resolve(fileName(buffer.firstId(), buffer.lastId()) + TEMP_SUFFIX);
+        Files.deleteIfExists(temp);
+        try (SegmentWriter writer = new SegmentWriter(temp)) {
+            for (Map.Entry<byte[], IndexBuffer.IdList> e : terms) {
+                writer.addTerm(e.getKey(), e.getValue().array(), e.getValue().size());
+            }
+            writer.finish(buffer.firstId(), buffer.lastId(), buffer.docs());
+        }
+        return publish(temp, buffer.firstId(), buffer.lastId());
+    }
+
+    private IndexSegment publish(Path temp, long firstId, long lastId) throws IOException {
+        Path path = dir.resolve(fileName(firstId, lastId) + SEGMENT_SUFFIX);
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return IndexSegment.open(path);
+    }
+
+    private static String fileName(long firstId, long lastId) {
+        return String.format("%020d-%020d", firstId, lastId);
+    }
+
+    private void mergeLoop() {
+        while (running) {
+            try {
+                synchronized (mergeLock) {
+                    while (running && mergeOnce()) {
+                        // keep going
+                    }
+                    deleteRetired();
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.error("Search index merge failed: {}", e.getMessage());
+            }
+            LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    // Caller holds mergeLock. Returns whether a merge was done.
+    private boolean mergeOnce() throws IOException {
+        List<IndexSegment> inputs = pickMerge(state.segments);
+        if (inputs == null) return false;
+        IndexSegment merged = merge(inputs);
+        synchronized (stateLock) {
+            List<IndexSegment> segments = new ArrayList<>(state.segments);
+            int at = segments.indexOf(inputs.get(0));
+            segments.subList(at, at + inputs.size()).clear();
+            segments.add(at, merged);
+            state = new State(List.copyOf(segments), state.flushing, state.current);
+        }
+        for (IndexSegment segment : inputs) retired.add(segment.path());
+        deleteRetired();
+        return true;
+    }
+
+    /*
+     * Deletes the files of segments merged away. Queries that took the old
+     * state may still be reading them, and the mappings only go when the
+     * segments are collected; where that keeps a mapped file from being
+     * deleted, the merge thread tries again on each pass, and failing that
+     * recovery drops segments a merged one covers on the next start.
+     * Caller holds mergeLock.
+     */
+    private void deleteRetired() {
+        retired.removeIf(path -> {
+            try {
+                Files.deleteIfExists(path);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        });
+    }
+
+    // The newest run of MERGE_FACTOR adjacent segments of one size class, if one would not grow too large.
+    private static List<IndexSegment> pickMerge(List<IndexSegment> segments) {
+        for (int end = segments.size(); end >= MERGE_FACTOR; end--) {
+            List<IndexSegment> run = segments.subList(end - MERGE_FACTOR, end);
+            int level = level(run.get(0));
+            long bytes = 0;
+            boolean same = true;
+            for (IndexSegment segment : run) {
+                same &= level(segment) == level;
+                bytes += segment.sizeBytes();
+            }
+            if (same && bytes < IndexSegment.MAX_BYTES) return List.copyOf(run);
+        }
+        return null;
+    }
+
+    private static int level(IndexSegment segment) {
+        int level = 0;
+        for (long docs = (long) FLUSH_DOCS * MERGE_FACTOR; segment.docs() >= docs; docs *= MERGE_FACTOR) {
+            level++;
+        }
+        return level;
+    }
+
+    private IndexSegment merge(List<IndexSegment> inputs) throws IOException {
+        record Cursor(IndexSegment segment, int order, List<IndexSegment.Term> terms, int[] next) {
+            IndexSegment.Term term() {
+                return terms.get(next[0]);
+            }
+        }
+        // Equal terms come out oldest segment first, so concatenated ids stay in order.
+        PriorityQueue<Cursor> heap = new PriorityQueue<>(Comparator
+                .<Cursor, byte[]>comparing(c -> c.term().bytes(), Arrays::compareUnsigned)
+                .thenComparingInt(Cursor::order));
+        int docs = 0;
+        for (int i = 0; i < inputs.size(); i++) {
+            List<IndexSegment.Term> terms = inputs.get(i).terms();
+            if (!terms.isEmpty()) heap.add(new Cursor(inputs.get(i), i, terms, new int[1]));
+            docs += inputs.get(i).docs();
+        }
+
+        long firstId = inputs.get(0).firstId();
+        long lastId = inputs.get(inputs.size() - 1).lastId();
+        Path temp = dir.resolve(fileName(firstId, lastId) + TEMP_SUFFIX);
+        Files.deleteIfExists(temp);
+        long[] ids = new long[1024];
+        List<Cursor> same = new ArrayList<>(inputs.size());
+        try (SegmentWriter writer = new SegmentWriter(temp)) {
+            while (!heap.isEmpty()) {
+                same.clear();
+                Cursor first = heap.poll();
+                same.add(first);
+                byte[] term = first.term().bytes();
+                while (!heap.isEmpty() && Arrays.equals(heap.peek().term().bytes(), term)) {
+                    same.add(heap.poll());
+                }
+                int count = 0;
+                for (Cursor c : same) count += c.term().count();
+                if (ids.length < count) ids = new long[Math.max(count, ids.length * 2)];
+                int at = 0;
+                for (Cursor c : same) {
+                    c.segment().readAll(c.term(), ids, at);
+                    at += c.term().count();
+                    if (++c.next()[0] < c.terms().size()) heap.add(c);
+                }
+                writer.addTerm(term, ids, count);
+            }
+            writer.finish(firstId, lastId, docs);
+        }
+        return publish(temp, firstId, lastId);
+    }
+
+    // Opens the segments on disk, oldest first, dropping leftovers of interrupted flushes and merges.
+    private List<IndexSegment> recover(long lastLogged) throws IOException {
+        List<IndexSegment> found = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    Files.delete(path);
+                } else if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        found.add(IndexSegment.open(path));
+                    } catch (IOException e) {
+                        Log.warn("Deleting unreadable search index segment: {}", path);
+                        Files.delete(path);
+                    }
+                }
+            }
+        }
+        // A merge that was not cleaned up leaves its inputs behind, inside the merged segment's range.
+        found.sort(Comparator.comparingLong(IndexSegment::firstId)
+                .thenComparing(Comparator.comparingLong(IndexSegment::lastId).reversed()));
+        List<IndexSegment> segments = new ArrayList<>();
+        long covered = 0;
+        for (IndexSegment segment : found) {
+            // Ids past the end of the log were lost with it in a crash and will be reused;
+            // the segment goes, and what the log does have is indexed again.
+            if (segment.lastId() <= covered || segment.lastId() > lastLogged) {
+                Files.delete(segment.path());
+            } else {
+                segments.add(segment);
+                covered = segment.lastId();
+            }
+        }
+        return segments;
+    }
+}
@@ -0,0 +1,103 @@
+package server.search;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes one immutable index segment. Terms must be added in the order of
+ * their UTF-8 bytes, compared unsigned. The file is laid out as:
+ * <pre>
+ * postings, one run per term:
+ *   long[blocks]  first id of each block
+ *   int[blocks]   byte offset of each block's deltas, from the end of this table
+ *   per block:    varint deltas of the block's other ids
+ * dictionary, one entry per term:
+ *   short n, n bytes  term, UTF-8
+ *   int               number of ids
+ *   long              file position of the term's postings
+ * trailer:
+ *   long dictionary position, int term count, long first id, long last id,
+ *   int message count, int magic
+ * </pre>
+ * Blocks hold {@value IndexSegment#BLOCK_SIZE} ids, so a lookup decodes at
+ * most one block after a binary search of the first ids.
+ */
+final class SegmentWriter implements Closeable {
+
+    private final FileChannel channel;
+    private final DataOutputStream out;
+    private final ByteArrayOutputStream dictionaryBytes = new ByteArrayOutputStream(64 * 1024);
+    private final DataOutputStream dictionary = new DataOutputStream(dictionaryBytes);
+    private long position;
+    private int termCount;
+
+    SegmentWriter(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+    }
+
+    /** Adds a term with its first {@code count} ids, which must increase. */
+    void addTerm(byte[] term, long[] ids, int count) throws IOException {
+        dictionary.writeShort(term.length);
+        dictionary.write(term);
+        dictionary.writeInt(count);
+        dictionary.writeLong(position);
+        termCount++;
+
+        int blocks = (count + IndexSegment.BLOCK_SIZE - 1) / IndexSegment.BLOCK_SIZE;
+        for (int b = 0; b < blocks; b++) {
+            out.writeLong(ids[b * IndexSegment.BLOCK_SIZE]);
+        }
+        position += 8L * blocks;
+        // Block offsets are known only after encoding, so the deltas are staged first.
+        ByteArrayOutputStream deltas = new ByteArrayOutputStream(count * 2);
+        int[] offsets = new int[blocks];
+        for (int b = 0; b < blocks; b++) {
+            offsets[b] = deltas.size();
+            int start = b * IndexSegment.BLOCK_SIZE;
+            int end = Math.min(count, start + IndexSegment.BLOCK_SIZE);
+            for (int i = start + 1; i < end; i++) {
+                writeVarLong(deltas, ids[i] - ids[i - 1]);
+            }
+        }
+        for (int offset : offsets) out.writeInt(offset);
+        deltas.writeTo(out);
+        position += 4L * blocks + deltas.size();
+    }
+
+    /** Writes the dictionary and trailer and forces the file to disk. */
+    void finish(long firstId, long lastId, int docs) throws IOException {
+        long dictionaryPosition = position;
+        dictionary.flush();
+        dictionaryBytes.writeTo(out);
+        out.writeLong(dictionaryPosition);
+        out.writeInt(termCount);
+        out.writeLong(firstId);
+        out.writeLong(lastId);
+        out.writeInt(docs);
+        out.writeInt(IndexSegment.MAGIC);
+        out.flush();
+        channel.force(true);
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private static void writeVarLong(OutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+}
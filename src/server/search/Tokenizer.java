@@ -0,0 +1,40 @@
+package server.search;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Splits text into search terms: runs of letters and digits, lower-cased.
+ * Terms shorter than {@value #MIN_LENGTH} characters are too common to be
+ * worth indexing and longer ones are cut to {@value #MAX_LENGTH}.
+ */
+final class Tokenizer {
+
+    static final int MIN_LENGTH = 2;
+    static final int MAX_LENGTH = 32;
+
+    private Tokenizer() {
+    }
+
+    /** The distinct terms of {@code text}, in order of first appearance. */
+    static List<String> terms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        StringBuilder term = new StringBuilder(MAX_LENGTH);
+        int length = 0;
+        for (int i = 0; i <= text.length(); ) {
+            int cp = i < text.length() ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(cp)) {
+                if (length < MAX_LENGTH) term.appendCodePoint(Character.toLowerCase(cp));
+                length++;
+            } else {
+                if (length >= MIN_LENGTH) terms.add(term.toString());
+                term.setLength(0);
+                length = 0;
+            }
+            i += i < text.length() ? Character.charCount(cp) : 1;
+        }
+        return new ArrayList<>(terms);
+    }
+}
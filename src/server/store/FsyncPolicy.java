@@ -0,0 +1,12 @@
+package server.store;
+
+public enum FsyncPolicy {
+    // force() after every record, before the next is written. Delivery does not
+    // wait for it, so a crash can lose messages recipients already saw but the
+    // writer had not yet forced.
+    PER_MESSAGE,
+    // force() once per batch the writer drains (group commit).
+    BATCHED,
+    // force() at most once per interval; a crash loses up to one interval.
+    INTERVAL
+}
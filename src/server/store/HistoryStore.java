@@ -0,0 +1,180 @@
+package server.store;
+
+import protocol.Frame;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-room message history. The newest messages of each room are kept in an
+ * in-memory ring; older ones are read back from the {@link MessageLog} using
+ * a per-room index of message ids. A message pushed out of the ring before
+ * the log's writer has reached it is held aside until it has, so no page
+ * ever misses it. Without a log only the rings are available.
+ */
+public class HistoryStore {
+
+    private final int ringSize;
+    private final MessageLog log;
+    private final Map<String, RoomHistory> rooms = new ConcurrentHashMap<>();
+
+    public HistoryStore(int ringSize, MessageLog log) {
+        if (ringSize < 1) throw new IllegalArgumentException("ringSize must be >= 1");
+        this.ringSize = ringSize;
+        this.log = log;
+    }
+
+    /** Rebuilds rings and indexes from the log; call once before serving clients. */
+    public void load() throws IOException {
+        if (log == null) return;
+        log.scan(0, Long.MAX_VALUE, frame -> {
+            record(frame);
+            return true;
+        });
+    }
+
+    /**
+     * A page of history, oldest first, and whether the room has more beyond
+     * it in the direction it was read. A message the log dropped is missing
+     * from its page without making the page look like the last.
+     */
+    public record Page(List<Frame> frames, boolean more) {
+        static final Page EMPTY = new Page(List.of(), false);
+    }
+
+    /** Records a broadcast frame. Frames must arrive in id order per room and be detached. */
+    public void record(Frame frame) {
+        rooms.computeIfAbsent(frame.getRoom(), r -> new RoomHistory(ringSize, log != null)).add(frame, log);
+    }
+
+    /** The newest {@code limit} messages; more means there are older ones. */
+    public Page latest(String room, int limit) throws IOException {
+        RoomHistory h = rooms.get(room);
+        if (h == null || limit <= 0) return Page.EMPTY;
+        Slice slice;
+        synchronized (h) {
+            int from = Math.max(0, h.idCount - limit);
+            slice = h.slice(from, h.idCount, from > 0);
+        }
+        return read(slice);
+    }
+
+    /** Messages with ids greater than {@code afterId}; more means there are newer ones. */
+    public Page after(String room, long afterId, int limit) throws IOException {
+        RoomHistory h = rooms.get(room);
+        if (h == null || limit <= 0) return Page.EMPTY;
+        Slice slice;
+        synchronized (h) {
+            int from = h.indexAfter(afterId);
+            int to = Math.min(h.idCount, from + limit);
+            slice = h.slice(from, to, to < h.idCount);
+        }
+        return read(slice);
+    }
+
+    /** Up to {@code limit} messages with ids less than {@code beforeId}; more means there are older ones. */
+    public Page before(String room, long beforeId, int limit) throws IOException {
+        RoomHistory h = rooms.get(room);
+        if (h == null || limit <= 0) return Page.EMPTY;
+        Slice slice;
+        synchronized (h) {
+            int to = h.indexAfter(beforeId - 1);
+            int from = Math.max(0, to - limit);
+            slice = h.slice(from, to, from > 0);
+        }
+        return read(slice);
+    }
+
+    // Reads a sorted run of one room's ids from the log, by id, so other rooms' messages in between cost next to nothing.
+    private Page read(Slice slice) throws IOException {
+        if (slice.ids().length == 0 || log == null) return new Page(slice.held(), slice.more());
+        List<Frame> frames = new ArrayList<>(slice.ids().length + slice.held().size());
+        frames.addAll(log.read(slice.ids()));
+        frames.addAll(slice.held());
+        return new Page(frames, slice.more());
+    }
+
+    /**
+     * Part of a room's history taken under its lock: ids to read from the
+     * log, all written already, followed by the frames still held in memory.
+     */
+    private record Slice(long[] ids, List<Frame> held, boolean more) {
+    }
+
+    /** History of one room. All access is synchronized on the instance. */
+    private static final class RoomHistory {
+        private final Frame[] ring;
+        private int ringStart;
+        private int ringCount;
+        // Frames pushed out of the ring before the log wrote them, oldest first; they come just before the ring.
+        private final ArrayDeque<Frame> unwritten = new ArrayDeque<>();
+
+        // Ids recorded for the room, ascending; the last unwritten.size() + ringCount of them are held in memory.
+        // Without a log to read older messages from, only the ring's ids are kept.
+        private long[] ids = new long[64];
+        private int idCount;
+        private final boolean indexAll;
+
+        RoomHistory(int ringSize, boolean indexAll) {
+            this.ring = new Frame[ringSize];
+            this.indexAll = indexAll;
+        }
+
+        synchronized void add(Frame frame, MessageLog log) {
+            if (!indexAll && idCount == ids.length && idCount >= 2 * ring.length) {
+                System.arraycopy(ids, idCount - ring.length, ids, 0, ring.length);
+                idCount = ring.length;
+            }
+            if (idCount == ids.length) ids = Arrays.copyOf(ids, idCount * 2);
+            ids[idCount++] = frame.getId();
+
+            int slot = (ringStart + ringCount) % ring.length;
+            Frame evicted = ring[slot];
+            ring[slot] = frame;
+            if (ringCount < ring.length) {
+                ringCount++;
+            } else {
+                ringStart = (ringStart + 1) % ring.length;
+                if (log != null && evicted.getId() > log.lastOffset()) unwritten.addLast(evicted);
+            }
+            // A frame the log has passed is readable from it, or was dropped and never will be;
+            // no room can have more than a queue's worth waiting.
+            while (!unwritten.isEmpty() && (unwritten.peekFirst().getId() <= log.lastOffset()
+                    || unwritten.size() > MessageLog.QUEUE_CAPACITY)) {
+                unwritten.pollFirst();
+            }
+        }
+
+        // Position of the first id greater than {@code id}.
+        int indexAfter(long id) {
+            int i = Arrays.binarySearch(ids, 0, idCount, id);
+            return i >= 0 ? i + 1 : -i - 1;
+        }
+
+        Slice slice(int from, int to, boolean more) {
+            int firstHeld = idCount - ringCount - unwritten.size();
+            long[] logIds = Arrays.copyOfRange(ids, from, Math.max(from, Math.min(to, firstHeld)));
+            return new Slice(logIds, held(Math.max(from, firstHeld), to), more);
+        }
+
+        // Frames for id positions [from, to); the caller ensures they are all held in memory.
+        private List<Frame> held(int from, int to) {
+            List<Frame> out = new ArrayList<>(Math.max(0, to - from));
+            int firstInRing = idCount - ringCount;
+            int i = firstInRing - unwritten.size();
+            for (Frame frame : unwritten) {
+                if (i >= to) return out;
+                if (i++ >= from) out.add(frame);
+            }
+            for (i = Math.max(from, firstInRing); i < to; i++) {
+                out.add(ring[(ringStart + i - firstInRing) % ring.length]);
+            }
+            return out;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package server.store;
+
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.ProtocolException;
+import server.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only, segmented log of every broadcast frame, keyed by frame id.
+ *
+ * <p>Each record is {@code int length, int crc32c} followed by the frame in
+ * its binary wire encoding. {@link #append} only enqueues; a single writer
+ * thread encodes, writes and forces batches according to the
+ * {@link FsyncPolicy}, so the broadcast path never waits for the disk. A
+ * frame that arrives while the writer is a whole queue behind is dropped and
+ * counted rather than waited for. A batch the writer fails to write is
+ * dropped too, and the file cut back to the last whole record, so a torn
+ * record is never followed by good ones; if even that fails the log stops
+ * accepting frames.
+ */
+public class MessageLog implements Closeable {
+
+    private static final int RECORD_HEADER = 8;
+    // A record's frame id, after the frame's length prefix, type and flags.
+    private static final int ID_POSITION = RECORD_HEADER + 6;
+    static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int WRITE_BATCH = 1024;
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    private final Path dir;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalMs;
+    private final long segmentBytes;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final BlockingQueue<Frame> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writer;
+    private volatile boolean running = true;
+    private volatile boolean failed;
+    private volatile long lastOffset;
+    private volatile long durableOffset;
+    private final LongAdder dropped = new LongAdder();
+    private long recovered;
+
+    // Writer thread state.
+    private Segment active;
+    private long activeSize;
+    // The newest frame handed to the file, whether or not it has reached it yet.
+    private long pendingOffset;
+    private long lastForceNanos = System.nanoTime();
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final CRC32C crc = new CRC32C();
+
+    public MessageLog(Path dir, FsyncPolicy fsyncPolicy, long fsyncIntervalMs, long segmentBytes) throws IOException {
+        this.dir = dir;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(dir);
+        recover();
+        durableOffset = lastOffset;
+        pendingOffset = lastOffset;
+
+        writer = new Thread(this::writeLoop, "message-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Id of the newest frame written to the log and so visible to
+     * {@link #read}, or 0 if it is empty. Frames still queued are not counted.
+     */
+    public long lastOffset() {
+        return lastOffset;
+    }
+
+    /** Id of the newest frame known to be forced to disk. */
+    public long durableOffset() {
+        return durableOffset;
+    }
+
+    /** Number of records found on disk at startup. */
+    public long recoveredCount() {
+        return recovered;
+    }
+
+    /** Frames dropped because the writer was behind or could not write them. */
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Queues a frame for writing, without waiting. Frames must be appended in
+     * increasing id order and must not share memory with a reusable buffer.
+     *
+     * @return false if the frame was dropped because the queue is full or the
+     *         log has closed or failed
+     */
+    public boolean append(Frame frame) {
+        if (running && !failed && queue.offer(frame)) return true;
+        dropped.increment();
+        return false;
+    }
+
+    /**
+     * Reads up to {@code max} frames with ids {@code >= fromOffset}, in order.
+     * Only frames the writer has already handed to the file are visible.
+     */
+    public List<Frame> read(long fromOffset, int max) throws IOException {
+        List<Frame> out = new ArrayList<>(Math.min(max, 256));
+        scan(fromOffset, Long.MAX_VALUE, frame -> {
+            out.add(frame);
+            return out.size() < max;
+        });
+        return out;
+    }
+
+    /**
+     * Reads the frames with the given ascending ids, skipping any the log
+     * does not hold. Each is found through its segment's sparse index, and
+     * the records passed over on the way are only looked at for their id,
+     * so the cost does not depend on how many other messages lie between.
+     */
+    public List<Frame> read(long[] ids) throws IOException {
+        List<Frame> out = new ArrayList<>(ids.length);
+        ByteBuffer head = ByteBuffer.allocate(ID_POSITION + 8);
+        Segment segment = null;
+        long position = 0;
+        for (long id : ids) {
+            Map.Entry<Long, Segment> entry = segments.floorEntry(id);
+            if (entry == null) continue;
+            if (entry.getValue() != segment) {
+                segment = entry.getValue();
+                position = 0;
+            }
+            position = Math.max(position, segment.floorPosition(id));
+            while (true) {
+                head.clear();
+                if (segment.read(head, position) < head.capacity()) break;
+                int length = head.getInt(0);
+                long recordId = head.getLong(ID_POSITION);
+                if (recordId > id) break;
+                if (recordId == id) {
+                    ByteBuffer body = ByteBuffer.allocate(length);
+                    if (segment.read(body, position + RECORD_HEADER) < length) break;
+                    Frame frame = FrameCodec.decode(body.flip());
+                    if (frame != null) out.add(frame);
+                }
+                position += RECORD_HEADER + length;
+                if (recordId == id) break;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Passes frames with ids in {@code [fromOffset, toOffset]} to
+     * {@code visitor} in order, until it returns false or the range is exhausted.
+     */
+    public void scan(long fromOffset, long toOffset, Predicate<Frame> visitor) throws IOException {
+        Map.Entry<Long, Segment> start = segments.floorEntry(fromOffset);
+        Iterable<Segment> candidates = start == null
+                ? segments.values()
+                : segments.tailMap(start.getKey(), true).values();
+
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        for (Segment segment : candidates) {
+            if (segment.baseOffset() > toOffset) return;
+            long position = segment.floorPosition(fromOffset);
+            while (true) {
+                header.clear();
+                if (segment.read(header, position) < RECORD_HEADER) break;
+                header.flip();
+                int length = header.getInt();
+                ByteBuffer body = ByteBuffer.allocate(length);
+                if (segment.read(body, position + RECORD_HEADER) < length) break;
+                body.flip();
+                position += RECORD_HEADER + length;
+
+                Frame frame = FrameCodec.decode(body);
+                if (frame == null || frame.getId() < fromOffset) continue;
+                if (frame.getId() > toOffset || !visitor.test(frame)) return;
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Path> files;
+        try (Stream<Path> s = Files.list(dir)) {
+            files = s.filter(p -> p.getFileName().toString().endsWith(".log")).sorted().toList();
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            Segment segment = new Segment(Long.parseLong(name.substring(0, name.length() - 4)), file);
+            long size = scan(segment);
+            if (size < segment.channel().size()) {
+                Log.warn("Message log: truncating torn tail of {} at {}", name, size);
+                segment.channel().truncate(size);
+            }
+            segment.channel().position(size);
+            segment.commit(size);
+            segments.put(segment.baseOffset(), segment);
+            if (segment.lastOffset() > lastOffset) lastOffset = segment.lastOffset();
+            active = segment;
+            activeSize = size;
+        }
+        if (recovered > 0) {
+            Log.info("Message log: recovered {} messages up to id {}", recovered, lastOffset);
+        }
+    }
+
+    // Validates every record and rebuilds the sparse index; returns the size of the valid prefix.
+    private long scan(Segment segment) throws IOException {
+        long fileSize = segment.channel().size();
+        segment.commit(fileSize);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        long position = 0;
+        while (true) {
+            header.clear();
+            if (segment.read(header, position) < RECORD_HEADER) break;
+            header.flip();
+            int length = header.getInt();
+            int expectedCrc = header.getInt();
+            if (length <= 0 || length > FrameCodec.MAX_FRAME_LENGTH + 4) break;
+
+            ByteBuffer body = ByteBuffer.allocate(length);
+            if (segment.read(body, position + RECORD_HEADER) < length) break;
+            body.flip();
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != expectedCrc) break;
+
+            Frame frame;
+            try {
+                frame = FrameCodec.decode(body);
+            } catch (ProtocolException e) {
+                break;
+            }
+            if (frame == null) break;
+            segment.index(frame.getId(), position);
+            recovered++;
+            position += RECORD_HEADER + length;
+        }
+        return position;
+    }
+
+    private void writeLoop() {
+        List<Frame> batch = new ArrayList<>(WRITE_BATCH);
+        while (running || !queue.isEmpty()) {
+            try {
+                Frame first = queue.poll(Math.max(1, fsyncIntervalMs), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, WRITE_BATCH - 1);
+                    writeBatch(batch);
+                    batch.clear();
+                }
+                if (fsyncPolicy == FsyncPolicy.INTERVAL && durableOffset < lastOffset
+                        && System.nanoTime() - lastForceNanos >= fsyncIntervalMs * 1_000_000) {
+                    force();
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                Log.error("Message log write failed, dropping the batch: {}", e.getMessage());
+                for (Frame frame : batch) {
+                    if (frame.getId() > lastOffset) dropped.increment();
+                }
+                batch.clear();
+                try {
+                    rollBack();
+                } catch (IOException rollBackFailure) {
+                    Log.error("Message log could not be repaired; no longer writing: {}", rollBackFailure.getMessage());
+                    failed = true;
+                    dropped.add(queue.size());
+                    queue.clear();
+                    break;
+                }
+            }
+        }
+    }
+
+    // Cuts the active segment back to its last whole record, so a batch that failed part way leaves nothing behind.
+    private void rollBack() throws IOException {
+        writeBuffer.clear();
+        pendingOffset = lastOffset;
+        if (active == null) return;
+        activeSize = active.committedSize();
+        active.channel().truncate(activeSize);
+        active.truncate(activeSize, lastOffset);
+    }
+
+    private void writeBatch(List<Frame> batch) throws IOException {
+        for (Frame frame : batch) {
+            byte[] record = FrameCodec.encode(frame);
+            long size = activeSize + writeBuffer.position();
+            if (active == null || size > 0 && size + RECORD_HEADER + record.length > segmentBytes) {
+                roll(frame.getId());
+            }
+            if (writeBuffer.remaining() < RECORD_HEADER + record.length) {
+                flushBuffer();
+            }
+            crc.reset();
+            crc.update(record);
+            active.index(frame.getId(), activeSize + writeBuffer.position());
+            pendingOffset = frame.getId();
+            if (RECORD_HEADER + record.length > writeBuffer.capacity()) {
+                // Larger than the staging buffer; write it directly.
+                ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER).putInt(record.length).putInt((int) crc.getValue()).flip();
+                writeFully(new ByteBuffer[]{header, ByteBuffer.wrap(record)});
+            } else {
+                writeBuffer.putInt(record.length).putInt((int) crc.getValue()).put(record);
+            }
+            if (fsyncPolicy == FsyncPolicy.PER_MESSAGE) {
+                flushBuffer();
+                force();
+            }
+        }
+        flushBuffer();
+        if (fsyncPolicy == FsyncPolicy.BATCHED) {
+            force();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        writeBuffer.flip();
+        writeFully(new ByteBuffer[]{writeBuffer});
+        writeBuffer.clear();
+    }
+
+    private void writeFully(ByteBuffer[] buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer b : buffers) remaining += b.remaining();
+        while (remaining > 0) {
+            long n = active.channel().write(buffers);
+            activeSize += n;
+            remaining -= n;
+        }
+        active.commit(activeSize);
+        lastOffset = pendingOffset;
+    }
+
+    private void roll(long baseOffset) throws IOException {
+        if (active != null) {
+            flushBuffer();
+            active.channel().force(false);
+        }
+        active = new Segment(baseOffset, Segment.fileName(dir, baseOffset));
+        activeSize = 0;
+        segments.put(baseOffset, active);
+    }
+
+    private void force() throws IOException {
+        if (active != null) active.channel().force(false);
+        durableOffset = lastOffset;
+        lastForceNanos = System.nanoTime();
+    }
+
+    /** Writes and forces everything queued so far, then closes the segments. */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        force();
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+    }
+}
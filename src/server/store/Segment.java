@@ -0,0 +1,119 @@
+package server.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * One file of the message log, named after the first offset it holds. Only
+ * the log's writer thread appends; readers may scan concurrently up to
+ * {@link #committedSize()}.
+ */
+final class Segment {
+
+    // Index one record every this many bytes.
+    private static final int INDEX_INTERVAL = 4096;
+
+    private final long baseOffset;
+    private final Path path;
+    private final FileChannel channel;
+    private volatile long committedSize;
+    private volatile long lastOffset = -1;
+
+    // Sparse index: offsets[i] is stored at positions[i]. Guarded by this.
+    private long[] offsets = new long[64];
+    private long[] positions = new long[64];
+    private int indexSize;
+    private long lastIndexedPosition = -INDEX_INTERVAL;
+
+    Segment(long baseOffset, Path path) throws IOException {
+        this.baseOffset = baseOffset;
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    static Path fileName(Path dir, long baseOffset) {
+        return dir.resolve(String.format("%020d.log", baseOffset));
+    }
+
+    long baseOffset() {
+        return baseOffset;
+    }
+
+    Path path() {
+        return path;
+    }
+
+    FileChannel channel() {
+        return channel;
+    }
+
+    long committedSize() {
+        return committedSize;
+    }
+
+    long lastOffset() {
+        return lastOffset;
+    }
+
+    /** Records that {@code offset} starts at {@code position}; called in file order. */
+    synchronized void index(long offset, long position) {
+        if (position - lastIndexedPosition < INDEX_INTERVAL) {
+            lastOffset = offset;
+            return;
+        }
+        if (indexSize == offsets.length) {
+            offsets = Arrays.copyOf(offsets, indexSize * 2);
+            positions = Arrays.copyOf(positions, indexSize * 2);
+        }
+        offsets[indexSize] = offset;
+        positions[indexSize] = position;
+        indexSize++;
+        lastIndexedPosition = position;
+        lastOffset = offset;
+    }
+
+    /** File position of an indexed record at or before {@code offset}. */
+    synchronized long floorPosition(long offset) {
+        int i = Arrays.binarySearch(offsets, 0, indexSize, offset);
+        if (i < 0) i = -i - 2;
+        return i < 0 ? 0 : positions[i];
+    }
+
+    void commit(long size) {
+        committedSize = size;
+    }
+
+    /**
+     * Forgets what was indexed at or past {@code size} after the file was cut
+     * back to it; {@code lastOffset} is the id of the record now last in the
+     * log, which may be in an earlier segment if this one is left empty.
+     */
+    synchronized void truncate(long size, long lastOffset) {
+        while (indexSize > 0 && positions[indexSize - 1] >= size) indexSize--;
+        lastIndexedPosition = indexSize == 0 ? -INDEX_INTERVAL : positions[indexSize - 1];
+        this.lastOffset = size == 0 ? -1 : lastOffset;
+        committedSize = size;
+    }
+
+    /** Reads up to dst.remaining() bytes at position, returning how many were read before the committed end. */
+    int read(ByteBuffer dst, long position) throws IOException {
+        long limit = committedSize;
+        if (position >= limit) return -1;
+        if (dst.remaining() > limit - position) dst.limit(dst.position() + (int) (limit - position));
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position + total);
+            if (n < 0) break;
+            total += n;
+        }
+        return total;
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,146 @@
+package client;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import protocol.Frame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MessageCacheTest {
+
+    private static final String HOST = "localhost";
+    private static final int PORT = 5000;
+    private static final String ROOM = "general";
+
+    @TempDir
+    Path dir;
+
+    @BeforeEach
+    void useTempDir() {
+        System.setProperty("chat.cacheDir", dir.toString());
+    }
+
+    @AfterEach
+    void clearTempDir() {
+        System.clearProperty("chat.cacheDir");
+    }
+
+    @Test
+    void messagesSurviveReopening() {
+        MessageCache cache = open();
+        appendRange(cache, 1, 20);
+        cache.close();
+
+        cache = open();
+        assertIds(cache.latest(ROOM, 100), 1, 20);
+        assertIds(cache.latest(ROOM, 5), 16, 20);
+        cache.close();
+    }
+
+    @Test
+    void damagedLastRecordIsDroppedAndAppendsContinue() throws IOException {
+        MessageCache cache = open();
+        appendRange(cache, 1, 20);
+        cache.close();
+        flipLastByte(roomFile());
+
+        cache = open();
+        assertIds(cache.latest(ROOM, 100), 1, 19);
+        // What follows the surviving prefix is appended to it.
+        appendRange(cache, 20, 25);
+        cache.close();
+
+        cache = open();
+        assertIds(cache.latest(ROOM, 100), 1, 25);
+        cache.close();
+    }
+
+    @Test
+    void unknownHeaderStartsTheRoomOver() throws IOException {
+        MessageCache cache = open();
+        appendRange(cache, 1, 10);
+        cache.close();
+        try (FileChannel ch = FileChannel.open(roomFile(), StandardOpenOption.WRITE)) {
+            ch.write(ByteBuffer.allocate(4).putInt(0, 0xBADCAFE), 0);
+        }
+
+        cache = open();
+        assertEquals(List.of(), cache.latest(ROOM, 100));
+        appendRange(cache, 11, 12);
+        assertIds(cache.latest(ROOM, 100), 11, 12);
+        cache.close();
+    }
+
+    @Test
+    void gapStartsTheRoomOver() {
+        MessageCache cache = open();
+        appendRange(cache, 1, 10);
+        cache.append(ROOM, message(15), 14);
+        assertIds(cache.latest(ROOM, 100), 15, 15);
+        cache.close();
+    }
+
+    @Test
+    void fullRoomKeepsItsNewestMessages() {
+        MessageCache cache = open();
+        // About 100 bytes each, far more than a room holds.
+        appendRange(cache, 1, 10_000);
+        List<Frame> kept = cache.latest(ROOM, Integer.MAX_VALUE);
+        assertEquals(10_000, kept.get(kept.size() - 1).getId());
+        assertIds(kept, 10_001 - kept.size(), 10_000);
+        cache.close();
+
+        cache = open();
+        assertIds(cache.latest(ROOM, Integer.MAX_VALUE), 10_001 - kept.size(), 10_000);
+        cache.close();
+    }
+
+    private static MessageCache open() {
+        MessageCache cache = new MessageCache(HOST, PORT);
+        cache.open(ROOM);
+        return cache;
+    }
+
+    private static Frame message(long id) {
+        return Frame.message("user", ROOM, "message " + id + " " + "x".repeat(80)).withIdAndRoom(id, id, ROOM);
+    }
+
+    private static void appendRange(MessageCache cache, long from, long to) {
+        for (long id = from; id <= to; id++) {
+            cache.append(ROOM, message(id), id - 1);
+        }
+    }
+
+    private static void assertIds(List<Frame> frames, long from, long to) {
+        assertEquals(to - from + 1, frames.size());
+        for (int i = 0; i < frames.size(); i++) {
+            assertEquals(from + i, frames.get(i).getId());
+            assertEquals(ROOM, frames.get(i).getRoom());
+            assertEquals(message(from + i).text(), frames.get(i).text());
+        }
+    }
+
+    private Path roomFile() {
+        return dir.resolve(HOST + "_" + PORT).resolve(ROOM + ".msgs");
+    }
+
+    // The last non-zero byte is the end of the last record's text.
+    private static void flipLastByte(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer all = ByteBuffer.allocate((int) ch.size());
+            ch.read(all, 0);
+            int last = all.limit() - 1;
+            while (all.get(last) == 0) last--;
+            ch.write(ByteBuffer.wrap(new byte[]{(byte) (all.get(last) ^ 0x55)}), last);
+        }
+    }
+}
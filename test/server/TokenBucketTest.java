@@ -0,0 +1,83 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TokenBucketTest {
+
+    private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test
+    void fullBucketAllowsBurstThenWaitsOneInterval() {
+        TokenBucket bucket = new TokenBucket(10, 5);
+        long now = System.nanoTime();
+        for (int i = 0; i < 5; i++) assertEquals(0, bucket.tryAcquire(now), "token " + i);
+        assertEquals(INTERVAL, bucket.tryAcquire(now));
+        // A refused attempt takes nothing.
+        assertEquals(INTERVAL, bucket.tryAcquire(now));
+    }
+
+    @Test
+    void refillsOneTokenPerInterval() {
+        TokenBucket bucket = new TokenBucket(10, 5);
+        long now = System.nanoTime();
+        for (int i = 0; i < 5; i++) bucket.tryAcquire(now);
+
+        assertEquals(INTERVAL / 2, bucket.tryAcquire(now + INTERVAL / 2));
+        assertEquals(0, bucket.tryAcquire(now + INTERVAL));
+        assertEquals(INTERVAL, bucket.tryAcquire(now + INTERVAL));
+        assertEquals(0, bucket.tryAcquire(now + 3 * INTERVAL));
+        assertEquals(0, bucket.tryAcquire(now + 3 * INTERVAL));
+        assertEquals(INTERVAL, bucket.tryAcquire(now + 3 * INTERVAL));
+    }
+
+    @Test
+    void quietSpellRefillsNoMoreThanTheBurst() {
+        TokenBucket bucket = new TokenBucket(10, 5);
+        long later = System.nanoTime() + TimeUnit.HOURS.toNanos(1);
+        for (int i = 0; i < 5; i++) assertEquals(0, bucket.tryAcquire(later), "token " + i);
+        assertEquals(INTERVAL, bucket.tryAcquire(later));
+    }
+
+    @Test
+    void burstOfOneSpacesEveryToken() {
+        TokenBucket bucket = new TokenBucket(10, 1);
+        long now = System.nanoTime();
+        assertEquals(0, bucket.tryAcquire(now));
+        assertEquals(INTERVAL, bucket.tryAcquire(now));
+        assertEquals(1, bucket.tryAcquire(now + INTERVAL - 1));
+        assertEquals(0, bucket.tryAcquire(now + INTERVAL));
+    }
+
+    @Test
+    void fractionalRate() {
+        TokenBucket bucket = new TokenBucket(0.5, 1);
+        long now = System.nanoTime();
+        assertEquals(0, bucket.tryAcquire(now));
+        assertEquals(TimeUnit.SECONDS.toNanos(2), bucket.tryAcquire(now));
+    }
+
+    @Test
+    void reserveBorrowsFromTheFuture() {
+        TokenBucket bucket = new TokenBucket(10, 2);
+        long now = System.nanoTime();
+        assertEquals(0, bucket.reserve(now));
+        assertEquals(0, bucket.reserve(now));
+        assertEquals(INTERVAL, bucket.reserve(now));
+        assertEquals(2 * INTERVAL, bucket.reserve(now));
+        // Borrowed tokens have to be paid back before another can be taken.
+        assertEquals(3 * INTERVAL, bucket.tryAcquire(now));
+        assertEquals(0, bucket.tryAcquire(now + 3 * INTERVAL));
+    }
+
+    @Test
+    void rejectsBadSettings() {
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(0, 5));
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(-1, 5));
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(10, 0));
+    }
+}
@@ -0,0 +1,142 @@
+package server.cluster;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import server.ChatServer;
+import server.ServerConfig;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Three nodes on ephemeral ports, each peered with all three, as the README starts them. */
+class ClusterDeliveryTest {
+
+    private static final int NODES = 3;
+    private static final long TIMEOUT_MS = 10_000;
+    // How long to keep listening for a second copy after the first arrived.
+    private static final long SETTLE_MS = 500;
+
+    private final List<ChatServer> servers = new ArrayList<>();
+    // Per node: one client that sends, and one that only listens, since senders do not hear themselves.
+    private final List<TextClient> senders = new ArrayList<>();
+    private final List<TextClient> listeners = new ArrayList<>();
+
+    @BeforeEach
+    void startCluster() throws Exception {
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (int i = 0; i < NODES; i++) {
+            peers.add(InetSocketAddress.createUnresolved("localhost", freePort()));
+        }
+        for (int i = 0; i < NODES; i++) {
+            // No history on join: a replay racing the live message would be a second copy that is not the mesh's doing.
+            ServerConfig config = new ServerConfig().port(0).nodeId("n" + i).historyOnJoin(0)
+                    .clusterPort(peers.get(i).getPort()).peers(peers);
+            ChatServer server = new ChatServer(config);
+            servers.add(server);
+            Thread.ofPlatform().daemon().name("chat-server-n" + i).start(server::start);
+        }
+        for (ChatServer server : servers) {
+            await(() -> server.getBus().connectedPeers() == NODES - 1, "mesh to connect");
+        }
+        for (ChatServer server : servers) {
+            senders.add(new TextClient(server.getPort()));
+            listeners.add(new TextClient(server.getPort()));
+            await(() -> server.getClientCount() == 2, "clients to be seated");
+        }
+    }
+
+    @AfterEach
+    void stopCluster() {
+        for (TextClient client : senders) client.close();
+        for (TextClient client : listeners) client.close();
+        for (ChatServer server : servers) server.stop();
+    }
+
+    @Test
+    void messageReachesEveryNodeExactlyOnce() throws Exception {
+        for (int from = 0; from < NODES; from++) {
+            String line = "user" + from + ": crossing from node " + from;
+            senders.get(from).send(line);
+            for (int to = 0; to < NODES; to++) {
+                assertEquals(1, listeners.get(to).count(line), "copies of node " + from + "'s message on node " + to);
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private static void await(BooleanSupplier condition, String what) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out waiting for " + what);
+            Thread.sleep(20);
+        }
+    }
+
+    /** A text protocol client whose lines are collected by a reader thread. */
+    private static final class TextClient {
+        private final Socket socket;
+        private final OutputStream out;
+        private final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+
+        TextClient(int port) throws IOException {
+            socket = new Socket("localhost", port);
+            out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Thread.ofPlatform().daemon().start(() -> {
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) lines.add(line);
+                } catch (IOException ignored) {
+                    // Closed by the test.
+                }
+            });
+        }
+
+        void send(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        // Copies of a line received until a while after the first, or until the timeout if none comes.
+        int count(String expected) throws InterruptedException {
+            int count = 0;
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+            while (true) {
+                long left = deadline - System.nanoTime();
+                String line = left > 0 ? lines.poll(left, TimeUnit.NANOSECONDS) : null;
+                if (line == null) return count;
+                if (line.equals(expected) && count++ == 0) {
+                    deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SETTLE_MS);
+                }
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package server.cluster;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeduplicatorTest {
+
+    private final Deduplicator dedup = new Deduplicator();
+
+    @Test
+    void idIsOnlyFirstSeenOnce() {
+        assertTrue(dedup.firstSeen("a", 1));
+        assertFalse(dedup.firstSeen("a", 1));
+        assertTrue(dedup.firstSeen("a", 2));
+        assertFalse(dedup.firstSeen("a", 2));
+    }
+
+    @Test
+    void originsAreTrackedSeparately() {
+        assertTrue(dedup.firstSeen("a", 7));
+        assertTrue(dedup.firstSeen("b", 7));
+        assertFalse(dedup.firstSeen("b", 7));
+    }
+
+    @Test
+    void idsArrivingOutOfOrderWithinTheWindowAreAccepted() {
+        assertTrue(dedup.firstSeen("a", 100));
+        assertTrue(dedup.firstSeen("a", 98));
+        assertTrue(dedup.firstSeen("a", 99));
+        assertFalse(dedup.firstSeen("a", 98));
+        assertFalse(dedup.firstSeen("a", 100));
+    }
+
+    @Test
+    void windowEdge() {
+        long highest = 1000;
+        assertTrue(dedup.firstSeen("a", highest));
+        // The oldest id still tracked, then the first one that is not.
+        assertTrue(dedup.firstSeen("a", highest - Deduplicator.WINDOW + 1));
+        assertFalse(dedup.firstSeen("a", highest - Deduplicator.WINDOW + 1));
+        assertFalse(dedup.firstSeen("a", highest - Deduplicator.WINDOW));
+    }
+
+    @Test
+    void seenIdsSlideWithTheWindow() {
+        assertTrue(dedup.firstSeen("a", 10));
+        assertTrue(dedup.firstSeen("a", 10 + Deduplicator.WINDOW - 1));
+        // Still inside the window after the shift, and still remembered.
+        assertFalse(dedup.firstSeen("a", 10));
+        assertTrue(dedup.firstSeen("a", 11));
+    }
+
+    @Test
+    void jumpBeyondTheWindowForgetsEverythingBelowIt() {
+        assertTrue(dedup.firstSeen("a", 5));
+        assertTrue(dedup.firstSeen("a", 5 + 10 * Deduplicator.WINDOW));
+        assertFalse(dedup.firstSeen("a", 6));
+        assertFalse(dedup.firstSeen("a", 5 + 10 * Deduplicator.WINDOW));
+    }
+}
@@ -0,0 +1,133 @@
+package server.store;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import protocol.Frame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageLogTest {
+
+    // Small enough that a few hundred messages span several segments.
+    private static final long SEGMENT_BYTES = 4096;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void reopenedLogHoldsEverythingAcrossSegments() throws IOException {
+        try (MessageLog log = open()) {
+            appendRange(log, 1, 300);
+        }
+        assertTrue(segmentFiles().size() > 1, "expected the log to roll");
+
+        try (MessageLog log = open()) {
+            assertEquals(300, log.lastOffset());
+            assertEquals(300, log.recoveredCount());
+            assertIds(log.read(1, 1000), 1, 300);
+            // A read that starts in the middle of a later segment.
+            assertIds(log.read(250, 10), 250, 259);
+            List<Frame> picked = log.read(new long[]{3, 150, 299});
+            assertEquals(List.of(3L, 150L, 299L), picked.stream().map(Frame::getId).toList());
+        }
+    }
+
+    @Test
+    void tornLastRecordIsDroppedAndAppendsContinue() throws IOException {
+        try (MessageLog log = open()) {
+            appendRange(log, 1, 100);
+        }
+        Path last = lastSegment();
+        try (FileChannel ch = FileChannel.open(last, StandardOpenOption.WRITE)) {
+            ch.truncate(ch.size() - 3);
+        }
+
+        try (MessageLog log = open()) {
+            assertEquals(99, log.lastOffset());
+            assertIds(log.read(1, 1000), 1, 99);
+            appendRange(log, 100, 120);
+        }
+        try (MessageLog log = open()) {
+            assertEquals(120, log.lastOffset());
+            assertIds(log.read(1, 1000), 1, 120);
+        }
+    }
+
+    @Test
+    void corruptLastRecordIsDroppedAndAppendsContinue() throws IOException {
+        try (MessageLog log = open()) {
+            appendRange(log, 1, 100);
+        }
+        Path last = lastSegment();
+        try (FileChannel ch = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The last byte belongs to the last message's text; flipping it breaks that record's checksum.
+            ByteBuffer b = ByteBuffer.allocate(1);
+            ch.read(b, ch.size() - 1);
+            ch.write(ByteBuffer.wrap(new byte[]{(byte) (b.get(0) ^ 0x55)}), ch.size() - 1);
+        }
+
+        try (MessageLog log = open()) {
+            assertEquals(99, log.lastOffset());
+            appendRange(log, 100, 110);
+        }
+        try (MessageLog log = open()) {
+            assertIds(log.read(1, 1000), 1, 110);
+        }
+    }
+
+    @Test
+    void appendsAfterRecoveryRollIntoNewSegments() throws IOException {
+        try (MessageLog log = open()) {
+            appendRange(log, 1, 50);
+        }
+        int before = segmentFiles().size();
+        try (MessageLog log = open()) {
+            appendRange(log, 51, 400);
+        }
+        assertTrue(segmentFiles().size() > before, "expected appends after reopening to roll");
+        try (MessageLog log = open()) {
+            assertEquals(400, log.lastOffset());
+            assertIds(log.read(1, 1000), 1, 400);
+        }
+    }
+
+    private MessageLog open() throws IOException {
+        return new MessageLog(dir, FsyncPolicy.BATCHED, 10, SEGMENT_BYTES);
+    }
+
+    private static void appendRange(MessageLog log, long from, long to) {
+        for (long id = from; id <= to; id++) {
+            assertTrue(log.append(Frame.message("user", "room", "message " + id).withIdAndRoom(id, id, "room").detach()));
+        }
+    }
+
+    private static void assertIds(List<Frame> frames, long from, long to) {
+        assertEquals(to - from + 1, frames.size());
+        for (int i = 0; i < frames.size(); i++) {
+            Frame frame = frames.get(i);
+            assertEquals(from + i, frame.getId());
+            assertEquals("message " + (from + i), frame.text());
+        }
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> s = Files.list(dir)) {
+            return s.filter(p -> p.getFileName().toString().endsWith(".log")).sorted().toList();
+        }
+    }
+
+    private Path lastSegment() throws IOException {
+        List<Path> files = segmentFiles();
+        return files.get(files.size() - 1);
+    }
+}